@@ -0,0 +1,937 @@
+import io.nuls.contract.sdk.*;
+import io.nuls.contract.sdk.annotation.Required;
+import io.nuls.contract.sdk.annotation.View;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.nuls.contract.sdk.Utils.emit;
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Concentrated Pair
+ *
+ * @dev     Two token pool where liquidity providers choose the price range
+ *          their liquidity is active in, like Uniswap V3. Ranges are bounded
+ *          by ticks, price = 1.0001^tick, and every initialized tick stores
+ *          the liquidity change met when the price crosses it.
+ *          Initialized ticks are flagged in a bitmap packed 256 ticks per
+ *          word, so a swap finds the next one by scanning a single word per
+ *          step. The cost of a swap grows with the ticks it crosses, never
+ *          with the number of positions.
+ *          Exposes the swap interface of NulswapPair so the router can route
+ *          through it. Positions are not tokenized, they are minted, burnt
+ *          and collected on the pair directly.
+ *
+ * @author  Pedro G. S. Ferreira
+ *
+ */
+public class NulswapConcentratedPair implements Contract {
+
+    /** Constants **/
+    private static final int MAX_TICK_SPACING     = 16_384;                                             // Widest tick spacing
+    private static final int MAX_SWAP_STEPS       = 256;                                                // Bitmap words a swap may walk through
+    private static final int MAX_QUOTE_BUMPS      = 4;                                                  // Unit bumps an exact output quote may need
+    private static final BigInteger MAX_UINT128   = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE); // Liquidity bound
+
+    /** Variables **/
+    private Address factory;                    // Factory Address
+    private Address token0;                     // Pair Token0
+    private Address token1;                     // Pair Token1
+    private int tickSpacing;                    // Ticks usable as range bounds are multiples of it
+    private BigInteger maxLiquidityPerTick;     // Bound on the liquidity referencing a single tick
+
+    private BigInteger sqrtPriceX96;            // Current sqrt price, Q64.96, null until initialized
+    private int tick;                           // Current tick
+    private BigInteger liquidity;               // Liquidity active at the current price
+
+    private BigInteger feeGrowthGlobal0X128;    // Fees of token0 per unit of liquidity, Q128.128, wraps at 2^256
+    private BigInteger feeGrowthGlobal1X128;    // Fees of token1 per unit of liquidity, Q128.128, wraps at 2^256
+
+    private BigInteger reserve0;                // Token0 owned by positions, fees and owed amounts included
+    private BigInteger reserve1;                // Token1 owned by positions, fees and owed amounts included
+
+    private int unlocked = 1;                   // Lock Status | 1 - unlocked 0 - locked
+
+    private Map<Integer, BigInteger> tickBitmap = new HashMap<Integer, BigInteger>();                   // Initialized ticks, 256 per word
+    private Map<Integer, TickInfo> ticks        = new HashMap<Integer, TickInfo>();                     // Initialized ticks state
+    private Map<String, Position> positions     = new HashMap<String, Position>();                      // Positions by owner and range
+
+    /**
+     * Lock Contract
+     * @dev Essential to protect against reentrancy attacks
+     * */
+    protected void lock(){
+        require(unlocked == 1, "NulswapV3: LOCKED");
+        unlocked = 0;
+    }
+
+    /**
+     * Unlock Contract
+     *
+     * */
+    protected void unlock(){
+        require(unlocked == 0, "NulswapV3: LOCKED");
+        unlocked = 1;
+    }
+
+    /**
+     * Constructor
+     *
+     * */
+    public NulswapConcentratedPair() {
+
+        factory              = Msg.sender();
+        liquidity            = BigInteger.ZERO;
+        feeGrowthGlobal0X128 = BigInteger.ZERO;
+        feeGrowthGlobal1X128 = BigInteger.ZERO;
+        reserve0             = BigInteger.ZERO;
+        reserve1             = BigInteger.ZERO;
+    }
+
+    /**
+     * Initialize pair
+     *
+     * @param _token0 Token0 Address
+     * @param _token1 Token1 Address
+     * @param _tickSpacing Tick spacing, wider spacings make swaps cheaper and ranges coarser
+     * */
+    public void initialize(Address _token0, Address _token1, int _tickSpacing){
+
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN"); // sufficient check
+        require(_tickSpacing > 0 && _tickSpacing <= MAX_TICK_SPACING, "NulswapV3: INVALID_TICK_SPACING");
+
+        token0      = _token0;
+        token1      = _token1;
+        tickSpacing = _tickSpacing;
+
+        // every usable tick at its bound keeps the total active liquidity within 128 bits
+        int minTick         = NulswapTickMath.MIN_TICK / _tickSpacing * _tickSpacing;
+        int maxTick         = NulswapTickMath.MAX_TICK / _tickSpacing * _tickSpacing;
+        long numTicks       = (long) (maxTick - minTick) / _tickSpacing + 1;
+        maxLiquidityPerTick = MAX_UINT128.divide(BigInteger.valueOf(numTicks));
+    }
+
+    /**
+     * Set the starting price, once
+     *
+     * @param _sqrtPriceX96 sqrt(token1/token0) as a Q64.96
+     * */
+    public void initializePrice(BigInteger _sqrtPriceX96){
+
+        require(token0 != null, "NulswapV3: NOT_INITIALIZED");
+        require(sqrtPriceX96 == null, "NulswapV3: ALREADY_INITIALIZED");
+
+        tick         = NulswapTickMath.getTickAtSqrtRatio(_sqrtPriceX96);
+        sqrtPriceX96 = _sqrtPriceX96;
+
+        emit(new InitializeEvent(sqrtPriceX96, tick));
+    }
+
+    // **** TICK BITMAP ****
+
+    /**
+     * Flip the initialized flag of a tick
+     *
+     * @param _tick Tick, a multiple of tickSpacing
+     * */
+    private void flipTick(int _tick){
+
+        int compressed = _tick / tickSpacing;
+        int wordPos    = compressed >> 8;
+        int bitPos     = compressed & 0xff;
+
+        BigInteger word = tickBitmap.get(wordPos);
+        word = (word != null ? word : BigInteger.ZERO).flipBit(bitPos);
+
+        if (word.signum() == 0)
+            tickBitmap.remove(wordPos);
+        else
+            tickBitmap.put(wordPos, word);
+    }
+
+    /**
+     * Next initialized tick in the bitmap word of the current one
+     *
+     * @param _tick Tick to start from
+     * @param lte Search at or below _tick if true, above it otherwise
+     *
+     * @return the tick found, or the last tick of the word when none is, and whether it is initialized
+     *
+     * @dev A single word lookup, the swap loop moves to the next word when
+     *      nothing is found
+     * */
+    private int[] nextInitializedTickWithinOneWord(int _tick, boolean lte){
+
+        int compressed = Math.floorDiv(_tick, tickSpacing);
+
+        if (lte) {
+            int wordPos = compressed >> 8;
+            int bitPos  = compressed & 0xff;
+
+            // all the bits at or below bitPos
+            BigInteger masked = wordAt(wordPos).and(BigInteger.ONE.shiftLeft(bitPos + 1).subtract(BigInteger.ONE));
+
+            boolean initialized = masked.signum() != 0;
+            int next            = initialized
+                    ? (compressed - (bitPos - (masked.bitLength() - 1))) * tickSpacing
+                    : (compressed - bitPos) * tickSpacing;
+            return new int[]{next, initialized ? 1 : 0};
+        } else {
+            int wordPos = (compressed + 1) >> 8;
+            int bitPos  = (compressed + 1) & 0xff;
+
+            // all the bits at or above bitPos
+            BigInteger masked = wordAt(wordPos).shiftRight(bitPos);
+
+            boolean initialized = masked.signum() != 0;
+            int next            = initialized
+                    ? (compressed + 1 + masked.getLowestSetBit()) * tickSpacing
+                    : (compressed + 1 + (255 - bitPos)) * tickSpacing;
+            return new int[]{next, initialized ? 1 : 0};
+        }
+    }
+
+    private BigInteger wordAt(int wordPos){
+        BigInteger word = tickBitmap.get(wordPos);
+        return word != null ? word : BigInteger.ZERO;
+    }
+
+    // **** TICKS ****
+
+    /**
+     * Fee growth on the far side of a tick, for both tokens
+     *
+     * */
+    private BigInteger[] feeGrowthOutside(int _tick){
+        TickInfo info = ticks.get(_tick);
+        return info != null
+                ? new BigInteger[]{info.feeGrowthOutside0X128, info.feeGrowthOutside1X128}
+                : new BigInteger[]{BigInteger.ZERO, BigInteger.ZERO};
+    }
+
+    /**
+     * Fee growth inside a range per unit of liquidity, for both tokens
+     *
+     * @dev Computed mod 2^256, only differences of it are meaningful
+     * */
+    private BigInteger[] feeGrowthInside(int tickLower, int tickUpper){
+
+        BigInteger[] lower = feeGrowthOutside(tickLower);
+        BigInteger[] upper = feeGrowthOutside(tickUpper);
+        BigInteger[] globals = new BigInteger[]{feeGrowthGlobal0X128, feeGrowthGlobal1X128};
+
+        BigInteger[] inside = new BigInteger[2];
+        for (int i = 0; i < 2; i++) {
+            BigInteger below = tick >= tickLower ? lower[i] : globals[i].subtract(lower[i]);
+            BigInteger above = tick < tickUpper ? upper[i] : globals[i].subtract(upper[i]);
+            inside[i]        = globals[i].subtract(below).subtract(above).mod(NulswapTickMath.Q256);
+        }
+        return inside;
+    }
+
+    /**
+     * Add liquidity to a tick, or remove it with a negative delta
+     *
+     * @param _tick Tick to update
+     * @param liquidityDelta Liquidity added to the range
+     * @param upper Whether the tick is the upper bound of the range
+     *
+     * @return whether the tick went from initialized to not or back
+     * */
+    private boolean updateTick(int _tick, BigInteger liquidityDelta, boolean upper){
+
+        TickInfo info = ticks.get(_tick);
+        if (info == null)
+            info = new TickInfo();
+
+        BigInteger grossBefore = info.liquidityGross;
+        BigInteger grossAfter  = grossBefore.add(liquidityDelta);
+
+        require(grossAfter.signum() >= 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        require(grossAfter.compareTo(maxLiquidityPerTick) <= 0, "NulswapV3: LIQUIDITY_OVERFLOW");
+
+        // by convention all the fee growth so far happened below a tick initialized at or below the price
+        if (grossBefore.signum() == 0 && _tick <= tick) {
+            info.feeGrowthOutside0X128 = feeGrowthGlobal0X128;
+            info.feeGrowthOutside1X128 = feeGrowthGlobal1X128;
+        }
+
+        info.liquidityGross = grossAfter;
+        info.liquidityNet   = upper ? info.liquidityNet.subtract(liquidityDelta) : info.liquidityNet.add(liquidityDelta);
+        ticks.put(_tick, info);
+
+        return (grossAfter.signum() == 0) != (grossBefore.signum() == 0);
+    }
+
+    /**
+     * Move a tick to the other side of the price
+     *
+     * @return the liquidity change when crossing it upwards
+     * */
+    private BigInteger crossTick(int _tick, BigInteger globalGrowth0X128, BigInteger globalGrowth1X128){
+        TickInfo info              = ticks.get(_tick);
+        info.feeGrowthOutside0X128 = globalGrowth0X128.subtract(info.feeGrowthOutside0X128).mod(NulswapTickMath.Q256);
+        info.feeGrowthOutside1X128 = globalGrowth1X128.subtract(info.feeGrowthOutside1X128).mod(NulswapTickMath.Q256);
+        return info.liquidityNet;
+    }
+
+    // **** POSITIONS ****
+
+    private static String positionKey(Address owner, int tickLower, int tickUpper){
+        return owner + "_" + tickLower + "_" + tickUpper;
+    }
+
+    private void checkTicks(int tickLower, int tickUpper){
+        require(tickLower < tickUpper, "NulswapV3: TLU");
+        require(tickLower >= NulswapTickMath.MIN_TICK && tickUpper <= NulswapTickMath.MAX_TICK, "NulswapV3: TICK_OUT_OF_BOUNDS");
+        require(tickLower % tickSpacing == 0 && tickUpper % tickSpacing == 0, "NulswapV3: INVALID_TICK");
+    }
+
+    /**
+     * Change the liquidity of a position and settle its fees
+     *
+     * @param owner Position Owner
+     * @param tickLower Lower bound of the range
+     * @param tickUpper Upper bound of the range
+     * @param liquidityDelta Liquidity added, negative to remove
+     *
+     * @return token0 and token1 amounts the change is worth, rounded up when adding
+     * */
+    private BigInteger[] _modifyPosition(Address owner, int tickLower, int tickUpper, BigInteger liquidityDelta){
+
+        checkTicks(tickLower, tickUpper);
+
+        String key        = positionKey(owner, tickLower, tickUpper);
+        Position position = positions.get(key);
+        if (position == null) {
+            require(liquidityDelta.signum() > 0, "NulswapV3: NP"); // no fees to poke on an empty position
+            position = new Position();
+        }
+
+        boolean flippedLower = false;
+        boolean flippedUpper = false;
+        if (liquidityDelta.signum() != 0) {
+            flippedLower = updateTick(tickLower, liquidityDelta, false);
+            flippedUpper = updateTick(tickUpper, liquidityDelta, true);
+            if (flippedLower) flipTick(tickLower);
+            if (flippedUpper) flipTick(tickUpper);
+        } else {
+            require(position.liquidity.signum() > 0, "NulswapV3: NP");
+        }
+
+        // fees earned since the last update
+        BigInteger[] inside = feeGrowthInside(tickLower, tickUpper);
+        position.tokensOwed0 = position.tokensOwed0.add(inside[0].subtract(position.feeGrowthInside0LastX128).mod(NulswapTickMath.Q256).multiply(position.liquidity).shiftRight(128));
+        position.tokensOwed1 = position.tokensOwed1.add(inside[1].subtract(position.feeGrowthInside1LastX128).mod(NulswapTickMath.Q256).multiply(position.liquidity).shiftRight(128));
+        position.feeGrowthInside0LastX128 = inside[0];
+        position.feeGrowthInside1LastX128 = inside[1];
+        position.liquidity                = position.liquidity.add(liquidityDelta);
+        require(position.liquidity.signum() >= 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        positions.put(key, position);
+
+        // removed ticks no longer need their state
+        if (liquidityDelta.signum() < 0) {
+            if (flippedLower) ticks.remove(tickLower);
+            if (flippedUpper) ticks.remove(tickUpper);
+        }
+
+        BigInteger[] amounts = amountsForLiquidity(tickLower, tickUpper, liquidityDelta.abs(), liquidityDelta.signum() > 0);
+
+        // the range holds the current price, its liquidity is active
+        if (tick >= tickLower && tick < tickUpper)
+            liquidity = liquidity.add(liquidityDelta);
+
+        return amounts;
+    }
+
+    /**
+     * Token amounts backing some liquidity of a range at the current price
+     *
+     * */
+    private BigInteger[] amountsForLiquidity(int tickLower, int tickUpper, BigInteger _liquidity, boolean roundUp){
+
+        BigInteger sqrtRatioLower = NulswapTickMath.getSqrtRatioAtTick(tickLower);
+        BigInteger sqrtRatioUpper = NulswapTickMath.getSqrtRatioAtTick(tickUpper);
+
+        BigInteger amount0 = BigInteger.ZERO;
+        BigInteger amount1 = BigInteger.ZERO;
+        if (tick < tickLower) {
+            amount0 = NulswapTickMath.getAmount0Delta(sqrtRatioLower, sqrtRatioUpper, _liquidity, roundUp);
+        } else if (tick < tickUpper) {
+            amount0 = NulswapTickMath.getAmount0Delta(sqrtPriceX96, sqrtRatioUpper, _liquidity, roundUp);
+            amount1 = NulswapTickMath.getAmount1Delta(sqrtRatioLower, sqrtPriceX96, _liquidity, roundUp);
+        } else {
+            amount1 = NulswapTickMath.getAmount1Delta(sqrtRatioLower, sqrtRatioUpper, _liquidity, roundUp);
+        }
+        return new BigInteger[]{amount0, amount1};
+    }
+
+    /**
+     * Add liquidity to a range, pulling the tokens from the caller
+     *
+     * @param tickLower Lower bound of the range
+     * @param tickUpper Upper bound of the range
+     * @param amount Liquidity to add
+     * @param to Owner of the position
+     *
+     * @dev The caller must have approved the pair for both tokens, the
+     *      amounts are quoted by getAmountsForLiquidity
+     * */
+    public String mint(int tickLower, int tickUpper, BigInteger amount, Address to) {
+
+        lock();
+
+        require(sqrtPriceX96 != null, "NulswapV3: NOT_INITIALIZED");
+        require(amount.signum() > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+
+        BigInteger[] amounts = _modifyPosition(to, tickLower, tickUpper, amount);
+
+        if (amounts[0].signum() > 0) safeTransferFrom(token0, Msg.sender(), Msg.address(), amounts[0]);
+        if (amounts[1].signum() > 0) safeTransferFrom(token1, Msg.sender(), Msg.address(), amounts[1]);
+
+        reserve0 = reserve0.add(amounts[0]);
+        reserve1 = reserve1.add(amounts[1]);
+
+        emit(new MintEvent(Msg.sender(), to, tickLower, tickUpper, amount, amounts[0], amounts[1]));
+
+        unlock();
+
+        return amounts[0] + "," + amounts[1];
+    }
+
+    /**
+     * Remove liquidity from a range of the caller
+     *
+     * @param tickLower Lower bound of the range
+     * @param tickUpper Upper bound of the range
+     * @param amount Liquidity to remove, 0 only settles the fees
+     *
+     * @dev The tokens are owed to the position, collect pays them out
+     * */
+    public String burn(int tickLower, int tickUpper, BigInteger amount) {
+
+        lock();
+
+        require(amount.signum() >= 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_BURNED");
+
+        BigInteger[] amounts = _modifyPosition(Msg.sender(), tickLower, tickUpper, amount.negate());
+
+        Position position    = positions.get(positionKey(Msg.sender(), tickLower, tickUpper));
+        position.tokensOwed0 = position.tokensOwed0.add(amounts[0]);
+        position.tokensOwed1 = position.tokensOwed1.add(amounts[1]);
+
+        emit(new BurnEvent(Msg.sender(), tickLower, tickUpper, amount, amounts[0], amounts[1]));
+
+        unlock();
+
+        return amounts[0] + "," + amounts[1];
+    }
+
+    /**
+     * Pay out tokens owed to a range of the caller, burnt liquidity and fees
+     *
+     * @param tickLower Lower bound of the range
+     * @param tickUpper Upper bound of the range
+     * @param to Address that receives the tokens
+     * @param amount0Requested Most token0 to pay
+     * @param amount1Requested Most token1 to pay
+     * */
+    public String collect(int tickLower, int tickUpper, Address to, BigInteger amount0Requested, BigInteger amount1Requested) {
+
+        lock();
+
+        String key        = positionKey(Msg.sender(), tickLower, tickUpper);
+        Position position = positions.get(key);
+        require(position != null, "NulswapV3: NP");
+
+        BigInteger amount0 = NulswapMath.min(amount0Requested, position.tokensOwed0);
+        BigInteger amount1 = NulswapMath.min(amount1Requested, position.tokensOwed1);
+
+        position.tokensOwed0 = position.tokensOwed0.subtract(amount0);
+        position.tokensOwed1 = position.tokensOwed1.subtract(amount1);
+
+        // an emptied position is forgotten
+        if (position.liquidity.signum() == 0 && position.tokensOwed0.signum() == 0 && position.tokensOwed1.signum() == 0)
+            positions.remove(key);
+
+        reserve0 = reserve0.subtract(amount0);
+        reserve1 = reserve1.subtract(amount1);
+
+        if (amount0.signum() > 0) safeTransfer(token0, to, amount0);
+        if (amount1.signum() > 0) safeTransfer(token1, to, amount1);
+
+        emit(new CollectEvent(Msg.sender(), to, tickLower, tickUpper, amount0, amount1));
+
+        unlock();
+
+        return amount0 + "," + amount1;
+    }
+
+    // **** SWAP ****
+
+    /**
+     * Walk the price across initialized ticks until an amount is filled
+     *
+     * @param zeroForOne Whether token0 is sold for token1
+     * @param amountSpecified Exact input if positive, exact output if negative
+     * @param commit Whether to store the result, a quote leaves the pair untouched
+     *
+     * @return amountIn,amountOut with the input fee included, null if a quote
+     *         cannot be filled
+     *
+     * @dev Each step costs one bitmap word lookup and ends either at the next
+     *      initialized tick, at the end of the word or where the amount is
+     *      filled, so a swap costs one step per crossed tick or empty word
+     * */
+    private BigInteger[] _swap(boolean zeroForOne, BigInteger amountSpecified, boolean commit){
+
+        require(sqrtPriceX96 != null, "NulswapV3: NOT_INITIALIZED");
+
+        boolean exactInput         = amountSpecified.signum() > 0;
+        BigInteger sqrtPriceLimit  = zeroForOne ? NulswapTickMath.MIN_SQRT_RATIO.add(BigInteger.ONE) : NulswapTickMath.MAX_SQRT_RATIO.subtract(BigInteger.ONE);
+
+        BigInteger amountRemaining  = amountSpecified;
+        BigInteger amountCalculated = BigInteger.ZERO;
+        BigInteger price            = sqrtPriceX96;
+        int currentTick             = tick;
+        BigInteger activeLiquidity  = liquidity;
+        BigInteger feeGrowthGlobal  = zeroForOne ? feeGrowthGlobal0X128 : feeGrowthGlobal1X128;
+
+        int steps = 0;
+        while (amountRemaining.signum() != 0 && !price.equals(sqrtPriceLimit)) {
+
+            if (++steps > MAX_SWAP_STEPS)
+                break;
+
+            BigInteger priceStart = price;
+            int[] next            = nextInitializedTickWithinOneWord(currentTick, zeroForOne);
+            int tickNext          = Math.max(NulswapTickMath.MIN_TICK, Math.min(NulswapTickMath.MAX_TICK, next[0]));
+            BigInteger priceNext  = NulswapTickMath.getSqrtRatioAtTick(tickNext);
+
+            BigInteger priceTarget = zeroForOne
+                    ? priceNext.max(sqrtPriceLimit)
+                    : priceNext.min(sqrtPriceLimit);
+
+            BigInteger[] step = NulswapTickMath.computeSwapStep(price, priceTarget, activeLiquidity, amountRemaining);
+            price             = step[0];
+
+            if (exactInput) {
+                amountRemaining  = amountRemaining.subtract(step[1].add(step[3]));
+                amountCalculated = amountCalculated.add(step[2]);
+            } else {
+                amountRemaining  = amountRemaining.add(step[2]);
+                amountCalculated = amountCalculated.add(step[1].add(step[3]));
+            }
+
+            if (activeLiquidity.signum() > 0)
+                feeGrowthGlobal = feeGrowthGlobal.add(step[3].shiftLeft(128).divide(activeLiquidity)).mod(NulswapTickMath.Q256);
+
+            if (price.equals(priceNext)) {
+                // reached the next tick, cross it if it holds liquidity
+                if (next[1] == 1) {
+                    BigInteger liquidityNet;
+                    if (commit) {
+                        liquidityNet = zeroForOne
+                                ? crossTick(tickNext, feeGrowthGlobal, feeGrowthGlobal1X128)
+                                : crossTick(tickNext, feeGrowthGlobal0X128, feeGrowthGlobal);
+                    } else {
+                        liquidityNet = ticks.get(tickNext).liquidityNet;
+                    }
+                    activeLiquidity = zeroForOne ? activeLiquidity.subtract(liquidityNet) : activeLiquidity.add(liquidityNet);
+                }
+                currentTick = zeroForOne ? tickNext - 1 : tickNext;
+            } else if (!price.equals(priceStart)) {
+                // stopped inside the step, the tick lies between the two ends of it
+                currentTick = zeroForOne
+                        ? NulswapTickMath.getTickAtSqrtRatio(price, tickNext, currentTick)
+                        : NulswapTickMath.getTickAtSqrtRatio(price, currentTick, tickNext - 1);
+            }
+        }
+
+        if (amountRemaining.signum() != 0) {
+            require(!commit, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+            return null;
+        }
+
+        if (commit) {
+            sqrtPriceX96 = price;
+            tick         = currentTick;
+            liquidity    = activeLiquidity;
+            if (zeroForOne)
+                feeGrowthGlobal0X128 = feeGrowthGlobal;
+            else
+                feeGrowthGlobal1X128 = feeGrowthGlobal;
+        }
+
+        return exactInput
+                ? new BigInteger[]{amountSpecified, amountCalculated}
+                : new BigInteger[]{amountCalculated, amountSpecified.negate()};
+    }
+
+    /**
+     * Output amount for an input at the current price
+     *
+     * @param amountIn Input amount, fee included
+     * @param reserveIn Unused, the liquidity of the pair prices the swap
+     * @param reserveOut Unused, the liquidity of the pair prices the swap
+     * @param inputIsToken0 Whether the input token is token0
+     *
+     * @dev Returns 0 instead of reverting when the pair has no price yet or
+     *      its liquidity cannot fill amountIn, quoters skip it then
+     * */
+    @View
+    public BigInteger getAmountOut(BigInteger amountIn, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+
+        require(amountIn.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+        if (sqrtPriceX96 == null)
+            return BigInteger.ZERO;
+
+        BigInteger[] quote = _swap(inputIsToken0, amountIn, false);
+        return quote != null ? quote[1] : BigInteger.ZERO;
+    }
+
+    /**
+     * Input amount, fee included, needed for an output at the current price
+     *
+     * @param amountOut Output amount
+     * @param reserveIn Unused, the liquidity of the pair prices the swap
+     * @param reserveOut Unused, the liquidity of the pair prices the swap
+     * @param inputIsToken0 Whether the input token is token0
+     *
+     * @dev swap fills its input exactly, so the quote is raised until that
+     *      input yields amountOut, the exact output math may fall a unit short.
+     *      The raise is bounded by MAX_QUOTE_BUMPS, past it the quote reverts
+     * */
+    @View
+    public BigInteger getAmountIn(BigInteger amountOut, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+
+        require(amountOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+
+        BigInteger[] quote = _swap(inputIsToken0, amountOut.negate(), false);
+        require(quote != null, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        BigInteger amountIn = quote[0];
+        for (int i = 0; i <= MAX_QUOTE_BUMPS; i++) {
+            quote = _swap(inputIsToken0, amountIn, false);
+            require(quote != null, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+            if (quote[1].compareTo(amountOut) >= 0)
+                return amountIn;
+            amountIn = amountIn.add(BigInteger.ONE);
+        }
+        require(false, "NulswapV3: QUOTE_NOT_CONVERGED");
+        return amountIn;
+    }
+
+    // this low-level function should be called from a contract which performs important safety checks
+    public void swap(BigInteger amount0Out, BigInteger amount1Out, Address to) {
+
+        // Lock Contract
+        lock();
+
+        // Exactly one of the values must be higher than 0
+        require((amount0Out.signum() > 0) != (amount1Out.signum() > 0), "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(!to.equals(token0) && !to.equals(token1), "NulswapV3: INVALID_TO");
+
+        boolean zeroForOne   = amount1Out.signum() > 0;
+        Address tokenIn      = zeroForOne ? token0 : token1;
+        BigInteger reserveIn = zeroForOne ? reserve0 : reserve1;
+        BigInteger amountOut = zeroForOne ? amount1Out : amount0Out;
+
+        // the whole input sent is swapped and all of its output is paid, which may exceed amountOut
+        BigInteger balanceIn = safeBalanceOf(tokenIn, Msg.address());
+        BigInteger amountIn  = balanceIn.subtract(reserveIn);
+        require(amountIn.signum() > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+
+        BigInteger[] swapped = _swap(zeroForOne, amountIn, true);
+        require(swapped[1].compareTo(amountOut) >= 0, "NulswapV3: K");
+        amountOut = swapped[1];
+
+        if (zeroForOne) {
+            reserve0 = balanceIn;
+            reserve1 = reserve1.subtract(amountOut);
+            safeTransfer(token1, to, amountOut);
+            emit(new SwapEvent(Msg.sender(), amountIn, BigInteger.ZERO, BigInteger.ZERO, amountOut, to, sqrtPriceX96, tick));
+        } else {
+            reserve1 = balanceIn;
+            reserve0 = reserve0.subtract(amountOut);
+            safeTransfer(token0, to, amountOut);
+            emit(new SwapEvent(Msg.sender(), BigInteger.ZERO, amountIn, amountOut, BigInteger.ZERO, to, sqrtPriceX96, tick));
+        }
+
+        unlock();
+    }
+
+    /**
+     * Swap, interface shared with NulswapPair
+     *
+     * @dev The notified amounts are ignored, balances are always read
+     * */
+    public void swapNotified(BigInteger amount0In, BigInteger amount1In, BigInteger amount0Out, BigInteger amount1Out, Address to) {
+        swap(amount0Out, amount1Out, to);
+    }
+
+    /**
+     *  Send tokens above the reserves
+     *
+     * @param to Address that will receive the excess
+     * */
+    public void skim(Address to){
+
+        lock();
+
+        safeTransfer(token0, to, safeBalanceOf(token0, Msg.address()).subtract(reserve0));
+        safeTransfer(token1, to, safeBalanceOf(token1, Msg.address()).subtract(reserve1));
+
+        unlock();
+    }
+
+    private BigInteger safeBalanceOf(@Required Address token, @Required Address account){
+        String[][] argsM = new String[][]{new String[]{account.toString()}};
+        return new BigInteger(token.callWithReturnValue("balanceOf", "", argsM, BigInteger.ZERO));
+    }
+
+    private void safeTransfer(@Required Address token, @Required Address recipient, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transfer", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: Failed to transfer");
+    }
+
+    private void safeTransferFrom(@Required Address token, @Required Address from, @Required Address recipient, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{from.toString()}, new String[]{recipient.toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transferFrom", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: FAILED_TRANSFER_FROM");
+    }
+
+    @View
+    public Address getFactory(){
+        return factory;
+    }
+
+    @View
+    public Address getToken0(){
+        return token0;
+    }
+
+    @View
+    public Address getToken1(){
+        return token1;
+    }
+
+    @View
+    public int getTickSpacing(){
+        return tickSpacing;
+    }
+
+    @View
+    public String getReserves(){
+        return reserve0 + "," + reserve1;
+    }
+
+    /**
+     * Full pair snapshot in a single call, same layout as NulswapPair.getState
+     *
+     * @dev reserve0,reserve1,token0,token1,lp,blockTimestampLast,
+     *      price0CumulativeLast,price1CumulativeLast,kLast
+     *      The pair keeps no price accumulators nor protocol fee, those are 0
+     * */
+    @View
+    public String getState(){
+        return reserve0 + "," + reserve1 + "," + token0 + "," + token1 + "," + Msg.address() + ",0,0,0,0";
+    }
+
+    /**
+     * Current price state
+     *
+     * @return sqrtPriceX96,tick,liquidity
+     * */
+    @View
+    public String getSlot0(){
+        return sqrtPriceX96 + "," + tick + "," + liquidity;
+    }
+
+    @View
+    public String getFeeGrowthGlobal(){
+        return feeGrowthGlobal0X128 + "," + feeGrowthGlobal1X128;
+    }
+
+    /**
+     * Tick state
+     *
+     * @return liquidityGross,liquidityNet,feeGrowthOutside0X128,feeGrowthOutside1X128, zeros for an uninitialized tick
+     * */
+    @View
+    public String getTick(int _tick){
+        TickInfo info = ticks.get(_tick);
+        if (info == null)
+            return "0,0,0,0";
+        return info.liquidityGross + "," + info.liquidityNet + "," + info.feeGrowthOutside0X128 + "," + info.feeGrowthOutside1X128;
+    }
+
+    /**
+     * Bitmap word, bit i flags tick (wordPos·256 + i)·tickSpacing
+     *
+     * */
+    @View
+    public BigInteger getTickBitmapWord(int wordPos){
+        return wordAt(wordPos);
+    }
+
+    /**
+     * Position state
+     *
+     * @return liquidity,feeGrowthInside0LastX128,feeGrowthInside1LastX128,tokensOwed0,tokensOwed1
+     * */
+    @View
+    public String getPosition(Address owner, int tickLower, int tickUpper){
+        Position position = positions.get(positionKey(owner, tickLower, tickUpper));
+        if (position == null)
+            return "0,0,0,0,0";
+        return position.liquidity + "," + position.feeGrowthInside0LastX128 + "," + position.feeGrowthInside1LastX128 + "," + position.tokensOwed0 + "," + position.tokensOwed1;
+    }
+
+    /**
+     * Tokens mint pulls for some liquidity of a range at the current price
+     *
+     * @return amount0,amount1
+     * */
+    @View
+    public String getAmountsForLiquidity(int tickLower, int tickUpper, BigInteger amount){
+        require(sqrtPriceX96 != null, "NulswapV3: NOT_INITIALIZED");
+        checkTicks(tickLower, tickUpper);
+        BigInteger[] amounts = amountsForLiquidity(tickLower, tickUpper, amount, true);
+        return amounts[0] + "," + amounts[1];
+    }
+
+    @View
+    public Integer getUnlocked(){
+        return unlocked;
+    }
+
+    class TickInfo {
+
+        private BigInteger liquidityGross        = BigInteger.ZERO;    // Liquidity of the ranges bounded by the tick
+        private BigInteger liquidityNet          = BigInteger.ZERO;    // Liquidity change when crossing upwards
+        private BigInteger feeGrowthOutside0X128 = BigInteger.ZERO;    // Token0 fee growth on the other side of the price
+        private BigInteger feeGrowthOutside1X128 = BigInteger.ZERO;    // Token1 fee growth on the other side of the price
+
+    }
+
+    class Position {
+
+        private BigInteger liquidity                = BigInteger.ZERO;
+        private BigInteger feeGrowthInside0LastX128 = BigInteger.ZERO;
+        private BigInteger feeGrowthInside1LastX128 = BigInteger.ZERO;
+        private BigInteger tokensOwed0              = BigInteger.ZERO;
+        private BigInteger tokensOwed1              = BigInteger.ZERO;
+
+    }
+
+    class InitializeEvent implements Event {
+
+        private BigInteger sqrtPriceX96;
+        private int tick;
+
+        public InitializeEvent(@Required BigInteger sqrtPriceX96, int tick) {
+            this.sqrtPriceX96 = sqrtPriceX96;
+            this.tick         = tick;
+        }
+
+    }
+
+    class SwapEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0In;
+        private BigInteger amount1In;
+        private BigInteger amount0Out;
+        private BigInteger amount1Out;
+
+        private Address to;
+
+        private BigInteger sqrtPriceX96;
+        private int tick;
+
+        public SwapEvent(@Required Address sender, @Required BigInteger amount0In, @Required BigInteger amount1In, @Required BigInteger amount0Out, @Required BigInteger amount1Out, @Required Address to, @Required BigInteger sqrtPriceX96, int tick) {
+            this.sender       = sender;
+            this.amount0In    = amount0In;
+            this.amount1In    = amount1In;
+            this.amount0Out   = amount0Out;
+            this.amount1Out   = amount1Out;
+            this.to           = to;
+            this.sqrtPriceX96 = sqrtPriceX96;
+            this.tick         = tick;
+        }
+
+    }
+
+    class MintEvent implements Event {
+
+        private Address sender;
+        private Address owner;
+
+        private int tickLower;
+        private int tickUpper;
+
+        private BigInteger liquidity;
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        public MintEvent(@Required Address sender, @Required Address owner, int tickLower, int tickUpper, @Required BigInteger liquidity, @Required BigInteger amount0, @Required BigInteger amount1) {
+            this.sender    = sender;
+            this.owner     = owner;
+            this.tickLower = tickLower;
+            this.tickUpper = tickUpper;
+            this.liquidity = liquidity;
+            this.amount0   = amount0;
+            this.amount1   = amount1;
+        }
+
+    }
+
+    class BurnEvent implements Event {
+
+        private Address owner;
+
+        private int tickLower;
+        private int tickUpper;
+
+        private BigInteger liquidity;
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        public BurnEvent(@Required Address owner, int tickLower, int tickUpper, @Required BigInteger liquidity, @Required BigInteger amount0, @Required BigInteger amount1) {
+            this.owner     = owner;
+            this.tickLower = tickLower;
+            this.tickUpper = tickUpper;
+            this.liquidity = liquidity;
+            this.amount0   = amount0;
+            this.amount1   = amount1;
+        }
+
+    }
+
+    class CollectEvent implements Event {
+
+        private Address owner;
+        private Address recipient;
+
+        private int tickLower;
+        private int tickUpper;
+
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        public CollectEvent(@Required Address owner, @Required Address recipient, int tickLower, int tickUpper, @Required BigInteger amount0, @Required BigInteger amount1) {
+            this.owner     = owner;
+            this.recipient = recipient;
+            this.tickLower = tickLower;
+            this.tickUpper = tickUpper;
+            this.amount0   = amount0;
+            this.amount1   = amount1;
+        }
+
+    }
+}
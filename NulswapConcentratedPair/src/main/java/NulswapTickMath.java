@@ -0,0 +1,268 @@
+import java.math.BigInteger;
+
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Tick Math
+ *
+ * @notice  Tick, sqrt price and liquidity math of the concentrated pair
+ *
+ * @dev     Prices are sqrt(1.0001^tick) as Q64.96 numbers, like Uniswap V3,
+ *          so positions and ticks can be reasoned about with the usual
+ *          tooling. Integer results round the same way as the V3 libraries,
+ *          always in favour of the pool.
+ *
+ */
+public final class NulswapTickMath {
+
+    /** Constants **/
+    public static final int MIN_TICK                = -887272;                                          // Lowest tick, price 2^-128
+    public static final int MAX_TICK                = -MIN_TICK;                                        // Highest tick, price 2^128
+    public static final BigInteger MIN_SQRT_RATIO   = new BigInteger("4295128739");                     // getSqrtRatioAtTick(MIN_TICK)
+    public static final BigInteger MAX_SQRT_RATIO   = new BigInteger("1461446703485210103287273052203988822378723970342"); // getSqrtRatioAtTick(MAX_TICK)
+
+    public static final int RESOLUTION              = 96;                                               // Fractional bits of a sqrt price
+    public static final BigInteger Q96              = BigInteger.ONE.shiftLeft(RESOLUTION);             // 2^96
+    public static final BigInteger Q128             = BigInteger.ONE.shiftLeft(128);                    // 2^128
+    public static final BigInteger Q256             = BigInteger.ONE.shiftLeft(256);                    // 2^256, fee growth wraps around it
+
+    public static final BigInteger FEE_PIPS         = BigInteger.valueOf(3_000);                        // 0.3% swap fee
+    public static final BigInteger PIPS_DENOMINATOR = BigInteger.valueOf(1_000_000);                    // Fee denominator
+
+    private static final BigInteger MAX_UINT256     = Q256.subtract(BigInteger.ONE);                    // 2^256 - 1
+    private static final BigInteger[] TICK_FACTORS  = new BigInteger[]{                                 // 2^128 / sqrt(1.0001)^(2^i), rounded up
+            new BigInteger("fffcb933bd6fad37aa2d162d1a594001", 16),
+            new BigInteger("fff97272373d413259a46990580e213a", 16),
+            new BigInteger("fff2e50f5f656932ef12357cf3c7fdcc", 16),
+            new BigInteger("ffe5caca7e10e4e61c3624eaa0941cd0", 16),
+            new BigInteger("ffcb9843d60f6159c9db58835c926644", 16),
+            new BigInteger("ff973b41fa98c081472e6896dfb254c0", 16),
+            new BigInteger("ff2ea16466c96a3843ec78b326b52861", 16),
+            new BigInteger("fe5dee046a99a2a811c461f1969c3053", 16),
+            new BigInteger("fcbe86c7900a88aedcffc83b479aa3a4", 16),
+            new BigInteger("f987a7253ac413176f2b074cf7815e54", 16),
+            new BigInteger("f3392b0822b70005940c7a398e4b70f3", 16),
+            new BigInteger("e7159475a2c29b7443b29c7fa6e889d9", 16),
+            new BigInteger("d097f3bdfd2022b8845ad8f792aa5825", 16),
+            new BigInteger("a9f746462d870fdf8a65dc1f90e061e5", 16),
+            new BigInteger("70d869a156d2a1b890bb3df62baf32f7", 16),
+            new BigInteger("31be135f97d08fd981231505542fcfa6", 16),
+            new BigInteger("9aa508b5b7a84e1c677de54f3e99bc9", 16),
+            new BigInteger("5d6af8dedb81196699c329225ee604", 16),
+            new BigInteger("2216e584f5fa1ea926041bedfe98", 16),
+            new BigInteger("48a170391f7dc42444e8fa2", 16)
+    };
+
+    private NulswapTickMath() {
+    }
+
+    // **** TICKS ****
+
+    /**
+     * sqrt(1.0001^tick) as a Q64.96, rounded up
+     *
+     * @dev One multiplication per set bit of |tick|, at most 20
+     * */
+    public static BigInteger getSqrtRatioAtTick(int tick){
+
+        int absTick = tick < 0 ? -tick : tick;
+        require(absTick <= MAX_TICK, "NulswapV3: TICK_OUT_OF_BOUNDS");
+
+        BigInteger ratio = Q128;
+        for (int i = 0; i < TICK_FACTORS.length; i++) {
+            if ((absTick & (1 << i)) != 0)
+                ratio = ratio.multiply(TICK_FACTORS[i]).shiftRight(128);
+        }
+        if (tick > 0)
+            ratio = MAX_UINT256.divide(ratio);
+
+        // Q128.128 to Q64.96, rounding up
+        BigInteger[] qr = ratio.divideAndRemainder(BigInteger.ONE.shiftLeft(32));
+        return qr[1].signum() == 0 ? qr[0] : qr[0].add(BigInteger.ONE);
+    }
+
+    /**
+     * Greatest tick whose sqrt price is at or below sqrtPriceX96
+     *
+     * @dev Binary search over the tick range, 21 steps at most
+     * */
+    public static int getTickAtSqrtRatio(BigInteger sqrtPriceX96){
+        return getTickAtSqrtRatio(sqrtPriceX96, MIN_TICK, MAX_TICK);
+    }
+
+    /**
+     * Greatest tick whose sqrt price is at or below sqrtPriceX96, searched between two known ticks
+     *
+     * @param low Tick at or below the answer
+     * @param high Tick at or above the answer
+     *
+     * @dev Swaps know the tick range of their step, which cuts the search to
+     *      log2 of a bitmap word worth of ticks
+     * */
+    public static int getTickAtSqrtRatio(BigInteger sqrtPriceX96, int low, int high){
+
+        require(sqrtPriceX96.compareTo(MIN_SQRT_RATIO) >= 0 && sqrtPriceX96.compareTo(MAX_SQRT_RATIO) < 0, "NulswapV3: PRICE_OUT_OF_BOUNDS");
+        require(low >= MIN_TICK && high <= MAX_TICK && low <= high, "NulswapV3: TICK_OUT_OF_BOUNDS");
+
+        while (low < high) {
+            int mid = (int) (((long) low + high + 1) >> 1);
+            if (getSqrtRatioAtTick(mid).compareTo(sqrtPriceX96) <= 0)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    // **** AMOUNTS ****
+
+    public static BigInteger mulDivRoundingUp(BigInteger a, BigInteger b, BigInteger denominator){
+        return divRoundingUp(a.multiply(b), denominator);
+    }
+
+    public static BigInteger divRoundingUp(BigInteger a, BigInteger b){
+        BigInteger[] qr = a.divideAndRemainder(b);
+        return qr[1].signum() == 0 ? qr[0] : qr[0].add(BigInteger.ONE);
+    }
+
+    /**
+     * token0 between two sqrt prices for a liquidity, L·(sb - sa)/(sa·sb)
+     *
+     * */
+    public static BigInteger getAmount0Delta(BigInteger sqrtRatioA, BigInteger sqrtRatioB, BigInteger liquidity, boolean roundUp){
+
+        if (sqrtRatioA.compareTo(sqrtRatioB) > 0) {
+            BigInteger tmp = sqrtRatioA;
+            sqrtRatioA     = sqrtRatioB;
+            sqrtRatioB     = tmp;
+        }
+
+        BigInteger numerator1 = liquidity.shiftLeft(RESOLUTION);
+        BigInteger numerator2 = sqrtRatioB.subtract(sqrtRatioA);
+
+        return roundUp
+                ? divRoundingUp(mulDivRoundingUp(numerator1, numerator2, sqrtRatioB), sqrtRatioA)
+                : numerator1.multiply(numerator2).divide(sqrtRatioB).divide(sqrtRatioA);
+    }
+
+    /**
+     * token1 between two sqrt prices for a liquidity, L·(sb - sa)
+     *
+     * */
+    public static BigInteger getAmount1Delta(BigInteger sqrtRatioA, BigInteger sqrtRatioB, BigInteger liquidity, boolean roundUp){
+
+        BigInteger difference = sqrtRatioA.subtract(sqrtRatioB).abs();
+
+        return roundUp
+                ? mulDivRoundingUp(liquidity, difference, Q96)
+                : liquidity.multiply(difference).shiftRight(RESOLUTION);
+    }
+
+    /**
+     * Price after adding or removing token0, rounded up so the price moves less
+     *
+     * */
+    private static BigInteger getNextSqrtPriceFromAmount0RoundingUp(BigInteger sqrtPriceX96, BigInteger liquidity, BigInteger amount, boolean add){
+
+        if (amount.signum() == 0)
+            return sqrtPriceX96;
+
+        BigInteger numerator1 = liquidity.shiftLeft(RESOLUTION);
+        BigInteger product    = amount.multiply(sqrtPriceX96);
+
+        if (add)
+            return mulDivRoundingUp(numerator1, sqrtPriceX96, numerator1.add(product));
+
+        require(numerator1.compareTo(product) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        return mulDivRoundingUp(numerator1, sqrtPriceX96, numerator1.subtract(product));
+    }
+
+    /**
+     * Price after adding or removing token1, rounded down so the price moves less
+     *
+     * */
+    private static BigInteger getNextSqrtPriceFromAmount1RoundingDown(BigInteger sqrtPriceX96, BigInteger liquidity, BigInteger amount, boolean add){
+
+        if (add)
+            return sqrtPriceX96.add(amount.shiftLeft(RESOLUTION).divide(liquidity));
+
+        BigInteger quotient = divRoundingUp(amount.shiftLeft(RESOLUTION), liquidity);
+        require(sqrtPriceX96.compareTo(quotient) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        return sqrtPriceX96.subtract(quotient);
+    }
+
+    private static BigInteger getNextSqrtPriceFromInput(BigInteger sqrtPriceX96, BigInteger liquidity, BigInteger amountIn, boolean zeroForOne){
+        return zeroForOne
+                ? getNextSqrtPriceFromAmount0RoundingUp(sqrtPriceX96, liquidity, amountIn, true)
+                : getNextSqrtPriceFromAmount1RoundingDown(sqrtPriceX96, liquidity, amountIn, true);
+    }
+
+    private static BigInteger getNextSqrtPriceFromOutput(BigInteger sqrtPriceX96, BigInteger liquidity, BigInteger amountOut, boolean zeroForOne){
+        return zeroForOne
+                ? getNextSqrtPriceFromAmount1RoundingDown(sqrtPriceX96, liquidity, amountOut, false)
+                : getNextSqrtPriceFromAmount0RoundingUp(sqrtPriceX96, liquidity, amountOut, false);
+    }
+
+    /**
+     * One swap step inside a range of constant liquidity
+     *
+     * @param sqrtRatioCurrent Current sqrt price
+     * @param sqrtRatioTarget Price the step may not pass
+     * @param liquidity Active liquidity
+     * @param amountRemaining Input left if positive, output left if negative
+     *
+     * @return sqrtRatioNext,amountIn,amountOut,feeAmount
+     * */
+    public static BigInteger[] computeSwapStep(BigInteger sqrtRatioCurrent, BigInteger sqrtRatioTarget, BigInteger liquidity, BigInteger amountRemaining){
+
+        boolean zeroForOne = sqrtRatioCurrent.compareTo(sqrtRatioTarget) >= 0;
+        boolean exactIn    = amountRemaining.signum() >= 0;
+
+        BigInteger sqrtRatioNext;
+        BigInteger amountIn  = BigInteger.ZERO;
+        BigInteger amountOut = BigInteger.ZERO;
+
+        if (exactIn) {
+            BigInteger amountRemainingLessFee = amountRemaining.multiply(PIPS_DENOMINATOR.subtract(FEE_PIPS)).divide(PIPS_DENOMINATOR);
+            amountIn = zeroForOne
+                    ? getAmount0Delta(sqrtRatioTarget, sqrtRatioCurrent, liquidity, true)
+                    : getAmount1Delta(sqrtRatioCurrent, sqrtRatioTarget, liquidity, true);
+            sqrtRatioNext = amountRemainingLessFee.compareTo(amountIn) >= 0
+                    ? sqrtRatioTarget
+                    : getNextSqrtPriceFromInput(sqrtRatioCurrent, liquidity, amountRemainingLessFee, zeroForOne);
+        } else {
+            amountOut = zeroForOne
+                    ? getAmount1Delta(sqrtRatioTarget, sqrtRatioCurrent, liquidity, false)
+                    : getAmount0Delta(sqrtRatioCurrent, sqrtRatioTarget, liquidity, false);
+            sqrtRatioNext = amountRemaining.negate().compareTo(amountOut) >= 0
+                    ? sqrtRatioTarget
+                    : getNextSqrtPriceFromOutput(sqrtRatioCurrent, liquidity, amountRemaining.negate(), zeroForOne);
+        }
+
+        boolean max = sqrtRatioTarget.equals(sqrtRatioNext);
+
+        if (zeroForOne) {
+            if (!(max && exactIn))
+                amountIn = getAmount0Delta(sqrtRatioNext, sqrtRatioCurrent, liquidity, true);
+            if (!(max && !exactIn))
+                amountOut = getAmount1Delta(sqrtRatioNext, sqrtRatioCurrent, liquidity, false);
+        } else {
+            if (!(max && exactIn))
+                amountIn = getAmount1Delta(sqrtRatioCurrent, sqrtRatioNext, liquidity, true);
+            if (!(max && !exactIn))
+                amountOut = getAmount0Delta(sqrtRatioCurrent, sqrtRatioNext, liquidity, false);
+        }
+
+        // the output may not exceed what is left to get
+        if (!exactIn && amountOut.compareTo(amountRemaining.negate()) > 0)
+            amountOut = amountRemaining.negate();
+
+        // an exact input step that stops before its target takes the rest of the input as fee
+        BigInteger feeAmount = exactIn && !sqrtRatioNext.equals(sqrtRatioTarget)
+                ? amountRemaining.subtract(amountIn)
+                : mulDivRoundingUp(amountIn, FEE_PIPS, PIPS_DENOMINATOR.subtract(FEE_PIPS));
+
+        return new BigInteger[]{sqrtRatioNext, amountIn, amountOut, feeAmount};
+    }
+
+}
@@ -26,15 +26,39 @@ import static io.nuls.contract.sdk.Utils.require;
  */
 public class NulswapFactory extends Ownable implements Contract{
 
+    private static final int FEE_TO_BATCH = 50;                                                             // Pairs updated per feeTo push
+    private static final int MAX_MULTI_POOLS_PER_PAIR = 3;                                                  // Multi pools the router weighs per token pair
+
+    public static final int PAIR_CONSTANT_PRODUCT = 0;                                                      // NulswapPair
+    public static final int PAIR_STABLE           = 1;                                                      // NulswapStablePair
+    public static final int PAIR_WEIGHTED         = 2;                                                      // NulswapWeightedPair
+    public static final int PAIR_MULTI            = 3;                                                      // NulswapMultiPool
+    public static final int PAIR_CONCENTRATED     = 4;                                                      // NulswapConcentratedPair
+
     private Address feeTo;                                                                                  //
+    private int feeToEpoch;                                                                                 // Incremented on every feeTo change
+    private int feeToSynced;                                                                                // Pairs already holding the current feeTo
     private Address feeToSetter;                                                                            //
     private final Address BURNER_ADDR;              // Burner Address Contract
     private Address pairCopy;              // pairCopy Contract
+    private Address stablePairCopy;        // stablePairCopy Contract, set by the owner
+    private Address weightedPairCopy;      // weightedPairCopy Contract, set by the owner
+    private Address multiPoolCopy;         // multiPoolCopy Contract, set by the owner
+    private Address concentratedPairCopy;  // concentratedPairCopy Contract, set by the owner
+    private boolean lpInPair;              // New pairs are their own lp token
+    private Address router;                // Router allowed to notify pairs of transfers, told of new multi pools
+    private boolean compactEvents;         // New pairs emit compact swap events
+
+    private Map<Address, Boolean> standardTokens = new HashMap<Address, Boolean>();                        // Tokens without transfer fees or rebasing
 
     private Map<Address, Map<Address, Address>> getPair = new HashMap<Address, Map<Address, Address>>();    // Token Pair Mapping
 
     private List<Address> allPairs = new ArrayList<Address>();                                              // All Pairs List
 
+    private Map<Address, Integer> pairKinds = new HashMap<Address, Integer>();                              // Pair type, absent for constant product
+
+    private Map<Address, Map<Address, List<Address>>> multiPools = new HashMap<Address, Map<Address, List<Address>>>(); // Multi pools holding a token pair (token => token => pools)
+
     // Constructor
     public NulswapFactory(Address _feeToSetter){
         feeToSetter = _feeToSetter;
@@ -56,6 +80,173 @@ public class NulswapFactory extends Ownable implements Contract{
      * */
     public Address createPair(Address tokenA, Address tokenB){
 
+        Address[] tokens = _sortNewPair(tokenA, tokenB);
+        Address token0   = tokens[0];
+        Address token1   = tokens[1];
+
+        String pairAddr =  Utils.deploy(new String[]{ "pair", token0.toString(), token1.toString()}, pairCopy, new String[]{});
+        Address pair = new Address(pairAddr);
+
+        initialize(pair, token0, token1);
+        if (feeToSynced == allPairs.size()) feeToSynced++; // born with the current feeTo
+        if (router != null && isStandardToken(token0) && isStandardToken(token1)) pushTrust(pair, token0, token1);
+        if (compactEvents) pushCompactEvents(pair, true);
+
+        _storePair(token0, token1, pair);
+        return pair;
+    }
+
+    /**
+     * Creates a new StableSwap pair and stores it
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param amp Amplification coefficient
+     *
+     * @dev Only for assets meant to trade close to 1:1, the pair takes the
+     *      token pair slot so the router quotes it like any other pair
+     * */
+    public Address createStablePair(Address tokenA, Address tokenB, BigInteger amp){
+
+        onlyOwner();
+        require(stablePairCopy != null, "NulswapV3: NO_CODE_COPY");
+
+        Address[] tokens = _sortNewPair(tokenA, tokenB);
+        Address token0   = tokens[0];
+        Address token1   = tokens[1];
+
+        String pairAddr = Utils.deploy(new String[]{ "stable", token0.toString(), token1.toString()}, stablePairCopy, new String[]{});
+        Address pair    = new Address(pairAddr);
+
+        String[][] argsM = new String[][]{new String[]{token0.toString()}, new String[]{token1.toString()}, new String[]{amp.toString()}};
+        pair.callWithReturnValue("initialize", "", argsM, BigInteger.ZERO);
+
+        if (feeToSynced == allPairs.size()) feeToSynced++; // keeps no protocol fee
+        pairKinds.put(pair, PAIR_STABLE);
+
+        _storePair(token0, token1, pair);
+        return pair;
+    }
+
+    /**
+     * Creates a new weighted pair and stores it
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param weightA Weight of token A with 18 decimals, between 1% and 99%
+     *
+     * @dev Like stable pairs, the pair takes the token pair slot so the
+     *      router quotes it like any other pair
+     * */
+    public Address createWeightedPair(Address tokenA, Address tokenB, BigInteger weightA){
+
+        onlyOwner();
+        require(weightedPairCopy != null, "NulswapV3: NO_CODE_COPY");
+
+        Address[] tokens = _sortNewPair(tokenA, tokenB);
+        Address token0   = tokens[0];
+        Address token1   = tokens[1];
+
+        BigInteger weight0 = token0.equals(tokenA) ? weightA : BigInteger.TEN.pow(18).subtract(weightA);
+
+        String pairAddr = Utils.deploy(new String[]{ "weighted", token0.toString(), token1.toString()}, weightedPairCopy, new String[]{});
+        Address pair    = new Address(pairAddr);
+
+        String[][] argsM = new String[][]{new String[]{token0.toString()}, new String[]{token1.toString()}, new String[]{weight0.toString()}};
+        pair.callWithReturnValue("initialize", "", argsM, BigInteger.ZERO);
+
+        if (feeToSynced == allPairs.size()) feeToSynced++; // keeps no protocol fee
+        pairKinds.put(pair, PAIR_WEIGHTED);
+
+        _storePair(token0, token1, pair);
+        return pair;
+    }
+
+    /**
+     * Creates a new concentrated liquidity pair and stores it
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param tickSpacing Spacing of the ticks positions can use as range bounds
+     *
+     * @dev The pair still needs its starting price, set with initializePrice.
+     *      Like stable pairs, it takes the token pair slot so the router
+     *      quotes it like any other pair
+     * */
+    public Address createConcentratedPair(Address tokenA, Address tokenB, int tickSpacing){
+
+        onlyOwner();
+        require(concentratedPairCopy != null, "NulswapV3: NO_CODE_COPY");
+
+        Address[] tokens = _sortNewPair(tokenA, tokenB);
+        Address token0   = tokens[0];
+        Address token1   = tokens[1];
+
+        String pairAddr = Utils.deploy(new String[]{ "concentrated", token0.toString(), token1.toString()}, concentratedPairCopy, new String[]{});
+        Address pair    = new Address(pairAddr);
+
+        String[][] argsM = new String[][]{new String[]{token0.toString()}, new String[]{token1.toString()}, new String[]{String.valueOf(tickSpacing)}};
+        pair.callWithReturnValue("initialize", "", argsM, BigInteger.ZERO);
+
+        if (feeToSynced == allPairs.size()) feeToSynced++; // keeps no protocol fee
+        pairKinds.put(pair, PAIR_CONCENTRATED);
+
+        _storePair(token0, token1, pair);
+        return pair;
+    }
+
+    /**
+     * Creates a pool of 3 to 8 tokens and lists it under each of its token pairs
+     *
+     * @param tokens Pool Tokens
+     *
+     * @dev The pool is kept apart from the pair slots, getPair is untouched
+     *      and the token pairs can still get a pair of their own. The pool is
+     *      pushed to the router, which weighs it against the pair of each hop.
+     *      Pools created before the router was set are imported by its owner
+     * */
+    public Address createMultiPool(String[] tokens){
+
+        onlyOwner();
+        require(multiPoolCopy != null, "NulswapV3: NO_CODE_COPY");
+
+        String pairAddr = Utils.deploy(new String[]{ "multi", String.valueOf(allPairs.size())}, multiPoolCopy, new String[]{});
+        Address pool    = new Address(pairAddr);
+
+        String[][] argsM = new String[][]{tokens};
+        pool.callWithReturnValue("initialize", "", argsM, BigInteger.ZERO); // checks the token count and duplicates
+
+        if (feeToSynced == allPairs.size()) feeToSynced++; // keeps no protocol fee
+        pairKinds.put(pool, PAIR_MULTI);
+        allPairs.add(pool);
+
+        int tokenPairs   = 0;
+        StringBuilder sb = new StringBuilder(tokens[0]);
+        for (int i = 0; i < tokens.length; i++) {
+            if (i > 0)
+                sb.append(",").append(tokens[i]);
+            for (int j = i + 1; j < tokens.length; j++) {
+                _addMultiPool(new Address(tokens[i]), new Address(tokens[j]), pool);
+                _addMultiPool(new Address(tokens[j]), new Address(tokens[i]), pool);
+                tokenPairs++;
+            }
+        }
+
+        if (router != null)
+            router.callWithReturnValue("addMultiPool", "", new String[][]{new String[]{pool.toString()}, tokens}, BigInteger.ZERO);
+
+        emit(new MultiPoolCreatedEvent(pool, sb.toString(), tokenPairs, allPairs.size()));
+        return pool;
+    }
+
+    /**
+     * Order two tokens and check their pair does not exist yet
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * */
+    private Address[] _sortNewPair(Address tokenA, Address tokenB){
+
         // TokenA cannot be equal to TokenB
         require(!tokenA.equals(tokenB), "NulswapV3: IDENTICAL_ADDRESSES");
 
@@ -72,15 +263,16 @@ public class NulswapFactory extends Ownable implements Contract{
         // Token0 cannot be null
         require(token0 != null, "NulswapV3: ZERO_ADDRESS");
 
-        Map<Address, Address> ownerAllowed = getPair.get(token0);
-
         require(getPair.get(token0) == null || getPair.get(token0).get(token1) == null, "NulswapV3: PAIR_EXISTS"); // single check is sufficient
 
+        return new Address[]{token0, token1};
+    }
 
-        String pairAddr =  Utils.deploy(new String[]{ "pair", token0.toString(), token1.toString()}, pairCopy, new String[]{});
-        Address pair = new Address(pairAddr);
-
-        initialize(pair, token0, token1);
+    /**
+     * Store a new pair in both directions and in the pairs list
+     *
+     * */
+    private void _storePair(Address token0, Address token1, Address pair){
 
         Map<Address, Address> tkn0tkn1 = getPair.get(token0) != null ? getPair.get(token0) : new HashMap<>();
         Map<Address, Address> tkn1tkn0 = getPair.get(token1) != null ? getPair.get(token1) : new HashMap<>();
@@ -93,18 +285,76 @@ public class NulswapFactory extends Ownable implements Contract{
 
         //
         emit(new PairCreatedEvent(token0, token1, pair, allPairs.size()));
-        return pair;
+    }
+
+    /**
+     * List a multi pool under one direction of a token pair
+     *
+     * */
+    private void _addMultiPool(Address tokenA, Address tokenB, Address pool){
+
+        Map<Address, List<Address>> byToken = multiPools.get(tokenA);
+        if (byToken == null) {
+            byToken = new HashMap<Address, List<Address>>();
+            multiPools.put(tokenA, byToken);
+        }
+
+        List<Address> pools = byToken.get(tokenB);
+        if (pools == null) {
+            pools = new ArrayList<Address>();
+            byToken.put(tokenB, pools);
+        }
+
+        require(pools.size() < MAX_MULTI_POOLS_PER_PAIR, "NulswapV3: TOO_MANY_POOLS");
+        pools.add(pool);
     }
 
     private void initialize(@Required Address pair, @Required Address token0, @Required Address token1){
-        String[][] argsM = new String[][]{new String[]{token0.toString()}, new String[]{token1.toString()}};
+        String[][] argsM = new String[][]{new String[]{token0.toString()}, new String[]{token1.toString()}, new String[]{String.valueOf(lpInPair)},
+                new String[]{feeTo.toString()}, new String[]{String.valueOf(feeToEpoch)}};
         pair.callWithReturnValue("initialize", "", argsM, BigInteger.ZERO);
     }
 
 
+    /**
+     * Set the fee receiver and start pushing it to the pairs
+     *
+     * @param _feeTo Fee receiver, the burner address disables the protocol fee
+     *
+     * @dev Pairs cache feeTo, the first batch is updated here and
+     *      the rest through pushFeeTo. Until getFeeToSynced reaches the
+     *      number of pairs, the pairs not reached yet keep minting the
+     *      protocol fee to the previous feeTo
+     * */
     public void setFeeTo(Address _feeTo){
         require(Msg.sender().equals(feeToSetter), "NulswapV3: FORBIDDEN");
-        feeTo = _feeTo;
+        feeTo       = _feeTo;
+        feeToEpoch  = feeToEpoch + 1;
+        feeToSynced = 0;
+        pushFeeTo(FEE_TO_BATCH);
+
+        emit(new FeeToChangedEvent(feeTo, feeToEpoch));
+    }
+
+    /**
+     * Push the current feeTo to the next pairs still holding an old one
+     *
+     * @param count Maximum number of pairs to update
+     *
+     * @dev Anyone can call it, pairs only accept the factory's current value
+     * */
+    public void pushFeeTo(int count){
+        require(count > 0, "NulswapV3: INVALID_COUNT");
+
+        int end = Math.min(allPairs.size(), feeToSynced + count);
+        String[][] argsM = new String[][]{new String[]{feeTo.toString()}, new String[]{String.valueOf(feeToEpoch)}};
+
+        for (int i = feeToSynced; i < end; i++) {
+            Address pair = allPairs.get(i);
+            if (getPairKind(pair) == PAIR_CONSTANT_PRODUCT)
+                pair.callWithReturnValue("setFeeTo", "", argsM, BigInteger.ZERO);
+        }
+        feeToSynced = end;
     }
 
     public void setFeeToSetter(Address _feeToSetter){
@@ -112,6 +362,137 @@ public class NulswapFactory extends Ownable implements Contract{
         feeToSetter = _feeToSetter;
     }
 
+    /**
+     * Choose whether new pairs keep their lp balances themselves
+     *
+     * @param _lpInPair True to skip deploying a separate lp token
+     *
+     * @dev Only affects pairs created afterwards
+     * */
+    public void setLpInPair(Boolean _lpInPair){
+        onlyOwner();
+        lpInPair = _lpInPair;
+    }
+
+    @View
+    public boolean isLpInPair(){
+        return lpInPair;
+    }
+
+    /**
+     * Set the code copy new pairs of a type are deployed from
+     *
+     * @param kind PAIR_STABLE, PAIR_WEIGHTED, PAIR_MULTI or PAIR_CONCENTRATED
+     * @param codeCopy Deployed contract holding the code of that pair type
+     *
+     * @dev Creating a pair of a type is refused until its copy is set
+     * */
+    public void setPairCodeCopy(int kind, Address codeCopy){
+        onlyOwner();
+        require(codeCopy != null && !codeCopy.equals(pairCopy), "NulswapV3: INVALID_CODE_COPY"); // never the constant product code
+        if (kind == PAIR_STABLE)
+            stablePairCopy = codeCopy;
+        else if (kind == PAIR_WEIGHTED)
+            weightedPairCopy = codeCopy;
+        else if (kind == PAIR_MULTI)
+            multiPoolCopy = codeCopy;
+        else if (kind == PAIR_CONCENTRATED)
+            concentratedPairCopy = codeCopy;
+        else
+            require(false, "NulswapV3: INVALID_PAIR_KIND");
+    }
+
+    /**
+     * Set the router allowed to notify pairs of transferred amounts
+     *
+     * @param _router Router Address
+     *
+     * @dev Existing pairs pick it up through updatePairTrust
+     * */
+    public void setRouter(Address _router){
+        onlyOwner();
+        router = _router;
+    }
+
+    /**
+     * Mark a token as standard, no transfer fees and no rebasing
+     *
+     * @param token Token Address
+     * @param standard Standard status
+     *
+     * @dev Pairs of two standard tokens account reserves internally,
+     *      existing pairs pick the change up through updatePairTrust
+     * */
+    public void setStandardToken(Address token, Boolean standard){
+        onlyOwner();
+        standardTokens.put(token, standard);
+    }
+
+    /**
+     * Push the current router and standard status to a pair
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * */
+    public void updatePairTrust(Address tokenA, Address tokenB){
+        Address pair = getPair(tokenA, tokenB);
+        require(!pair.equals(BURNER_ADDR), "NulswapV3: PAIR_NOT_FOUND");
+        require(getPairKind(pair) == PAIR_CONSTANT_PRODUCT, "NulswapV3: UNSUPPORTED_PAIR");
+        pushTrust(pair, tokenA, tokenB);
+    }
+
+    private void pushTrust(@Required Address pair, @Required Address tokenA, @Required Address tokenB){
+        boolean trusted  = router != null && isStandardToken(tokenA) && isStandardToken(tokenB);
+        String[][] argsM = new String[][]{new String[]{router != null ? router.toString() : BURNER_ADDR.toString()}, new String[]{String.valueOf(trusted)}};
+        pair.callWithReturnValue("setTrust", "", argsM, BigInteger.ZERO);
+    }
+
+    /**
+     * Choose the swap event schema of new pairs
+     *
+     * @param _compactEvents True for one combined swap and reserves event
+     * */
+    public void setDefaultCompactEvents(Boolean _compactEvents){
+        onlyOwner();
+        compactEvents = _compactEvents;
+    }
+
+    /**
+     * Choose the swap event schema of an existing pair
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param _compactEvents True for one combined swap and reserves event
+     * */
+    public void setPairCompactEvents(Address tokenA, Address tokenB, Boolean _compactEvents){
+        onlyOwner();
+        Address pair = getPair(tokenA, tokenB);
+        require(!pair.equals(BURNER_ADDR), "NulswapV3: PAIR_NOT_FOUND");
+        require(getPairKind(pair) == PAIR_CONSTANT_PRODUCT, "NulswapV3: UNSUPPORTED_PAIR");
+        pushCompactEvents(pair, _compactEvents);
+    }
+
+    private void pushCompactEvents(@Required Address pair, boolean _compactEvents){
+        String[][] argsM = new String[][]{new String[]{String.valueOf(_compactEvents)}};
+        pair.callWithReturnValue("setCompactEvents", "", argsM, BigInteger.ZERO);
+    }
+
+    @View
+    public boolean isDefaultCompactEvents(){
+        return compactEvents;
+    }
+
+    @View
+    public boolean isStandardToken(Address token){
+        Boolean standard = standardTokens.get(token);
+        return standard != null && standard;
+    }
+
+    @View
+    public Address getRouter(){
+        return router;
+    }
+
     /**
      *
      *
@@ -121,6 +502,25 @@ public class NulswapFactory extends Ownable implements Contract{
         return feeTo;
     }
 
+    /**
+     * Current feeTo and its epoch
+     *
+     * @dev feeTo,feeToEpoch
+     * */
+    @View
+    public String getFeeToState(){
+        return feeTo + "," + feeToEpoch;
+    }
+
+    /**
+     * Number of pairs, in creation order, already holding the current feeTo
+     *
+     * */
+    @View
+    public int getFeeToSynced(){
+        return feeToSynced;
+    }
+
     /**
      * Get Pair Contract
      *
@@ -136,11 +536,73 @@ public class NulswapFactory extends Ownable implements Contract{
         return BURNER_ADDR;
     }
 
+    /**
+     * Multi pools holding both tokens, comma-joined, empty if there is none
+     *
+     * @param tokenA First Token Contract Address
+     * @param tokenB Second Token Contract Address
+     * */
+    @View
+    public String getMultiPools(Address tokenA, Address tokenB){
+
+        Map<Address, List<Address>> byToken = multiPools.get(tokenA);
+        List<Address> pools = byToken != null ? byToken.get(tokenB) : null;
+        if (pools == null)
+            return "";
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pools.size(); i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(pools.get(i).toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Pair type, PAIR_CONSTANT_PRODUCT, PAIR_STABLE, PAIR_WEIGHTED, PAIR_MULTI or PAIR_CONCENTRATED
+     *
+     * @param pair Pair Address
+     * */
+    @View
+    public int getPairKind(Address pair){
+        Integer kind = pairKinds.get(pair);
+        return kind != null ? kind : PAIR_CONSTANT_PRODUCT;
+    }
+
     @View
     public int allPairsLength(){
         return allPairs.size();
     }
 
+    class FeeToChangedEvent implements Event {
+
+        private Address feeTo;
+        private Integer epoch;
+
+        public FeeToChangedEvent(@Required Address feeTo, @Required Integer epoch) {
+            this.feeTo = feeTo;
+            this.epoch = epoch;
+        }
+
+    }
+
+    class MultiPoolCreatedEvent implements Event {
+
+        private Address pool;
+        private String tokens;
+        private Integer tokenPairs;
+        private Integer numberOfPairs;
+
+        public MultiPoolCreatedEvent(@Required Address pool, @Required String tokens, @Required Integer tokenPairs, @Required Integer numberOfPairs) {
+            this.pool          = pool;
+            this.tokens        = tokens;
+            this.tokenPairs    = tokenPairs;
+            this.numberOfPairs = numberOfPairs;
+        }
+
+    }
+
     class PairCreatedEvent implements Event {
 
         private Address token0;
@@ -0,0 +1,594 @@
+import io.nuls.contract.sdk.*;
+import io.nuls.contract.sdk.annotation.Required;
+import io.nuls.contract.sdk.annotation.View;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.nuls.contract.sdk.Utils.emit;
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Multi Pool
+ *
+ * @dev     Pool holding 3 to 8 tokens with equal weights under the
+ *          invariant Πx = k. A swap only moves two balances, so between
+ *          any two members it is the same 0.3% constant product swap as
+ *          NulswapPair, without the intermediate hops a route through
+ *          several pairs would need.
+ *          The factory lists the pool under each of its token pairs in
+ *          getMultiPools, apart from the pair slots, and pushes it to the
+ *          router. On each hop the router weighs the listed pools against
+ *          the token pair's own pair by reserveIn·reserveOut, the deepest
+ *          wins, and quotes a pool locally like a pair.
+ *          The pool is its own lp token.
+ *
+ * @author  Pedro G. S. Ferreira
+ *
+ */
+public class NulswapMultiPool implements Contract, Token {
+
+    /** Constants **/
+    private static final BigInteger MINIMUM_LIQUIDITY = BigInteger.valueOf(1_000);                      // Minimum Liquidity
+    private static final int MIN_TOKENS               = 3;                                              // Minimum tokens in the pool
+    private static final int MAX_TOKENS               = 8;                                              // Maximum tokens in the pool
+
+    private static final String LP_NAME               = "Nulswap_multi_lp";                             // LP Token Name
+    private static final String LP_SYMBOL             = "NSWAP_MLP";                                    // LP Token Symbol
+    private static final int LP_DECIMALS              = 18;                                             // LP Token Decimals
+
+    private final Address BURNER_ADDR; // Burner Address
+
+    /** Variables **/
+    private Address factory;                    // Factory Address
+    private Address[] tokens;                   // Pool Tokens
+    private BigInteger[] reserves;              // Reserves, same order as tokens
+    private Map<Address, Integer> indexes;      // Position of each token
+
+    private int unlocked = 1;                   // Lock Status | 1 - unlocked 0 - locked
+
+    private BigInteger totalSupply = BigInteger.ZERO;                                                   // LP Total Supply
+    private Map<Address, BigInteger> balances = new HashMap<Address, BigInteger>();                     // LP Balances
+    private Map<Address, Map<Address, BigInteger>> allowed = new HashMap<Address, Map<Address, BigInteger>>(); // LP Allowances
+
+    /**
+     * Lock Contract
+     * @dev Essential to protect against reentrancy attacks
+     * */
+    protected void lock(){
+        require(unlocked == 1, "NulswapV3: LOCKED");
+        unlocked = 0;
+    }
+
+    /**
+     * Unlock Contract
+     *
+     * */
+    protected void unlock(){
+        require(unlocked == 0, "NulswapV3: LOCKED");
+        unlocked = 1;
+    }
+
+    /**
+     * Constructor
+     *
+     * */
+    public NulswapMultiPool() {
+
+        factory = Msg.sender();
+        if (Msg.sender().toString().startsWith("NULS")) {
+            BURNER_ADDR = new Address("NULSd6HgsVSzCAJwLYBjvfP3NwbKCvV525GWn");
+        } else {
+            BURNER_ADDR = new Address("tNULSeBaN5nddf9WkQgRr3RNwARgryndv2Bzs6");
+        }
+    }
+
+    /**
+     * Initialize pool
+     *
+     * @param _tokens Pool Tokens, between MIN_TOKENS and MAX_TOKENS distinct addresses
+     * */
+    public void initialize(String[] _tokens){
+
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN"); // sufficient check
+        require(tokens == null, "NulswapV3: INITIALIZED");
+        require(_tokens.length >= MIN_TOKENS && _tokens.length <= MAX_TOKENS, "NulswapV3: INVALID_TOKENS");
+
+        tokens   = new Address[_tokens.length];
+        reserves = new BigInteger[_tokens.length];
+        indexes  = new HashMap<Address, Integer>();
+        for (int i = 0; i < _tokens.length; i++) {
+            tokens[i]   = new Address(_tokens[i]);
+            reserves[i] = BigInteger.ZERO;
+            require(indexes.put(tokens[i], i) == null, "NulswapV3: IDENTICAL_ADDRESSES");
+        }
+    }
+
+    /**
+     * Position of a pool token
+     *
+     * */
+    private int indexOf(Address token){
+        Integer index = indexes.get(token);
+        require(index != null, "NulswapV3: INVALID_TOKEN");
+        return index;
+    }
+
+    /**
+     * Integer n-th root, floor(y^(1/n))
+     *
+     * @dev Newton iterations seeded with 2^ceil(bits/n), which is always above
+     *      the root, so the sequence decreases like NulswapMath.sqrt
+     * */
+    private static BigInteger rootN(BigInteger y, int n){
+
+        if (y.signum() == 0)
+            return BigInteger.ZERO;
+
+        BigInteger bn = BigInteger.valueOf(n);
+        BigInteger z  = BigInteger.ONE.shiftLeft((y.bitLength() + n - 1) / n);
+        BigInteger x  = y.divide(z.pow(n - 1)).add(z.multiply(bn.subtract(BigInteger.ONE))).divide(bn);
+        while (x.compareTo(z) < 0) {
+            z = x;
+            x = y.divide(x.pow(n - 1)).add(x.multiply(bn.subtract(BigInteger.ONE))).divide(bn);
+        }
+        return z;
+    }
+
+    /**
+     * Output amount for an input between two pool tokens
+     *
+     * @param tokenIn Input Token
+     * @param tokenOut Output Token
+     * @param amountIn Input amount, fee included
+     * */
+    @View
+    public BigInteger getAmountOut(Address tokenIn, Address tokenOut, BigInteger amountIn){
+
+        BigInteger reserveIn  = reserves[indexOf(tokenIn)];
+        BigInteger reserveOut = reserves[indexOf(tokenOut)];
+
+        require(amountIn.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+        require(reserveIn.compareTo(BigInteger.ZERO) > 0 && reserveOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        return NulswapMath.getAmountOut(amountIn, reserveIn, reserveOut);
+    }
+
+    /**
+     * Input amount, fee included, needed for an output between two pool tokens
+     *
+     * @param tokenIn Input Token
+     * @param tokenOut Output Token
+     * @param amountOut Output amount
+     * */
+    @View
+    public BigInteger getAmountIn(Address tokenIn, Address tokenOut, BigInteger amountOut){
+
+        BigInteger reserveIn  = reserves[indexOf(tokenIn)];
+        BigInteger reserveOut = reserves[indexOf(tokenOut)];
+
+        require(amountOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(reserveIn.compareTo(BigInteger.ZERO) > 0 && amountOut.compareTo(reserveOut) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        return NulswapMath.getAmountIn(amountOut, reserveIn, reserveOut);
+    }
+
+    /**
+     * Update reserves
+     *
+     * @param newReserves New reserves, same order as tokens
+     * */
+    private void _update(BigInteger[] newReserves){
+
+        for (int i = 0; i < tokens.length; i++) {
+            require(newReserves[i].compareTo(NulswapMath.MAX_UINT112) <= 0, "NulswapV3: OVERFLOW");
+        }
+        reserves = newReserves;
+        emit(new SyncEvent(joinAmounts(reserves)));
+    }
+
+    /**
+     * Mint Liquidity
+     *
+     * @param to Address that receive the ownerhsip of the liquidity
+     *
+     * @dev The first deposit mints the geometric mean of the amounts, later
+     *      ones mint pro-rata to the scarcest amount, like NulswapPair
+     * */
+    public BigInteger mint(Address to) {
+
+        lock();
+
+        BigInteger[] tokenBalances = readBalances();
+        BigInteger[] amounts       = new BigInteger[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            amounts[i] = tokenBalances[i].subtract(reserves[i]);
+        }
+
+        BigInteger liquidity;
+        if (totalSupply.compareTo(BigInteger.ZERO) == 0) {
+            BigInteger product = BigInteger.ONE;
+            for (int i = 0; i < tokens.length; i++) {
+                require(amounts[i].compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+                product = product.multiply(amounts[i]);
+            }
+            liquidity = rootN(product, tokens.length).subtract(MINIMUM_LIQUIDITY);
+            _mint(BURNER_ADDR, MINIMUM_LIQUIDITY); // permanently lock the first MINIMUM_LIQUIDITY tokens
+        } else {
+            liquidity = NulswapMath.mulDiv(amounts[0], totalSupply, reserves[0]);
+            for (int i = 1; i < tokens.length; i++) {
+                liquidity = NulswapMath.min(liquidity, NulswapMath.mulDiv(amounts[i], totalSupply, reserves[i]));
+            }
+        }
+
+        require(liquidity.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+        _mint(to, liquidity);
+
+        _update(tokenBalances);
+
+        emit(new MintEvent(Msg.sender(), joinAmounts(amounts)));
+
+        unlock();
+
+        return liquidity;
+    }
+
+    /**
+     * Burn Liquidity sent to the pool, paying out every token pro-rata
+     *
+     * @param to Address that receives the tokens
+     *
+     * @return amounts paid, same order as tokens
+     * */
+    public String burn(Address to) {
+
+        lock();
+
+        BigInteger[] tokenBalances = readBalances();
+        BigInteger liquidity       = balanceOf(Msg.address());
+        BigInteger[] amounts       = new BigInteger[tokens.length];
+
+        for (int i = 0; i < tokens.length; i++) {
+            amounts[i] = liquidity.multiply(tokenBalances[i]).divide(totalSupply); // using balances ensures pro-rata distribution
+            require(amounts[i].compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_BURNED");
+        }
+        _burn(Msg.address(), liquidity);
+
+        for (int i = 0; i < tokens.length; i++) {
+            safeTransfer(tokens[i], to, amounts[i]);
+            tokenBalances[i] = tokenBalances[i].subtract(amounts[i]);
+        }
+
+        _update(tokenBalances);
+        emit(new BurnEvent(Msg.sender(), joinAmounts(amounts), to));
+
+        unlock();
+
+        return joinAmounts(amounts);
+    }
+
+    /**
+     * Swap between two pool tokens
+     *
+     * @param tokenIn Input Token, already sent to the pool
+     * @param tokenOut Output Token
+     * @param amountOut Output amount
+     * @param to Receiver Address
+     *
+     * @dev Only the two balances involved change, so keeping their product
+     *      keeps the product of all reserves.
+     *      This low-level function should be called from a contract which
+     *      performs important safety checks
+     * */
+    public void swap(Address tokenIn, Address tokenOut, BigInteger amountOut, Address to) {
+
+        // Lock Contract
+        lock();
+
+        int i = indexOf(tokenIn);
+        int j = indexOf(tokenOut);
+        require(i != j, "NulswapV3: IDENTICAL_ADDRESSES");
+
+        BigInteger reserveIn  = reserves[i];
+        BigInteger reserveOut = reserves[j];
+
+        require(amountOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(amountOut.compareTo(reserveOut) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        require(indexes.get(to) == null, "NulswapV3: INVALID_TO");
+
+        safeTransfer(tokenOut, to, amountOut); // optimistically transfer tokens
+
+        BigInteger balanceIn  = safeBalanceOf(tokenIn, Msg.address());
+        BigInteger balanceOut = safeBalanceOf(tokenOut, Msg.address());
+
+        BigInteger amountIn = balanceIn.subtract(reserveIn);
+        require(amountIn.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+
+        BigInteger balanceInAdjusted  = balanceIn.multiply(NulswapMath.FEE_DENOMINATOR).subtract(amountIn.multiply(NulswapMath.FEE_AMOUNT));
+        BigInteger balanceOutAdjusted = balanceOut.multiply(NulswapMath.FEE_DENOMINATOR);
+        require(balanceInAdjusted.multiply(balanceOutAdjusted).compareTo(reserveIn.multiply(reserveOut).multiply(NulswapMath.FEE_DENOMINATOR2)) >= 0, "NulswapV3: K");
+
+        BigInteger[] newReserves = reserves.clone();
+        newReserves[i]           = balanceIn;
+        newReserves[j]           = balanceOut;
+        _update(newReserves);
+
+        emit(new SwapEvent(Msg.sender(), tokenIn, tokenOut, amountIn, amountOut, to));
+
+        unlock();
+    }
+
+    /**
+     *  Force balances to match reserves
+     *
+     * @param to Address that will receive the excess
+     * */
+    public void skim(Address to){
+
+        lock();
+
+        for (int i = 0; i < tokens.length; i++) {
+            safeTransfer(tokens[i], to, safeBalanceOf(tokens[i], Msg.address()).subtract(reserves[i]));
+        }
+
+        unlock();
+    }
+
+    /**
+     * Force reserves to match balances
+     *
+     * */
+    public void sync(){
+
+        lock();
+
+        _update(readBalances());
+
+        unlock();
+    }
+
+    private BigInteger[] readBalances(){
+        BigInteger[] tokenBalances = new BigInteger[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            tokenBalances[i] = safeBalanceOf(tokens[i], Msg.address());
+        }
+        return tokenBalances;
+    }
+
+    private String joinAmounts(BigInteger[] amounts){
+        StringBuilder sb = new StringBuilder(amounts[0].toString());
+        for (int i = 1; i < amounts.length; i++) {
+            sb.append(",").append(amounts[i]);
+        }
+        return sb.toString();
+    }
+
+    private void _mint(@Required Address recipient, @Required BigInteger amount){
+        totalSupply = totalSupply.add(amount);
+        addBalance(recipient, amount);
+        emit(new TransferEvent(null, recipient, amount));
+    }
+
+    private void _burn(@Required Address recipient, @Required BigInteger amount){
+        subtractBalance(recipient, amount);
+        totalSupply = totalSupply.subtract(amount);
+        emit(new TransferEvent(recipient, null, amount));
+    }
+
+    private BigInteger safeBalanceOf(@Required Address token, @Required Address account){
+        String[][] argsM = new String[][]{new String[]{account.toString()}};
+        return new BigInteger(token.callWithReturnValue("balanceOf", "", argsM, BigInteger.ZERO));
+    }
+
+    private void safeTransfer(@Required Address token, @Required Address recipient, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transfer", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: Failed to transfer");
+    }
+
+    // **** LP TOKEN ****
+
+    @Override
+    @View
+    public String name() {
+        return LP_NAME;
+    }
+
+    @Override
+    @View
+    public String symbol() {
+        return LP_SYMBOL;
+    }
+
+    @Override
+    @View
+    public int decimals() {
+        return LP_DECIMALS;
+    }
+
+    @Override
+    @View
+    public BigInteger totalSupply() {
+        return totalSupply;
+    }
+
+    @Override
+    @View
+    public BigInteger balanceOf(@Required Address owner) {
+        require(owner != null);
+        BigInteger balance = balances.get(owner);
+        if (balance == null) {
+            balance = BigInteger.ZERO;
+        }
+        return balance;
+    }
+
+    @Override
+    @View
+    public BigInteger allowance(@Required Address owner, @Required Address spender) {
+        Map<Address, BigInteger> ownerAllowed = allowed.get(owner);
+        if (ownerAllowed == null) {
+            return BigInteger.ZERO;
+        }
+        BigInteger value = ownerAllowed.get(spender);
+        if (value == null) {
+            value = BigInteger.ZERO;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean transfer(@Required Address to, @Required BigInteger value) {
+        subtractBalance(Msg.sender(), value);
+        addBalance(to, value);
+        emit(new TransferEvent(Msg.sender(), to, value));
+        return true;
+    }
+
+    @Override
+    public boolean transferFrom(@Required Address from, @Required Address to, @Required BigInteger value) {
+        subtractAllowed(from, Msg.sender(), value);
+        subtractBalance(from, value);
+        addBalance(to, value);
+        emit(new TransferEvent(from, to, value));
+        return true;
+    }
+
+    @Override
+    public boolean approve(@Required Address spender, @Required BigInteger value) {
+        setAllowed(Msg.sender(), spender, value);
+        emit(new ApprovalEvent(Msg.sender(), spender, value));
+        return true;
+    }
+
+    private void subtractAllowed(Address address1, Address address2, BigInteger value) {
+        BigInteger allowance = allowance(address1, address2);
+        check(allowance, value, "Insufficient approved token");
+        setAllowed(address1, address2, allowance.subtract(value));
+    }
+
+    private void setAllowed(Address address1, Address address2, BigInteger value) {
+        check(value);
+        Map<Address, BigInteger> address1Allowed = allowed.get(address1);
+        if (address1Allowed == null) {
+            address1Allowed = new HashMap<Address, BigInteger>();
+            allowed.put(address1, address1Allowed);
+        }
+        address1Allowed.put(address2, value);
+    }
+
+    private void addBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(value);
+        balances.put(address, balance.add(value));
+    }
+
+    private void subtractBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(balance, value, "Insufficient balance of token.");
+        balances.put(address, balance.subtract(value));
+    }
+
+    private void check(BigInteger value) {
+        require(value != null && value.compareTo(BigInteger.ZERO) >= 0);
+    }
+
+    private void check(BigInteger value1, BigInteger value2, String msg) {
+        check(value1);
+        check(value2);
+        require(value1.compareTo(value2) >= 0, msg);
+    }
+
+    @View
+    public Address getFactory(){
+        return factory;
+    }
+
+    @View
+    public Address getLP(){
+        return Msg.address();
+    }
+
+    /**
+     * Pool tokens, comma separated
+     *
+     * */
+    @View
+    public String getTokens(){
+        StringBuilder sb = new StringBuilder(tokens[0].toString());
+        for (int i = 1; i < tokens.length; i++) {
+            sb.append(",").append(tokens[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reserves, same order as getTokens
+     *
+     * */
+    @View
+    public String getReserves(){
+        return joinAmounts(reserves);
+    }
+
+    @View
+    public Integer getUnlocked(){
+        return unlocked;
+    }
+
+    class SwapEvent implements Event {
+
+        private Address sender;
+        private Address tokenIn;
+        private Address tokenOut;
+        private BigInteger amountIn;
+        private BigInteger amountOut;
+        private Address to;
+
+        public SwapEvent(@Required Address sender, @Required Address tokenIn, @Required Address tokenOut, @Required BigInteger amountIn, @Required BigInteger amountOut, @Required Address to) {
+            this.sender    = sender;
+            this.tokenIn   = tokenIn;
+            this.tokenOut  = tokenOut;
+            this.amountIn  = amountIn;
+            this.amountOut = amountOut;
+            this.to        = to;
+        }
+
+    }
+
+    class MintEvent implements Event {
+
+        private Address sender;
+        private String amounts;
+
+        public MintEvent(@Required Address sender, @Required String amounts) {
+            this.sender  = sender;
+            this.amounts = amounts;
+        }
+
+    }
+
+    class BurnEvent implements Event {
+
+        private Address sender;
+        private String amounts;
+        private Address to;
+
+        public BurnEvent(@Required Address sender, @Required String amounts, @Required Address to) {
+            this.sender  = sender;
+            this.amounts = amounts;
+            this.to      = to;
+        }
+    }
+
+    class SyncEvent implements Event {
+
+        private String reserves;
+
+        public SyncEvent(@Required String reserves) {
+            this.reserves = reserves;
+        }
+
+    }
+}
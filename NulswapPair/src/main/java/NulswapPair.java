@@ -27,17 +27,15 @@ import static io.nuls.contract.sdk.Utils.require;
  * @author  Pedro G. S. Ferreira
  *
  */
-public class NulswapPair implements Contract{
+public class NulswapPair implements Contract, Token {
 
     /** Constants **/
     private static BigInteger MINIMUM_LIQUIDITY = BigInteger.valueOf(1_000);                            // Minimum Liquidity
-    private static BigInteger Q112              = BigInteger.valueOf(2).pow(112);                       // 2^112
-    private static BigInteger Q112_1             = Q112.subtract(BigInteger.ONE);                       // 2^112 - 1
-    private static BigInteger Q32              = BigInteger.valueOf(2).pow(32);                       // 2^32
+    private static final int OBSERVATION_CAPACITY = 64;                                                 // Price observations kept for observe
 
-    private static BigInteger THREE          = BigInteger.valueOf(3);                          // Three
-    private static BigInteger TWO            = BigInteger.valueOf(2);                          // Two
-    private static BigInteger ONE_THOUSAND   = BigInteger.valueOf(1000);                       // One Thousand
+    private static final String LP_NAME      = "Nulswap_lp";                                   // LP Token Name
+    private static final String LP_SYMBOL    = "NSWAP_LP";                                     // LP Token Symbol
+    private static final int LP_DECIMALS     = 8;                                              // LP Token Decimals
 
     private final Address BURNER_ADDR; // Burner Address
     private final Address lpTokenCopy; // lpTokenCopy Address
@@ -46,10 +44,25 @@ public class NulswapPair implements Contract{
     private Address lp;                         // Lp Token
     private Address token0;                     // Pair Token0
     private Address token1;                     // Pair Token1
-
-    private BigInteger reserve0;                // Resserve Token0
-    private BigInteger reserve1;                // Reserve Token1
-    private BigInteger blockTimestampLast;      // Last time pair updated
+    private Address feeTo;                      // Cached factory feeTo
+    private int feeToEpoch;                     // Factory feeTo epoch of the cached value
+    private Address router;                     // Router trusted to notify transferred amounts
+    private boolean trusted;                    // Both tokens marked standard by the factory
+    private boolean compactEvents;              // Swaps emit one SwapSyncEvent instead of SwapEvent and SyncEvent
+
+    private Observation[] observations = new Observation[OBSERVATION_CAPACITY];                         // Price accumulator ring buffer
+    private int observationIndex;               // Slot of the latest observation
+    private int observationCount;               // Slots written so far, up to OBSERVATION_CAPACITY
+
+    private BigInteger volume0 = BigInteger.ZERO;       // Cumulative token0 swapped, in and out
+    private BigInteger volume1 = BigInteger.ZERO;       // Cumulative token1 swapped, in and out
+    private BigInteger swapFees0 = BigInteger.ZERO;     // Cumulative token0 swap fees, the protocol's share included
+    private BigInteger swapFees1 = BigInteger.ZERO;     // Cumulative token1 swap fees, the protocol's share included
+    private long swapCount;                             // Number of swaps
+    private long mintCount;                             // Number of mints
+    private long burnCount;                             // Number of burns
+
+    private BigInteger packedReserves;          // reserve0 | reserve1 << 112 | blockTimestampLast << 224
 
     private BigInteger price0CumulativeLast;    // Accumulative Token0 Price
     private BigInteger price1CumulativeLast;    // Accumulative Token1 Price
@@ -57,6 +70,11 @@ public class NulswapPair implements Contract{
 
     private int unlocked = 1;                   // Lock Status | 1 - unlocked 0 - locked
 
+    private boolean lpInPair;                   // LP balances kept by the pair itself instead of a NulswapLPToken
+    private BigInteger totalSupply = BigInteger.ZERO;                                                   // LP Total Supply when lpInPair
+    private Map<Address, BigInteger> balances = new HashMap<Address, BigInteger>();                     // LP Balances when lpInPair
+    private Map<Address, Map<Address, BigInteger>> allowed = new HashMap<Address, Map<Address, BigInteger>>(); // LP Allowances when lpInPair
+
     /**
      * Lock Contract
      * @dev Essential to protect against reentrancy attacks
@@ -82,12 +100,10 @@ public class NulswapPair implements Contract{
     public NulswapPair() {
 
         factory              = Msg.sender();
-        reserve0             = BigInteger.ZERO;
-        reserve1             = BigInteger.ZERO;
+        packedReserves       = BigInteger.ZERO;
         price0CumulativeLast =  BigInteger.ZERO;
         price1CumulativeLast =  BigInteger.ZERO;
         kLast                = BigInteger.ZERO;
-        blockTimestampLast   = BigInteger.ZERO;
         if (Msg.sender().toString().startsWith("NULS")) {
             BURNER_ADDR = new Address("NULSd6HgsVSzCAJwLYBjvfP3NwbKCvV525GWn");
             lpTokenCopy = new Address("tNULSeBaN8ZgACDuQJB6xFwunCV8P9DfGLLRFX");//TODO deploy on mainNet
@@ -102,71 +118,173 @@ public class NulswapPair implements Contract{
      *
      * @param _token0 Token0 Address
      * @param _token1 Token1 Address
+     * @param _lpInPair Whether the pair itself is the lp token
+     * @param _feeTo Current factory feeTo
+     * @param _feeToEpoch Current factory feeTo epoch
      *
-     * @dev Creates a new lp token that will be associated with the pair
+     * @dev Either the pair keeps the lp balances itself, saving the cross-contract
+     *      calls to the lp token on every mint and burn, or a new lp token is
+     *      deployed and associated with the pair
      * */
-    public void initialize(Address _token0, Address _token1){
+    public void initialize(Address _token0, Address _token1, Boolean _lpInPair, Address _feeTo, Integer _feeToEpoch){
 
         require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN"); // sufficient check
 
-        token0 = _token0;
-        token1 = _token1;
+        token0   = _token0;
+        token1   = _token1;
+        lpInPair = _lpInPair != null && _lpInPair;
+        feeTo      = _feeTo;
+        feeToEpoch = _feeToEpoch;
 
-        String _asset = Utils.deploy(new String[]{ "lp", "i"+ BigInteger.valueOf(Block.timestamp()).toString()}, lpTokenCopy, new String[]{"Nulswap_lp", "NSWAP_LP", "8"});
-        this.lp = new Address(_asset);
+        _writeObservation(Block.timestamp());
+
+        if (lpInPair) {
+            this.lp = Msg.address();
+        } else {
+            String _asset = Utils.deploy(new String[]{ "lp", "i"+ BigInteger.valueOf(Block.timestamp()).toString()}, lpTokenCopy, new String[]{LP_NAME, LP_SYMBOL, String.valueOf(LP_DECIMALS)});
+            this.lp = new Address(_asset);
+        }
     }
 
     /**
-     *  Encode a uint112 as a UQ112x112
+     * Update reserves and, on the first call per block, price accumulators
      *
-     * @param y Amount to encode
+     * @param balance0 New reserve0
+     * @param balance1 New reserve1
+     * @param _reserve0 Old reserve0
+     * @param _reserve1 Old reserve1
      * */
-    private BigInteger encode(BigInteger y){
-        return y.multiply(Q112);
+    private void _update(BigInteger balance0, BigInteger balance1, BigInteger _reserve0, BigInteger _reserve1){
+        _update(balance0, balance1, _reserve0, _reserve1, true);
     }
 
     /**
-     * Divide a UQ112x112 by a uint112, returning a UQ112x112
+     * Update reserves, optionally leaving the SyncEvent to the caller
      *
-     * @param x Amount to divide
-     * @param y Amount to be divided by
+     * @param emitSync False when the caller emits the reserves in its own event
      * */
-    private BigInteger uqdiv(BigInteger x, BigInteger y){
-        return x.divide(y);
+    private void _update(BigInteger balance0, BigInteger balance1, BigInteger _reserve0, BigInteger _reserve1, boolean emitSync){
+
+        require(balance0.compareTo(NulswapMath.MAX_UINT112) <= 0 && balance1.compareTo(NulswapMath.MAX_UINT112) <= 0, "NulswapV3: OVERFLOW");
+
+        BigInteger blockTimestamp   = BigInteger.valueOf(Block.timestamp()).remainder(NulswapMath.Q32);
+        BigInteger timeElapsed      = blockTimestamp.subtract(blockTimestampLast());
+
+        if (timeElapsed.compareTo(BigInteger.ZERO) > 0 && _reserve0.compareTo(BigInteger.ZERO) != 0 && _reserve1.compareTo(BigInteger.ZERO) != 0) {
+
+            price0CumulativeLast = price0CumulativeLast.add(NulswapMath.uqdiv(NulswapMath.encode(_reserve1), _reserve0).multiply(timeElapsed));
+            price1CumulativeLast = price1CumulativeLast.add(NulswapMath.uqdiv(NulswapMath.encode(_reserve0), _reserve1).multiply(timeElapsed));
+
+        }
+
+        _setReserves(balance0, balance1, blockTimestamp);
+        _writeObservation(Block.timestamp());
+        if (emitSync) emit(new SyncEvent(balance0, balance1));
     }
 
     /**
-     * Update reserves and, on the first call per block, price accumulators
+     * Reserve of token0, the lowest 112 bits of packedReserves
      *
-     * @param balance0 New reserve0
-     * @param balance1 New reserve1
-     * @param _reserve0 Old reserve0
-     * @param _reserve1 Old reserve1
      * */
-    private void _update(BigInteger balance0, BigInteger balance1, BigInteger _reserve0, BigInteger _reserve1){
+    private BigInteger reserve0(){
+        return packedReserves.and(NulswapMath.MAX_UINT112);
+    }
+
+    /**
+     * Reserve of token1, bits 112 to 223 of packedReserves
+     *
+     * */
+    private BigInteger reserve1(){
+        return packedReserves.shiftRight(112).and(NulswapMath.MAX_UINT112);
+    }
 
-        require(balance0.compareTo(Q112_1) <= 0 && balance1.compareTo(Q112_1) <= 0, "NulswapV3: OVERFLOW");
+    /**
+     * Last update timestamp modulo 2^32, bits 224 and up of packedReserves
+     *
+     * */
+    private BigInteger blockTimestampLast(){
+        return packedReserves.shiftRight(224);
+    }
+
+    /**
+     * Store reserves and timestamp in a single field
+     *
+     * @dev Reserves must fit 112 bits and the timestamp 32 bits, _update checks both.
+     *      One field of about 32 bytes is written instead of three of about 27 bytes together
+     * */
+    private void _setReserves(BigInteger _reserve0, BigInteger _reserve1, BigInteger _blockTimestampLast){
+        packedReserves = _reserve0.or(_reserve1.shiftLeft(112)).or(_blockTimestampLast.shiftLeft(224));
+    }
+
+    /**
+     * Record the price accumulators, at most once per block
+     *
+     * @param timestamp Current block timestamp
+     * */
+    private void _writeObservation(long timestamp){
 
-        BigInteger blockTimestamp   = BigInteger.valueOf(Block.timestamp()).remainder(Q32);
-        BigInteger timeElapsed      = blockTimestamp.subtract(blockTimestampLast);
+        if (observationCount > 0 && observations[observationIndex].timestamp == timestamp)
+            return;
 
-        if (timeElapsed.compareTo(BigInteger.ZERO) > 0 && _reserve0.compareTo(BigInteger.ZERO) != 0 && _reserve1.compareTo(BigInteger.ZERO) != 0) {
+        observationIndex = observationCount == 0 ? 0 : (observationIndex + 1) % OBSERVATION_CAPACITY;
+        observations[observationIndex] = new Observation(timestamp, price0CumulativeLast, price1CumulativeLast);
 
-            price0CumulativeLast = price0CumulativeLast.add(uqdiv(encode(_reserve1), _reserve0).multiply(timeElapsed));
-            price1CumulativeLast = price1CumulativeLast.add(uqdiv(encode(_reserve0), _reserve1).multiply(timeElapsed));
+        if (observationCount < OBSERVATION_CAPACITY)
+            observationCount++;
+    }
 
+    /**
+     * Price accumulators at a past timestamp, interpolated between observations
+     *
+     * @param target Timestamp, not older than the oldest observation
+     * */
+    private BigInteger[] _cumulativesAt(long target){
+
+        Observation last    = observations[observationIndex];
+        BigInteger reserve0 = reserve0();
+        BigInteger reserve1 = reserve1();
+
+        // after the last observation prices stayed at the current reserves
+        if (target >= last.timestamp) {
+            BigInteger elapsed = BigInteger.valueOf(target - last.timestamp);
+            if (elapsed.signum() == 0 || reserve0.signum() == 0 || reserve1.signum() == 0)
+                return new BigInteger[]{last.price0Cumulative, last.price1Cumulative};
+            return new BigInteger[]{
+                    last.price0Cumulative.add(NulswapMath.uqdiv(NulswapMath.encode(reserve1), reserve0).multiply(elapsed)),
+                    last.price1Cumulative.add(NulswapMath.uqdiv(NulswapMath.encode(reserve0), reserve1).multiply(elapsed))
+            };
+        }
+
+        int oldest = observationCount < OBSERVATION_CAPACITY ? 0 : (observationIndex + 1) % OBSERVATION_CAPACITY;
+        require(target >= observations[oldest].timestamp, "NulswapV3: OLD");
+
+        // binary search in chronological order for the last observation at or before target
+        int lo = 0, hi = observationCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (observations[(oldest + mid) % OBSERVATION_CAPACITY].timestamp <= target)
+                lo = mid;
+            else
+                hi = mid - 1;
         }
 
-        reserve0            = balance0;
-        reserve1            = balance1;
-        blockTimestampLast  = blockTimestamp;
-        emit(new SyncEvent(reserve0, reserve1));
+        Observation before = observations[(oldest + lo) % OBSERVATION_CAPACITY];
+        if (before.timestamp == target)
+            return new BigInteger[]{before.price0Cumulative, before.price1Cumulative};
+
+        Observation after  = observations[(oldest + lo + 1) % OBSERVATION_CAPACITY];
+        BigInteger elapsed = BigInteger.valueOf(target - before.timestamp);
+        BigInteger span    = BigInteger.valueOf(after.timestamp - before.timestamp);
+
+        return new BigInteger[]{
+                before.price0Cumulative.add(NulswapMath.mulDiv(after.price0Cumulative.subtract(before.price0Cumulative), elapsed, span)),
+                before.price1Cumulative.add(NulswapMath.mulDiv(after.price1Cumulative.subtract(before.price1Cumulative), elapsed, span))
+        };
     }
 
     // if fee is on, mint liquidity equivalent to 1/6th of the growth in sqrt(k)
     private boolean _mintFee(BigInteger _reserve0, BigInteger _reserve1) {
 
-        Address feeTo = getFeeTo();//IUniswapV2Factory(factory).feeTo();
         boolean feeOn = !feeTo.equals(BURNER_ADDR);
         BigInteger _kLast = kLast;
 
@@ -175,12 +293,12 @@ public class NulswapPair implements Contract{
 
             if (_kLast.compareTo(BigInteger.ZERO) != 0) {
 
-                BigInteger rootK     = sqrt(_reserve0.multiply(_reserve1));
-                BigInteger rootKLast = sqrt(_kLast);
+                BigInteger rootK     = NulswapMath.sqrt(_reserve0.multiply(_reserve1));
+                BigInteger rootKLast = NulswapMath.sqrt(_kLast);
 
                 if (rootK.compareTo(rootKLast) > 0) {
 
-                    BigInteger numerator    = safeTotalSupply(lp).multiply(rootK.subtract(rootKLast));
+                    BigInteger numerator    = lpTotalSupply().multiply(rootK.subtract(rootKLast));
                     BigInteger denominator  = rootK.multiply(BigInteger.valueOf(5)).add(rootKLast);
                     BigInteger liquidity    = numerator.divide(denominator);
 
@@ -197,61 +315,56 @@ public class NulswapPair implements Contract{
     }
 
     /**
-     * Return the lowest amount
+     * Mint Liquidity
      *
-     * @param x The first amount
-     * @param y The second amount
+     * @param to Address that receive the ownerhsip of the liquidity
      * */
-    private BigInteger min(BigInteger x, BigInteger y){
-        return x.compareTo(y) < 0 ? x : y;
+    public BigInteger mint(Address to) {
+        return _mintLiquidity(to, null, null);
     }
 
     /**
-     * Squares value
+     * Mint Liquidity for amounts the router already transferred
+     *
+     * @param amount0 Amount of token0 sent to the pair
+     * @param amount1 Amount of token1 sent to the pair
+     * @param to Address that receive the ownerhsip of the liquidity
      *
-     * @param y Amount to be squared
+     * @dev The amounts are only trusted for standard tokens and the factory router,
+     *      otherwise balances are read as in mint
      * */
-    private BigInteger sqrt(BigInteger y){
-
-        BigInteger z = BigInteger.ZERO;
-        if (y.compareTo(THREE) > 0) {
-            z = y;
-            BigInteger x = y.divide(TWO).add(BigInteger.ONE);
-            while (x.compareTo(z) < 0) {
-                z = x;
-                x = (y.divide(x).add(x)).divide(TWO);
-            }
-        } else if (y.compareTo(BigInteger.ZERO) != 0) {
-            z = BigInteger.ONE;
-        }
-        return z;
-
+    public BigInteger mintNotified(BigInteger amount0, BigInteger amount1, Address to) {
+        return _mintLiquidity(to, amount0, amount1);
     }
 
-    /**
-     * Mint Liquidity
-     *
-     * @param to Address that receive the ownerhsip of the liquidity
-     * */
-    public BigInteger mint(Address to) {
+    private BigInteger _mintLiquidity(Address to, BigInteger notified0, BigInteger notified1) {
 
         lock();
 
-        BigInteger balance0     = safeBalanceOf(token0, Msg.address()); //IERC20(token0).balanceOf(address(this));
-        BigInteger balance1     = safeBalanceOf(token1, Msg.address()); //IERC20(token1).balanceOf(address(this));
+        BigInteger reserve0     = reserve0();
+        BigInteger reserve1     = reserve1();
+
+        BigInteger balance0, balance1;
+        if (notified0 != null && acceptsNotified()) {
+            balance0 = reserve0.add(notified0);
+            balance1 = reserve1.add(notified1);
+        } else {
+            balance0 = safeBalanceOf(token0, Msg.address()); //IERC20(token0).balanceOf(address(this));
+            balance1 = safeBalanceOf(token1, Msg.address()); //IERC20(token1).balanceOf(address(this));
+        }
 
         BigInteger amount0      = balance0.subtract(reserve0);
         BigInteger amount1      = balance1.subtract(reserve1);
 
         boolean feeOn           = _mintFee(reserve0, reserve1);
-        BigInteger _totalSupply = safeTotalSupply(lp); // Must be defined here since totalSupply can update in _mintFee
+        BigInteger _totalSupply = lpTotalSupply(); // Must be defined here since totalSupply can update in _mintFee
 
         BigInteger liquidity;
         if (_totalSupply.compareTo(BigInteger.ZERO) == 0) {
-            liquidity = sqrt(amount0.multiply(amount1)).subtract(MINIMUM_LIQUIDITY);
+            liquidity = NulswapMath.sqrt(amount0.multiply(amount1)).subtract(MINIMUM_LIQUIDITY);
             _mint(BURNER_ADDR, MINIMUM_LIQUIDITY); // permanently lock the first MINIMUM_LIQUIDITY tokens
         } else {
-            liquidity = min(amount0.multiply(_totalSupply).divide(reserve0), amount1.multiply(_totalSupply).divide(reserve1));
+            liquidity = NulswapMath.min(amount0.multiply(_totalSupply).divide(reserve0), amount1.multiply(_totalSupply).divide(reserve1));
         }
 
         require(liquidity.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
@@ -259,8 +372,9 @@ public class NulswapPair implements Contract{
 
         _update(balance0, balance1, reserve0, reserve1);
 
-        if (feeOn) kLast = reserve0.multiply(reserve1); // reserve0 and reserve1 are up-to-date
+        if (feeOn) kLast = reserve0().multiply(reserve1()); // reserve0 and reserve1 are up-to-date
 
+        mintCount++;
         emit(new MintEvent(Msg.sender(), amount0, amount1));
 
         unlock();
@@ -272,12 +386,16 @@ public class NulswapPair implements Contract{
 
         lock();
 
-        BigInteger balance0     = safeBalanceOf(token0, Msg.address()); //IERC20(_token0).balanceOf(address(this));
-        BigInteger balance1     = safeBalanceOf(token1, Msg.address()); //IERC20(_token1).balanceOf(address(this));
-        BigInteger liquidity    = safeBalanceOf(lp, Msg.address());
+        BigInteger reserve0     = reserve0();
+        BigInteger reserve1     = reserve1();
+
+        // standard tokens are tracked by the reserves, anything above them is left for skim
+        BigInteger balance0     = trusted ? reserve0 : safeBalanceOf(token0, Msg.address()); //IERC20(_token0).balanceOf(address(this));
+        BigInteger balance1     = trusted ? reserve1 : safeBalanceOf(token1, Msg.address()); //IERC20(_token1).balanceOf(address(this));
+        BigInteger liquidity    = lpBalanceOf(Msg.address());
 
         boolean feeOn           = _mintFee(reserve0, reserve1);
-        BigInteger _totalSupply = safeTotalSupply(lp); // Must be defined here since totalSupply can update in _mintFee
+        BigInteger _totalSupply = lpTotalSupply(); // Must be defined here since totalSupply can update in _mintFee
         BigInteger amount0      = liquidity.multiply(balance0).divide(_totalSupply); // using balances ensures pro-rata distribution
         BigInteger amount1      = liquidity.multiply(balance1).divide(_totalSupply); // using balances ensures pro-rata distribution
 
@@ -287,11 +405,17 @@ public class NulswapPair implements Contract{
         safeTransfer(token0, to, amount0);
         safeTransfer(token1, to, amount1);
 
-        balance0 = safeBalanceOf(token0, Msg.address()); //IERC20(_token0).balanceOf(address(this));
-        balance1 = safeBalanceOf(token1, Msg.address()); //IERC20(_token1).balanceOf(address(this));
+        if (trusted) {
+            balance0 = balance0.subtract(amount0);
+            balance1 = balance1.subtract(amount1);
+        } else {
+            balance0 = safeBalanceOf(token0, Msg.address()); //IERC20(_token0).balanceOf(address(this));
+            balance1 = safeBalanceOf(token1, Msg.address()); //IERC20(_token1).balanceOf(address(this));
+        }
 
         _update(balance0, balance1, reserve0, reserve1);
-        if (feeOn) kLast = reserve0.multiply(reserve1); // reserve0 and reserve1 are up-to-date
+        if (feeOn) kLast = reserve0().multiply(reserve1()); // reserve0 and reserve1 are up-to-date
+        burnCount++;
         emit(new BurnEvent(Msg.sender(), amount0, amount1, to));
 
         unlock();
@@ -301,10 +425,49 @@ public class NulswapPair implements Contract{
 
     // this low-level function should be called from a contract which performs important safety checks
     public void swap(BigInteger amount0Out, BigInteger amount1Out, Address to) {
+        _swap(amount0Out, amount1Out, to, null, null, null);
+    }
+
+    /**
+     * Flash swap, send the output first and call the receiver before checking K
+     *
+     * @param amount0Out Amount of token0 to receive
+     * @param amount1Out Amount of token1 to receive
+     * @param to Receiver contract, must implement nulswapCall(sender, amount0Out, amount1Out, data)
+     * @param data Opaque data passed back to the receiver
+     *
+     * @dev The receiver must send the input, or return the output plus fee,
+     *      to the pair before nulswapCall returns
+     * */
+    public void flashSwap(BigInteger amount0Out, BigInteger amount1Out, Address to, String data) {
+        require(data != null && data.length() > 0, "NulswapV3: EMPTY_DATA");
+        _swap(amount0Out, amount1Out, to, null, null, data);
+    }
+
+    /**
+     * Swap with the input amounts the router already transferred
+     *
+     * @param amount0In Amount of token0 sent to the pair
+     * @param amount1In Amount of token1 sent to the pair
+     * @param amount0Out Amount of token0 to receive
+     * @param amount1Out Amount of token1 to receive
+     * @param to Receiver Address
+     *
+     * @dev The amounts are only trusted for standard tokens and the factory router,
+     *      otherwise balances are read as in swap
+     * */
+    public void swapNotified(BigInteger amount0In, BigInteger amount1In, BigInteger amount0Out, BigInteger amount1Out, Address to) {
+        _swap(amount0Out, amount1Out, to, amount0In, amount1In, null);
+    }
+
+    private void _swap(BigInteger amount0Out, BigInteger amount1Out, Address to, BigInteger notified0, BigInteger notified1, String data) {
 
         // Lock Contract
         lock();
 
+        BigInteger reserve0 = reserve0();
+        BigInteger reserve1 = reserve1();
+
         // One of the values must be higher than 0
         require(amount0Out.compareTo(BigInteger.ZERO) > 0 || amount1Out.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
         require(amount0Out.compareTo(reserve0) < 0 && amount1Out.compareTo(reserve1) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
@@ -316,23 +479,43 @@ public class NulswapPair implements Contract{
         if (amount0Out.compareTo(BigInteger.ZERO) > 0) safeTransfer(token0, to, amount0Out); // optimistically transfer tokens
         if (amount1Out.compareTo(BigInteger.ZERO) > 0) safeTransfer(token1, to, amount1Out); // optimistically transfer tokens
 
-        balance0 = safeBalanceOf(token0, Msg.address()); //IERC20(_token0).balanceOf(address(this));
-        balance1 = safeBalanceOf(token1, Msg.address()); //IERC20(_token1).balanceOf(address(this));
+        if (data != null) {
+            String[][] argsM = new String[][]{new String[]{Msg.sender().toString()}, new String[]{amount0Out.toString()}, new String[]{amount1Out.toString()}, new String[]{data}};
+            to.callWithReturnValue("nulswapCall", "", argsM, BigInteger.ZERO);
+        }
+
+        if (notified0 != null && acceptsNotified()) {
+            balance0 = reserve0.add(notified0).subtract(amount0Out);
+            balance1 = reserve1.add(notified1).subtract(amount1Out);
+        } else {
+            balance0 = safeBalanceOf(token0, Msg.address()); //IERC20(_token0).balanceOf(address(this));
+            balance1 = safeBalanceOf(token1, Msg.address()); //IERC20(_token1).balanceOf(address(this));
+        }
 
         BigInteger amount0In = balance0.compareTo(reserve0.subtract(amount0Out)) > 0 ? balance0.subtract((reserve0.subtract(amount0Out))) : BigInteger.ZERO;
         BigInteger amount1In = balance1.compareTo(reserve1.subtract(amount1Out)) > 0 ? balance1.subtract((reserve1.subtract(amount1Out))) : BigInteger.ZERO;
 
         require(amount0In.compareTo(BigInteger.ZERO) > 0 || amount1In.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
 
-        BigInteger balance0Adjusted = balance0.multiply(ONE_THOUSAND).subtract(amount0In.multiply(THREE));
-        BigInteger balance1Adjusted = balance1.multiply(ONE_THOUSAND).subtract(amount1In.multiply(THREE));
+        BigInteger balance0Adjusted = balance0.multiply(NulswapMath.FEE_DENOMINATOR).subtract(amount0In.multiply(NulswapMath.FEE_AMOUNT));
+        BigInteger balance1Adjusted = balance1.multiply(NulswapMath.FEE_DENOMINATOR).subtract(amount1In.multiply(NulswapMath.FEE_AMOUNT));
 
 
-        require((balance0Adjusted.multiply(balance1Adjusted)).compareTo(reserve0.multiply(reserve1).multiply(ONE_THOUSAND.pow(2))) >= 0, "NulswapV3: K");
+        require((balance0Adjusted.multiply(balance1Adjusted)).compareTo(reserve0.multiply(reserve1).multiply(NulswapMath.FEE_DENOMINATOR2)) >= 0, "NulswapV3: K");
 
-        _update(balance0, balance1, reserve0, reserve1);
+        volume0 = volume0.add(amount0In).add(amount0Out);
+        volume1 = volume1.add(amount1In).add(amount1Out);
+        swapFees0 = swapFees0.add(NulswapMath.mulDiv(amount0In, NulswapMath.FEE_AMOUNT, NulswapMath.FEE_DENOMINATOR));
+        swapFees1 = swapFees1.add(NulswapMath.mulDiv(amount1In, NulswapMath.FEE_AMOUNT, NulswapMath.FEE_DENOMINATOR));
+        swapCount++;
 
-        emit(new SwapEvent(Msg.sender(), amount0In, amount1In, amount0Out, amount1Out, to));
+        if (compactEvents) {
+            _update(balance0, balance1, reserve0, reserve1, false);
+            emit(new SwapSyncEvent(Msg.sender(), amount0In, amount1In, amount0Out, amount1Out, to, balance0, balance1));
+        } else {
+            _update(balance0, balance1, reserve0, reserve1);
+            emit(new SwapEvent(Msg.sender(), amount0In, amount1In, amount0Out, amount1Out, to));
+        }
 
         unlock();
     }
@@ -349,8 +532,8 @@ public class NulswapPair implements Contract{
 
         lock();
 
-        safeTransfer(token0, to, safeBalanceOf(token0, Msg.address()).subtract(reserve0) /* IERC20(_token0).balanceOf(address(this)).sub(reserve0)*/);
-        safeTransfer(token1, to, safeBalanceOf(token1, Msg.address()).subtract(reserve1) /*IERC20(_token1).balanceOf(address(this)).sub(reserve1)*/);
+        safeTransfer(token0, to, safeBalanceOf(token0, Msg.address()).subtract(reserve0()) /* IERC20(_token0).balanceOf(address(this)).sub(reserve0)*/);
+        safeTransfer(token1, to, safeBalanceOf(token1, Msg.address()).subtract(reserve1()) /*IERC20(_token1).balanceOf(address(this)).sub(reserve1)*/);
 
         unlock();
     }
@@ -363,30 +546,107 @@ public class NulswapPair implements Contract{
 
         lock();
 
-        _update(safeBalanceOf(token0, Msg.address()),  safeBalanceOf(token1, Msg.address()), reserve0, reserve1);
+        _update(safeBalanceOf(token0, Msg.address()),  safeBalanceOf(token1, Msg.address()), reserve0(), reserve1());
 
         unlock();
     }
 
     /**
-     * Get Address where fee goes
+     * Update the cached feeTo, pushed by the factory
+     *
+     * @param _feeTo New fee receiver
+     * @param _feeToEpoch Factory epoch of the new value
+     * */
+    public void setFeeTo(Address _feeTo, Integer _feeToEpoch){
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN");
+        if (_feeToEpoch > feeToEpoch) {
+            feeTo      = _feeTo;
+            feeToEpoch = _feeToEpoch;
+        }
+    }
+
+    /**
+     * Set the router allowed to notify transfers and whether both tokens are standard
+     *
+     * @param _router Router Address
+     * @param _trusted True when neither token charges transfer fees or rebases
+     *
+     * @dev Pushed by the factory, reserves keep tracking balances either way
+     * */
+    public void setTrust(Address _router, Boolean _trusted){
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN");
+        router  = _router;
+        trusted = _trusted;
+    }
+
+    /**
+     * Switch swaps to the compact SwapSyncEvent
+     *
+     * @param _compactEvents True for one combined event per swap
      *
+     * @dev Pushed by the factory owner
      * */
-    private Address getFeeTo(){
+    public void setCompactEvents(Boolean _compactEvents){
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN");
+        compactEvents = _compactEvents;
+    }
+
+    /**
+     * Whether the amounts notified by the caller can replace balance queries
+     *
+     * */
+    private boolean acceptsNotified(){
+        return trusted && router != null && Msg.sender().equals(router);
+    }
+
+    /**
+     * Pull the factory feeTo when the cached epoch is stale
+     *
+     * @dev Anyone can call it instead of waiting for the factory push.
+     *      While setFeeTo is still paginating through pushFeeTo, pairs not
+     *      reached yet mint the protocol fee to the previous feeTo, keepers
+     *      can close that window by calling this on them
+     * */
+    public void refreshFeeTo(){
         String[][] argsM = new String[][]{};
-        return new Address(factory.callWithReturnValue("getFeeTo", "", argsM, BigInteger.ZERO));
+        String[] state = factory.callWithReturnValue("getFeeToState", "", argsM, BigInteger.ZERO).split(",");
+        int epoch = Integer.parseInt(state[1]);
+        if (epoch > feeToEpoch) {
+            feeTo      = new Address(state[0]);
+            feeToEpoch = epoch;
+        }
     }
 
     private void _mint(@Required Address recipient, @Required BigInteger amount){
+        if (lpInPair) {
+            totalSupply = totalSupply.add(amount);
+            addBalance(recipient, amount);
+            emit(new TransferEvent(null, recipient, amount));
+            return;
+        }
         String[][] argsM =  new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
         lp.callWithReturnValue("_mint", "", argsM, BigInteger.ZERO);
     }
 
     private void _burn(@Required Address recipient, @Required BigInteger amount){
+        if (lpInPair) {
+            subtractBalance(recipient, amount);
+            totalSupply = totalSupply.subtract(amount);
+            emit(new TransferEvent(recipient, null, amount));
+            return;
+        }
         String[][] argsM =  new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
        lp.callWithReturnValue("_burn", "", argsM, BigInteger.ZERO);
     }
 
+    private BigInteger lpTotalSupply(){
+        return lpInPair ? totalSupply : safeTotalSupply(lp);
+    }
+
+    private BigInteger lpBalanceOf(@Required Address account){
+        return lpInPair ? balanceOf(account) : safeBalanceOf(lp, account);
+    }
+
     private BigInteger safeBalanceOf(@Required Address token, @Required Address account){
         String[][] argsM = new String[][]{new String[]{account.toString()}};
         return new BigInteger(token.callWithReturnValue("balanceOf", "", argsM, BigInteger.ZERO));
@@ -403,6 +663,123 @@ public class NulswapPair implements Contract{
         require(b, "NulswapV3: Failed to transfer");
     }
 
+    // **** LP TOKEN ****
+    // only usable when the pair is its own lp token
+
+    @Override
+    @View
+    public String name() {
+        return LP_NAME;
+    }
+
+    @Override
+    @View
+    public String symbol() {
+        return LP_SYMBOL;
+    }
+
+    @Override
+    @View
+    public int decimals() {
+        return LP_DECIMALS;
+    }
+
+    @Override
+    @View
+    public BigInteger totalSupply() {
+        return totalSupply;
+    }
+
+    @Override
+    @View
+    public BigInteger balanceOf(@Required Address owner) {
+        require(owner != null);
+        BigInteger balance = balances.get(owner);
+        if (balance == null) {
+            balance = BigInteger.ZERO;
+        }
+        return balance;
+    }
+
+    @Override
+    @View
+    public BigInteger allowance(@Required Address owner, @Required Address spender) {
+        Map<Address, BigInteger> ownerAllowed = allowed.get(owner);
+        if (ownerAllowed == null) {
+            return BigInteger.ZERO;
+        }
+        BigInteger value = ownerAllowed.get(spender);
+        if (value == null) {
+            value = BigInteger.ZERO;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean transfer(@Required Address to, @Required BigInteger value) {
+        require(lpInPair, "NulswapV3: LP_NOT_IN_PAIR");
+        subtractBalance(Msg.sender(), value);
+        addBalance(to, value);
+        emit(new TransferEvent(Msg.sender(), to, value));
+        return true;
+    }
+
+    @Override
+    public boolean transferFrom(@Required Address from, @Required Address to, @Required BigInteger value) {
+        require(lpInPair, "NulswapV3: LP_NOT_IN_PAIR");
+        subtractAllowed(from, Msg.sender(), value);
+        subtractBalance(from, value);
+        addBalance(to, value);
+        emit(new TransferEvent(from, to, value));
+        return true;
+    }
+
+    @Override
+    public boolean approve(@Required Address spender, @Required BigInteger value) {
+        require(lpInPair, "NulswapV3: LP_NOT_IN_PAIR");
+        setAllowed(Msg.sender(), spender, value);
+        emit(new ApprovalEvent(Msg.sender(), spender, value));
+        return true;
+    }
+
+    private void subtractAllowed(Address address1, Address address2, BigInteger value) {
+        BigInteger allowance = allowance(address1, address2);
+        check(allowance, value, "Insufficient approved token");
+        setAllowed(address1, address2, allowance.subtract(value));
+    }
+
+    private void setAllowed(Address address1, Address address2, BigInteger value) {
+        check(value);
+        Map<Address, BigInteger> address1Allowed = allowed.get(address1);
+        if (address1Allowed == null) {
+            address1Allowed = new HashMap<Address, BigInteger>();
+            allowed.put(address1, address1Allowed);
+        }
+        address1Allowed.put(address2, value);
+    }
+
+    private void addBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(value);
+        balances.put(address, balance.add(value));
+    }
+
+    private void subtractBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(balance, value, "Insufficient balance of token.");
+        balances.put(address, balance.subtract(value));
+    }
+
+    private void check(BigInteger value) {
+        require(value != null && value.compareTo(BigInteger.ZERO) >= 0);
+    }
+
+    private void check(BigInteger value1, BigInteger value2, String msg) {
+        check(value1);
+        check(value2);
+        require(value1.compareTo(value2) >= 0, msg);
+    }
+
     @View
     public Address getFactory(){
         return factory;
@@ -413,6 +790,36 @@ public class NulswapPair implements Contract{
         return lp;
     }
 
+    @View
+    public Address getFeeTo(){
+        return feeTo;
+    }
+
+    @View
+    public int getFeeToEpoch(){
+        return feeToEpoch;
+    }
+
+    @View
+    public boolean isCompactEvents(){
+        return compactEvents;
+    }
+
+    @View
+    public boolean isTrusted(){
+        return trusted;
+    }
+
+    @View
+    public Address getRouter(){
+        return router;
+    }
+
+    @View
+    public boolean isLpInPair(){
+        return lpInPair;
+    }
+
     @View
     public Address getToken0(){
         return token0;
@@ -425,22 +832,57 @@ public class NulswapPair implements Contract{
 
     @View
     public BigInteger getReserve0(){
-        return reserve0;
+        return reserve0();
     }
 
     @View
     public BigInteger getReserve1(){
-        return reserve1;
+        return reserve1();
     }
 
     @View
     public String getReserves(){
-        return reserve0 + "," + reserve1;
+        return reserve0() + "," + reserve1();
+    }
+
+    /**
+     * Full pair snapshot in a single call
+     *
+     * @dev reserve0,reserve1,token0,token1,lp,blockTimestampLast,
+     *      price0CumulativeLast,price1CumulativeLast,kLast
+     * */
+    @View
+    public String getState(){
+        return reserve0() + "," + reserve1() + "," + token0 + "," + token1 + "," + lp + "," + blockTimestampLast() + ","
+                + price0CumulativeLast + "," + price1CumulativeLast + "," + kLast;
+    }
+
+    /**
+     * Cumulative activity counters
+     *
+     * @dev volume0,volume1,swapFees0,swapFees1,swapCount,mintCount,burnCount,timestamp
+     *      Subtracting two snapshots gives the statistics of the window between their timestamps.
+     *      Swap fees are the whole 0.3% of the input, when the protocol fee is on LPs keep
+     *      5/6th of them
+     * */
+    @View
+    public String getStats(){
+        return volume0 + "," + volume1 + "," + swapFees0 + "," + swapFees1 + ","
+                + swapCount + "," + mintCount + "," + burnCount + "," + Block.timestamp();
     }
 
     @View
     public BigInteger getBlockTimeStampLast(){
-        return blockTimestampLast;
+        return blockTimestampLast();
+    }
+
+    /**
+     * Raw packed reserves, reserve0 | reserve1 << 112 | blockTimestampLast << 224
+     *
+     * */
+    @View
+    public BigInteger getPackedReserves(){
+        return packedReserves;
     }
 
     @View
@@ -453,6 +895,45 @@ public class NulswapPair implements Contract{
         return price1CumulativeLast;
     }
 
+    /**
+     * Price accumulators some seconds ago, for TWAPs in one call
+     *
+     * @param secondsAgos Seconds before the current block for each reading
+     *
+     * @dev Returns price0Cumulative,price1Cumulative for every entry, in order.
+     *      The TWAP between two readings is the accumulator difference divided
+     *      by the elapsed seconds, as a UQ112x112
+     * */
+    @View
+    public String observe(long[] secondsAgos){
+
+        long now = Block.timestamp();
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < secondsAgos.length; i++) {
+            require(secondsAgos[i] >= 0, "NulswapV3: INVALID_SECONDS");
+            BigInteger[] cumulatives = _cumulativesAt(now - secondsAgos[i]);
+            if (i > 0) result.append(",");
+            result.append(cumulatives[0]).append(",").append(cumulatives[1]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Oldest observed timestamp, observe cannot look further back
+     *
+     * */
+    @View
+    public long getOldestObservation(){
+        int oldest = observationCount < OBSERVATION_CAPACITY ? 0 : (observationIndex + 1) % OBSERVATION_CAPACITY;
+        return observations[oldest].timestamp;
+    }
+
+    @View
+    public int getObservationCount(){
+        return observationCount;
+    }
+
     @View
     public BigInteger getKLast(){
         return kLast;
@@ -470,7 +951,7 @@ public class NulswapPair implements Contract{
 
     @View
     public BigInteger getQ112(){
-        return Q112;
+        return NulswapMath.Q112;
     }
 
     class SwapEvent implements Event {
@@ -496,6 +977,39 @@ public class NulswapPair implements Contract{
 
     }
 
+    /**
+     * Swap and resulting reserves in one event
+     *
+     * @dev Zero amounts are left null so they are not serialized,
+     *      reserves are always present so indexers can rebuild the pair state
+     * */
+    class SwapSyncEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0In;
+        private BigInteger amount1In;
+        private BigInteger amount0Out;
+        private BigInteger amount1Out;
+
+        private Address to;
+
+        private BigInteger reserve0;
+        private BigInteger reserve1;
+
+        public SwapSyncEvent(@Required Address sender, @Required BigInteger amount0In, @Required BigInteger amount1In, @Required BigInteger amount0Out, @Required BigInteger amount1Out, @Required Address to, @Required BigInteger reserve0, @Required BigInteger reserve1) {
+            this.sender     = sender;
+            this.amount0In  = amount0In.signum() == 0 ? null : amount0In;
+            this.amount1In  = amount1In.signum() == 0 ? null : amount1In;
+            this.amount0Out = amount0Out.signum() == 0 ? null : amount0Out;
+            this.amount1Out = amount1Out.signum() == 0 ? null : amount1Out;
+            this.to         = to;
+            this.reserve0   = reserve0;
+            this.reserve1   = reserve1;
+        }
+
+    }
+
     class MintEvent implements Event {
 
         private Address sender;
@@ -543,4 +1057,18 @@ public class NulswapPair implements Contract{
         }
 
     }
-}
\ No newline at end of file
+
+    class Observation {
+
+        private long timestamp;
+        private BigInteger price0Cumulative;
+        private BigInteger price1Cumulative;
+
+        public Observation(long timestamp, BigInteger price0Cumulative, BigInteger price1Cumulative) {
+            this.timestamp        = timestamp;
+            this.price0Cumulative = price0Cumulative;
+            this.price1Cumulative = price1Cumulative;
+        }
+
+    }
+}
@@ -0,0 +1,108 @@
+import java.math.BigInteger;
+
+/**
+ * @title   Nulswap Math
+ *
+ * @notice  Fixed-point and swap math shared by the pair and the router
+ *
+ * @dev     Contracts are deployed as single jars, so this file is copied
+ *          into every module that needs it, like Ownable. Keep the copies
+ *          identical.
+ *
+ */
+public final class NulswapMath {
+
+    /** Constants **/
+    public static final BigInteger ZERO             = BigInteger.ZERO;                                  // Zero
+    public static final BigInteger ONE              = BigInteger.ONE;                                   // One
+    public static final BigInteger TWO              = BigInteger.valueOf(2);                            // Two
+    public static final BigInteger THREE            = BigInteger.valueOf(3);                            // Three
+    public static final BigInteger Q32              = BigInteger.ONE.shiftLeft(32);                     // 2^32
+    public static final BigInteger Q112             = BigInteger.ONE.shiftLeft(112);                    // 2^112
+    public static final BigInteger MAX_UINT112      = Q112.subtract(BigInteger.ONE);                    // 2^112 - 1
+
+    public static final BigInteger FEE_DENOMINATOR  = BigInteger.valueOf(1000);                         // Swap fee denominator
+    public static final BigInteger FEE_NUMERATOR    = BigInteger.valueOf(997);                          // Input kept after the 0.3% swap fee
+    public static final BigInteger FEE_AMOUNT       = FEE_DENOMINATOR.subtract(FEE_NUMERATOR);          // 0.3% swap fee
+    public static final BigInteger FEE_DENOMINATOR2 = FEE_DENOMINATOR.multiply(FEE_DENOMINATOR);        // 1000^2, used by the K check
+
+    private NulswapMath() {
+    }
+
+    /**
+     * Integer square root, floor(sqrt(y))
+     *
+     * @param y Amount to be square rooted
+     *
+     * @dev Newton iterations seeded with 2^ceil(bits/2), which is always above
+     *      the root, so the sequence decreases and converges in at most 7 steps
+     *      for 120 to 224 bit inputs, where a y/2 seed takes about bits/2
+     * */
+    public static BigInteger sqrt(BigInteger y){
+
+        if (y.compareTo(THREE) <= 0)
+            return y.signum() == 0 ? ZERO : ONE;
+
+        BigInteger z = ONE.shiftLeft((y.bitLength() + 1) >> 1);
+        BigInteger x = y.divide(z).add(z).shiftRight(1);
+        while (x.compareTo(z) < 0) {
+            z = x;
+            x = y.divide(x).add(x).shiftRight(1);
+        }
+        return z;
+    }
+
+    /**
+     * floor(a * b / denominator)
+     *
+     * */
+    public static BigInteger mulDiv(BigInteger a, BigInteger b, BigInteger denominator){
+        return a.multiply(b).divide(denominator);
+    }
+
+    /**
+     * Return the lowest amount
+     *
+     * */
+    public static BigInteger min(BigInteger x, BigInteger y){
+        return x.compareTo(y) < 0 ? x : y;
+    }
+
+    /**
+     * Encode a uint112 as a UQ112x112
+     *
+     * */
+    public static BigInteger encode(BigInteger y){
+        return y.shiftLeft(112);
+    }
+
+    /**
+     * Divide a UQ112x112 by a uint112, returning a UQ112x112
+     *
+     * */
+    public static BigInteger uqdiv(BigInteger x, BigInteger y){
+        return x.divide(y);
+    }
+
+    /**
+     * Output amount of a 0.3% fee constant product swap
+     *
+     * @dev Callers validate amounts and reserves
+     * */
+    public static BigInteger getAmountOut(BigInteger amountIn, BigInteger reserveIn, BigInteger reserveOut){
+        BigInteger amountInWithFee = amountIn.multiply(FEE_NUMERATOR);
+        return amountInWithFee.multiply(reserveOut).divide(reserveIn.multiply(FEE_DENOMINATOR).add(amountInWithFee));
+    }
+
+    /**
+     * Input amount of a 0.3% fee constant product swap, rounded up
+     *
+     * @dev Callers validate amounts and reserves
+     * */
+    public static BigInteger getAmountIn(BigInteger amountOut, BigInteger reserveIn, BigInteger reserveOut){
+        BigInteger numerator   = reserveIn.multiply(amountOut).multiply(FEE_DENOMINATOR);
+        BigInteger denominator = reserveOut.subtract(amountOut).multiply(FEE_NUMERATOR);
+        return numerator.divide(denominator).add(ONE);
+    }
+
+}
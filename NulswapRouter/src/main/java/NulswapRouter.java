@@ -3,9 +3,12 @@ import io.nuls.contract.sdk.annotation.*;
 import io.nuls.contract.sdk.event.DebugEvent;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static io.nuls.contract.sdk.Utils.emit;
 import static io.nuls.contract.sdk.Utils.require;
 
 
@@ -22,6 +25,16 @@ public class NulswapRouter extends Ownable implements Contract{
     /** Constants **/
     private static final BigInteger BASIS_POINTS        = BigInteger.valueOf(10000);                            // Math Helper for percentages
     private static final BigInteger MIN_TRANSFERABLE    = BigInteger.valueOf(1000000);                          // Minimum Transferable Amount
+    private static final int MAX_SEARCH_HOPS            = 3;                                                    // Maximum hops explored by getBestRoute
+    private static final int MAX_SPLIT_LEGS             = 5;                                                    // Maximum paths in a split swap
+    private static final int MAX_INTERMEDIATES          = 8;                                                    // Maximum tokens, besides WNULS, explored as intermediates by getBestRoute
+    private static final int ASSET_TOKEN                = 0;                                                    // Swap side paid or received as a token
+    private static final int ASSET_NULS                 = 1;                                                    // Swap side paid or received as NULS
+    private static final int ASSET_WASSET               = 2;                                                    // Swap side paid or received as a MultiAsset
+    private static final int ASSET_HELD                 = 3;                                                    // Swap side paid from tokens a multicall left in the router
+    private static final int PAIR_CONSTANT_PRODUCT      = 0;                                                    // NulswapPair, quoted locally, other pair types quote themselves
+    private static final int PAIR_MULTI                 = 3;                                                    // NulswapMultiPool, quoted locally, swapped by token address
+    private static final int PAIR_CONCENTRATED          = 4;                                                    // NulswapConcentratedPair, positions managed on the pair
     private final Address BURNER_ADDR; // Burn Address
     private final Address wAssetCopy; // wAssetCopy Address
 
@@ -36,6 +49,14 @@ public class NulswapRouter extends Ownable implements Contract{
 
     private Map<Address, Boolean> blacklist;                                            // Blacklisted Users
     private Map<Integer, Map<Integer, Address>> _wAssets;                               // Store MultiAssets Wrapped Tokens
+    private Map<Address, Map<Address, Address>> _pairs;                                 // Known Pairs (token => token => pair)
+    private Map<Address, Integer> _pairKinds;                                           // Known Pair types (pair => factory pair kind)
+    private Map<Address, Map<Address, Integer>> _poolIndexes;                           // Known multi pool token positions (pool => token => index)
+    private Map<Address, Map<Address, List<Address>>> _multiPools;                      // Known multi pools (token => token => pools)
+    private List<Address> _intermediates;                                               // Intermediate tokens of getBestRoute, besides WNULS, set by the owner
+    private Map<Address, BigInteger> _treasuryFees;                                     // Fees owed to the treasury (token => amount)
+    private Map<Address, Map<Address, BigInteger>> _refFees;                            // Fees owed to referrers (ref => token => amount)
+    private Map<Address, BigInteger> _accruedFees;                                      // Total fees held by the router (token => amount)
 
     /**
      * Constructor
@@ -52,6 +73,14 @@ public class NulswapRouter extends Ownable implements Contract{
         treasury    = _treasury;
         _wAssets    = new HashMap<Integer, Map<Integer, Address>>();
         blacklist   = new HashMap<Address, Boolean>();
+        _pairs      = new HashMap<Address, Map<Address, Address>>();
+        _pairKinds  = new HashMap<Address, Integer>();
+        _poolIndexes = new HashMap<Address, Map<Address, Integer>>();
+        _multiPools  = new HashMap<Address, Map<Address, List<Address>>>();
+        _intermediates = new ArrayList<Address>();
+        _treasuryFees = new HashMap<Address, BigInteger>();
+        _refFees      = new HashMap<Address, Map<Address, BigInteger>>();
+        _accruedFees  = new HashMap<Address, BigInteger>();
         platformFee = BigInteger.valueOf(100);          // 1% platform fee
         refFee      = BigInteger.valueOf(50);           // 0.5% referral fee
         paused      = false;
@@ -130,7 +159,7 @@ public class NulswapRouter extends Ownable implements Contract{
      * @param amountAMin
      * @param amountBMin
      */
-    private String _addLiquidity(
+    private BigInteger[] _addLiquidity(
             Address tokenA,
             Address tokenB,
             BigInteger amountADesired,
@@ -139,18 +168,21 @@ public class NulswapRouter extends Ownable implements Contract{
             BigInteger amountBMin
     ){
 
+        Address pair = safeGetPair(tokenA, tokenB);
 
-        // create the pair if it doesn't exist yet
-        if (safeGetPair(tokenA, tokenB).equals(BURNER_ADDR)) {
+        // create the pair if it doesn't exist yet, a new pair has no reserves
+        BigInteger reserveA, reserveB;
+        if (pair.equals(BURNER_ADDR)) {
             _createPair(tokenA, tokenB);
+            reserveA = BigInteger.ZERO;
+            reserveB = BigInteger.ZERO;
+        } else {
+            require(hasRouterLiquidity(pairKindOf(pair)), "NulswapV3: UNSUPPORTED_PAIR");
+            PairState state = safeGetState(pair);
+            reserveA = state.reserveOf(tokenA);
+            reserveB = state.reserveOf(tokenB);
         }
 
-        // Get current pair reserves
-        String resValues    = getReserves(tokenA, tokenB);
-        String[] arrOfStr   = resValues.split(",", 2);
-        BigInteger reserveA = new BigInteger(arrOfStr[0]);
-        BigInteger reserveB = new BigInteger(arrOfStr[1]);
-
         //
         BigInteger amountA, amountB;
         if (reserveA.compareTo(BigInteger.ZERO) == 0 && reserveB.compareTo(BigInteger.ZERO) == 0) {
@@ -176,7 +208,7 @@ public class NulswapRouter extends Ownable implements Contract{
 
         }
 
-        return amountA + "," + amountB;
+        return new BigInteger[]{amountA, amountB};
     }
 
     /**
@@ -203,18 +235,50 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        String addLiqRes        = _addLiquidity(tokenA, tokenB, amountADesired, amountBDesired, amountAMin, amountBMin);
+        return _addTokenLiquidity(tokenA, tokenB, amountADesired, amountBDesired, amountAMin, amountBMin, to);
+    }
+
+    /**
+     * Add liquidity body, pre-checks are done by the caller
+     */
+    private String _addTokenLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger amountADesired,
+            BigInteger amountBDesired,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to
+    ){
+        return _addTokenLiquidity(tokenA, tokenB, amountADesired, amountBDesired, amountAMin, amountBMin, to, null);
+    }
+
+    /**
+     * Add liquidity body paying from multicall held tokens when there are any
+     *
+     * @param held Tokens earlier multicall operations left in the router, null outside a multicall
+     */
+    private String _addTokenLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger amountADesired,
+            BigInteger amountBDesired,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            Map<Address, BigInteger> held
+    ){
+        BigInteger[] addLiqRes   = _addLiquidity(tokenA, tokenB, amountADesired, amountBDesired, amountAMin, amountBMin);
 
-        String[] arrOfStr       = addLiqRes.split(",", 2);
-        BigInteger amountA      = new BigInteger(arrOfStr[0]);
-        BigInteger amountB      = new BigInteger(arrOfStr[1]);
+        BigInteger amountA      = addLiqRes[0];
+        BigInteger amountB      = addLiqRes[1];
 
         Address pair            = safeGetPair(tokenA, tokenB);
 
-        safeTransferFrom(tokenA, Msg.sender(), pair, amountA);
-        safeTransferFrom(tokenB, Msg.sender(), pair, amountB);
+        _payFrom(held, tokenA, pair, amountA);
+        _payFrom(held, tokenB, pair, amountB);
 
-        BigInteger liquidity    = safeMint(pair, to);
+        BigInteger liquidity    = safeMint(pair, tokenA, tokenB, amountA, amountB, to);
 
         return amountA + "," + amountB  + "," + liquidity;
     }
@@ -243,7 +307,7 @@ public class NulswapRouter extends Ownable implements Contract{
         whenNotPaused();
 
         // Add Liquidity Logic
-        String addLiqRes = _addLiquidity(
+        BigInteger[] addLiqRes = _addLiquidity(
                 token,
                 WNULS,
                 amountTokenDesired,
@@ -252,9 +316,8 @@ public class NulswapRouter extends Ownable implements Contract{
                 amountETHMin
         );
 
-        String[] arrOfStr       = addLiqRes.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = addLiqRes[0];
+        BigInteger amountETH    = addLiqRes[1];
 
         // Get Pair
         Address pair = safeGetPair(token, WNULS);
@@ -265,7 +328,7 @@ public class NulswapRouter extends Ownable implements Contract{
         safeTransfer(WNULS, pair, amountETH);
 
         // Mint liquidity to address
-        BigInteger liquidity =  safeMint(pair, to); // IUniswapV2Pair(pair).mint(to);
+        BigInteger liquidity =  safeMint(pair, token, WNULS, amountToken, amountETH, to); // IUniswapV2Pair(pair).mint(to);
 
         // If amount left from adding liquidity is enough refund amount
         if (Msg.value().compareTo(amountETH.add(MIN_TRANSFERABLE)) > 0)
@@ -312,7 +375,7 @@ public class NulswapRouter extends Ownable implements Contract{
 
         require(chainId == chain && assetId == asset, "NulswapV3: Assets deposited does not match");
 
-        String addLiqRes = _addLiquidity(
+        BigInteger[] addLiqRes = _addLiquidity(
                 token,
                 getMUltiwAsset(chainId, assetId),
                 amountTokenDesired,
@@ -321,9 +384,8 @@ public class NulswapRouter extends Ownable implements Contract{
                 amountETHMin
         );
 
-        String[] arrOfStr       = addLiqRes.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = addLiqRes[0];
+        BigInteger amountETH    = addLiqRes[1];
 
         Address pair = safeGetPair(token, _wAssets.get(chainId).get(assetId));
 
@@ -331,7 +393,7 @@ public class NulswapRouter extends Ownable implements Contract{
         depositMultiAsset(amountETH, chainId, assetId, 0);
         safeTransfer(_wAssets.get(chainId).get(assetId), pair, amountETH);
 
-        BigInteger liquidity =  safeMint(pair, to); // IUniswapV2Pair(pair).mint(to);
+        BigInteger liquidity =  safeMint(pair, token, _wAssets.get(chainId).get(assetId), amountToken, amountETH, to); // IUniswapV2Pair(pair).mint(to);
 
         if (val.compareTo(amountETH.add(MIN_TRANSFERABLE)) > 0)
             safeTransferWAsset(Msg.sender(), val.subtract(amountETH), chainId, assetId); // refund dust eth, if any
@@ -374,7 +436,7 @@ public class NulswapRouter extends Ownable implements Contract{
 
         require(chainId == chain && assetId == asset, "NulswapV3: Assets deposited does not match");
 
-        String addLiqRes = _addLiquidity(
+        BigInteger[] addLiqRes = _addLiquidity(
                 WNULS,
                 getMUltiwAsset(chainId, assetId),
                 Msg.value(),
@@ -383,9 +445,8 @@ public class NulswapRouter extends Ownable implements Contract{
                 amountWAssetMin
         );
 
-        String[] arrOfStr       = addLiqRes.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountWasset = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = addLiqRes[0];
+        BigInteger amountWasset = addLiqRes[1];
 
         Address pair = safeGetPair(WNULS, _wAssets.get(chainId).get(assetId));
 
@@ -394,7 +455,7 @@ public class NulswapRouter extends Ownable implements Contract{
         safeTransfer(WNULS, pair, amountToken);
         safeTransfer(_wAssets.get(chainId).get(assetId), pair, amountWasset);
 
-        BigInteger liquidity =  safeMint(pair, to); // IUniswapV2Pair(pair).mint(to);
+        BigInteger liquidity =  safeMint(pair, WNULS, _wAssets.get(chainId).get(assetId), amountToken, amountWasset, to); // IUniswapV2Pair(pair).mint(to);
 
         if (val.compareTo(amountWasset.add(MIN_TRANSFERABLE)) > 0)
             safeTransferWAsset(Msg.sender(), val.subtract(amountWasset), chainId, assetId); // refund dust eth, if any
@@ -445,7 +506,7 @@ public class NulswapRouter extends Ownable implements Contract{
         require(chainId == chain && assetId == asset, "NulswapV3: Amount deposited does not match");
         require(chainId2 == chain2 && assetId2 == asset2, "NulswapV3: Amount deposited does not match");
 
-        String addLiqRes = _addLiquidity(
+        BigInteger[] addLiqRes = _addLiquidity(
                 getMUltiwAsset(chainId, assetId),
                 getMUltiwAsset(chainId2, assetId2),
                 val,
@@ -454,9 +515,8 @@ public class NulswapRouter extends Ownable implements Contract{
                 amountETHMin
         );
 
-        String[] arrOfStr       = addLiqRes.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = addLiqRes[0];
+        BigInteger amountETH    = addLiqRes[1];
 
         Address pair = safeGetPair(_wAssets.get(chainId).get(assetId), _wAssets.get(chainId2).get(assetId2));
 
@@ -466,7 +526,7 @@ public class NulswapRouter extends Ownable implements Contract{
         safeTransfer(_wAssets.get(chainId).get(assetId), pair, amountToken);
         safeTransfer(_wAssets.get(chainId2).get(assetId2), pair, amountETH);
 
-        BigInteger liquidity =  safeMint(pair, to); // IUniswapV2Pair(pair).mint(to);
+        BigInteger liquidity =  safeMint(pair, _wAssets.get(chainId).get(assetId), _wAssets.get(chainId2).get(assetId2), amountToken, amountETH, to); // IUniswapV2Pair(pair).mint(to);
 
         if (val2.compareTo(amountETH.add(MIN_TRANSFERABLE)) > 0)
             safeTransferWAsset(Msg.sender(), val2.subtract(amountETH), chainId2, assetId2); // refund dust eth, if any
@@ -493,29 +553,66 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        Address pair = safeGetPair(tokenA, tokenB);
-        safeTransferFrom(safeGetLP(pair), Msg.sender(), pair, liquidity);
+        BigInteger[] amounts = _removeLiquidity(tokenA, tokenB, liquidity, amountAMin, amountBMin, to);
+
+        return amounts[0] + "," + amounts[1];
+    }
+
+    /**
+     * Burn the liquidity of the sender and send both tokens to the address to
+     *
+     * @param tokenA
+     * @param tokenB
+     * @param liquidity
+     * @param amountAMin
+     * @param amountBMin
+     * @param to
+     */
+    private BigInteger[] _removeLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger liquidity,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to
+    ){
+        return _removeLiquidity(tokenA, tokenB, liquidity, amountAMin, amountBMin, to, null);
+    }
 
-        String[] arrOfStr  = safeBurn(pair, to).split(",", 2);
-        BigInteger amount0 = new BigInteger(arrOfStr[0]);
-        BigInteger amount1 = new BigInteger(arrOfStr[1]);
+    /**
+     * Remove liquidity body paying the lp from multicall held tokens when there are any
+     *
+     * @param held Tokens earlier multicall operations left in the router, null outside a multicall
+     */
+    private BigInteger[] _removeLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger liquidity,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            Map<Address, BigInteger> held
+    ){
+        Address pair    = safeGetPair(tokenA, tokenB);
+        require(hasRouterLiquidity(pairKindOf(pair)), "NulswapV3: UNSUPPORTED_PAIR");
+        PairState state = safeGetState(pair);
+        _payFrom(held, state.lp, pair, liquidity);
 
-        String[] arrOfStr2 = sortTokens(tokenA, tokenB).split(",", 2);
-        Address token0     = new Address(arrOfStr2[0]);
+        BigInteger[] burned = safeBurn(pair, to);
 
         BigInteger amountA, amountB;
-        if(tokenA.equals(token0)) {
-            amountA = amount0;
-            amountB = amount1;
+        if(tokenA.equals(state.token0)) {
+            amountA = burned[0];
+            amountB = burned[1];
         }else{
-            amountA = amount1;
-            amountB = amount0;
+            amountA = burned[1];
+            amountB = burned[0];
         }
 
         require(amountA.compareTo(amountAMin) >= 0, "NulswapV3: INSUFFICIENT_A_AMOUNT");
         require(amountB.compareTo(amountBMin) >= 0, "NulswapV3: INSUFFICIENT_B_AMOUNT");
 
-        return amountA + "," + amountB;
+        return new BigInteger[]{amountA, amountB};
     }
 
     /**
@@ -541,18 +638,16 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-       String resVal = removeLiquidity(
+        BigInteger[] resVal = _removeLiquidity(
                 token,
                 WNULS,
                 liquidity,
                 amountTokenMin,
                 amountETHMin,
-                Msg.address(),
-                deadline
+                Msg.address()
         );
-        String[] arrOfStr       = resVal.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = resVal[0];
+        BigInteger amountETH    = resVal[1];
 
         safeTransfer(token, to, amountToken);
         withdrawNuls(amountETH);
@@ -585,18 +680,16 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        String resVal = removeLiquidity(
+        BigInteger[] resVal = _removeLiquidity(
                 WNULS,
                 _wAssets.get(chainId).get(assetId),
                 liquidity,
                 amountTokenMin,
                 amountETHMin,
-                Msg.address(),
-                deadline
+                Msg.address()
         );
-        String[] arrOfStr       = resVal.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = resVal[0];
+        BigInteger amountETH    = resVal[1];
 
 
         withdrawNuls(amountToken);
@@ -633,18 +726,16 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        String resVal = removeLiquidity(
+        BigInteger[] resVal = _removeLiquidity(
                 token,
                 _wAssets.get(chainId).get(assetId),
                 liquidity,
                 amountTokenMin,
                 amountETHMin,
-                Msg.address(),
-                deadline
+                Msg.address()
         );
-        String[] arrOfStr       = resVal.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = resVal[0];
+        BigInteger amountETH    = resVal[1];
 
         safeTransfer(token, to, amountToken);
         withdrawWAsset(_wAssets.get(chainId).get(assetId), amountETH);
@@ -678,18 +769,16 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        String resVal = removeLiquidity(
+        BigInteger[] resVal = _removeLiquidity(
                 _wAssets.get(chainId).get(assetId),
                 _wAssets.get(chainId2).get(assetId2),
                 liquidity,
                 amountTokenMin,
                 amountETHMin,
-                Msg.address(),
-                deadline
+                Msg.address()
         );
-        String[] arrOfStr       = resVal.split(",", 2);
-        BigInteger amountToken  = new BigInteger(arrOfStr[0]);
-        BigInteger amountETH    = new BigInteger(arrOfStr[1]);
+        BigInteger amountToken  = resVal[0];
+        BigInteger amountETH    = resVal[1];
 
 
         withdrawWAsset(_wAssets.get(chainId).get(assetId), amountToken);
@@ -706,89 +795,194 @@ public class NulswapRouter extends Ownable implements Contract{
     /**
      * Take Fee from trade
      *
+     * @dev The whole fee is pulled to the router in one transfer and
+     *      split between referrer and treasury in the fee ledger
      * */
     private BigInteger takeFee(BigInteger amountIn, Address payingToken, Address ref){
 
-        BigInteger fee = amountIn.multiply(platformFee).divide(BASIS_POINTS);
+        BigInteger fee = NulswapMath.mulDiv(amountIn, platformFee, BASIS_POINTS);
 
-        BigInteger referralFee = BigInteger.ZERO;
-        if(!ref.equals(BURNER_ADDR)){
-            referralFee = amountIn.multiply(refFee).divide(BASIS_POINTS);
-            if(referralFee.compareTo(BigInteger.ZERO) > 0){
-                safeTransferFrom(payingToken, Msg.sender(),  ref, referralFee);
-            }
+        if(fee.compareTo(BigInteger.ZERO) > 0){
+            safeTransferFrom(payingToken, Msg.sender(), Msg.address(), fee);
+            accrueFee(fee, amountIn, payingToken, ref);
         }
 
-        safeTransferFrom(payingToken, Msg.sender(),treasury, fee.subtract(referralFee));
-
         amountIn = amountIn.subtract(fee);
 
         return amountIn;
     }
 
-    private BigInteger takeFeeInternal(BigInteger amountIn, Address payingToken, Address ref){
+    /**
+     * Take Fee from trade paid in a fee-on-transfer token
+     *
+     * @dev Only the amount the router really received is recorded
+     * */
+    private BigInteger takeFeeSupportingFeeOnTransferTokens(BigInteger amountIn, Address payingToken, Address ref){
 
-        BigInteger fee = amountIn.multiply(platformFee).divide(BASIS_POINTS);
+        BigInteger fee = NulswapMath.mulDiv(amountIn, platformFee, BASIS_POINTS);
 
-        BigInteger referralFee = BigInteger.ZERO;
-        if(!ref.equals(BURNER_ADDR)){
-            referralFee = amountIn.multiply(refFee).divide(BASIS_POINTS);
-            if(referralFee.compareTo(BigInteger.ZERO) > 0){
-                safeTransfer(payingToken,  ref, referralFee);
-            }
+        if(fee.compareTo(BigInteger.ZERO) > 0){
+            BigInteger balanceBefore = safeBalanceOf(payingToken, Msg.address());
+            safeTransferFrom(payingToken, Msg.sender(), Msg.address(), fee);
+            accrueFee(safeBalanceOf(payingToken, Msg.address()).subtract(balanceBefore), amountIn, payingToken, ref);
         }
 
-        safeTransfer(payingToken, treasury, fee.subtract(referralFee));
+        amountIn = amountIn.subtract(fee);
+
+        return amountIn;
+    }
+
+    /**
+     * Take Fee from trade when the router already holds the paying token
+     *
+     * */
+    private BigInteger takeFeeInternal(BigInteger amountIn, Address payingToken, Address ref){
+
+        BigInteger fee = NulswapMath.mulDiv(amountIn, platformFee, BASIS_POINTS);
+
+        accrueFee(fee, amountIn, payingToken, ref);
 
         amountIn = amountIn.subtract(fee);
 
         return amountIn;
     }
 
+    /**
+     * Take Fee on top of the input of an exact output trade
+     *
+     * */
     private BigInteger takeFeeOutput(BigInteger amountIn, Address payingToken, Address ref){
 
-        BigInteger fee = amountIn.multiply(platformFee).divide(BASIS_POINTS);
+        BigInteger fee = NulswapMath.mulDiv(amountIn, platformFee, BASIS_POINTS);
+
+        if(fee.compareTo(BigInteger.ZERO) > 0){
+            safeTransferFrom(payingToken, Msg.sender(), Msg.address(), fee);
+            accrueFee(fee, amountIn, payingToken, ref);
+        }
+
+        return fee;
+    }
+
+    /**
+     * Record a fee already held by the router in the fee ledger
+     *
+     * @param fee Total fee taken
+     * @param amountIn Amount the fee was computed on
+     * @param token Token the fee was paid in
+     * @param ref Referral Address
+     * */
+    private void accrueFee(BigInteger fee, BigInteger amountIn, Address token, Address ref){
+
+        if(fee.compareTo(BigInteger.ZERO) <= 0)
+            return;
 
         BigInteger referralFee = BigInteger.ZERO;
         if(!ref.equals(BURNER_ADDR)){
-            referralFee = amountIn.multiply(refFee).divide(BASIS_POINTS);
+            referralFee = NulswapMath.mulDiv(amountIn, refFee, BASIS_POINTS);
+            if(referralFee.compareTo(fee) > 0)
+                referralFee = fee;
             if(referralFee.compareTo(BigInteger.ZERO) > 0){
-                safeTransferFrom(payingToken, Msg.sender(),  ref, referralFee);
+                Map<Address, BigInteger> owed = _refFees.get(ref);
+                if (owed == null) {
+                    owed = new HashMap<>();
+                    _refFees.put(ref, owed);
+                }
+                owed.put(token, getOrZero(owed, token).add(referralFee));
             }
         }
 
-        safeTransferFrom(payingToken, Msg.sender(),treasury, fee.subtract(referralFee));
+        _treasuryFees.put(token, getOrZero(_treasuryFees, token).add(fee.subtract(referralFee)));
+        _accruedFees.put(token, getOrZero(_accruedFees, token).add(fee));
+    }
 
-        return fee;
+    /**
+     * Read a ledger entry, zero when missing
+     *
+     * */
+    private BigInteger getOrZero(Map<Address, BigInteger> ledger, Address token){
+        BigInteger value = ledger.get(token);
+        return value == null ? BigInteger.ZERO : value;
     }
 
-    // **** SWAP ****
-    // requires the initial amount to have already been sent to the first pair
-    private void _swap(String[]  amounts, String[] path, Address _to){
+    /**
+     * Remove a settled amount from the total held by the router
+     *
+     * */
+    private void settleFee(Address token, BigInteger amount){
+        _accruedFees.put(token, getOrZero(_accruedFees, token).subtract(amount));
+    }
 
-        for (int i = 0; i < path.length - 1; i++) {
+    /**
+     * Claim referral fees
+     *
+     * @param tokens Tokens to claim
+     *
+     * @dev Sends everything owed to Msg.sender() in each of the tokens
+     * */
+    public void claimFees(String[] tokens){
+
+        Map<Address, BigInteger> owed = _refFees.get(Msg.sender());
+        require(owed != null, "NulswapV3: NOTHING_TO_CLAIM");
+
+        for (int i = 0, length = tokens.length; i < length; i++) {
+            Address token     = new Address(tokens[i]);
+            BigInteger amount = getOrZero(owed, token);
+            if (amount.compareTo(BigInteger.ZERO) > 0) {
+                owed.remove(token);
+                settleFee(token, amount);
+                safeTransfer(token, Msg.sender(), amount);
+                emit(new FeesClaimedEvent(Msg.sender(), token, amount));
+            }
+        }
+    }
+
+    /**
+     * Send the treasury share of accrued fees to the treasury
+     *
+     * @param tokens Tokens to sweep
+     * */
+    public void sweepToTreasury(String[] tokens){
+        onlyOwner();
 
+        for (int i = 0, length = tokens.length; i < length; i++) {
+            Address token     = new Address(tokens[i]);
+            BigInteger amount = getOrZero(_treasuryFees, token);
+            if (amount.compareTo(BigInteger.ZERO) > 0) {
+                _treasuryFees.remove(token);
+                settleFee(token, amount);
+                safeTransfer(token, treasury, amount);
+                emit(new FeesClaimedEvent(treasury, token, amount));
+            }
+        }
+    }
+
+    // **** SWAP ****
+    // requires the initial amount to have already been sent to the first pair
+    private void _swap(BigInteger[] amounts, Route route, Address _to){
 
-            Address input  = new Address(path[i]);
-            Address output = new Address(path[i + 1]);
+        for (int i = 0; i < route.pairs.length; i++) {
 
-            String[] arrOfStr2      = sortTokens(input, output).split(",", 2);
-            Address token0          = new Address(arrOfStr2[0]);
-            BigInteger amountOut    = new BigInteger(amounts[i + 1]);
+            BigInteger amountOut    = amounts[i + 1];
 
             BigInteger amount0Out, amount1Out;
-            if(input.equals(token0)){
+            if(route.inputIsToken0[i]){
                 amount0Out = BigInteger.ZERO;
                 amount1Out = amountOut;
             }else{
                 amount0Out = amountOut;
                 amount1Out = BigInteger.ZERO;
             }
-            Utils.emit(new DebugEvent("test2", "3..3.3"));
-            Address to = (i < path.length - 2 ) ? safeGetPair(output, new Address(path[i + 2])) : _to;
+            Address to = (i < route.pairs.length - 1) ? route.pairs[i + 1] : _to;
+
+            if (route.kinds[i] == PAIR_MULTI) {
+                safePoolSwap(route.pairs[i], route.tokens[i], route.tokens[i + 1], amountOut, to);
+                continue;
+            }
 
-           // IUniswapV2Pair(safeGetPair(input, output)).swap(amount0Out, amount1Out, to);
-            safeSwap(safeGetPair(input, output), amount0Out, amount1Out, to);
+            BigInteger amount0In = route.inputIsToken0[i] ? amounts[i] : BigInteger.ZERO;
+            BigInteger amount1In = route.inputIsToken0[i] ? BigInteger.ZERO : amounts[i];
+
+            safeSwapNotified(route.pairs[i], amount0In, amount1In, amount0Out, amount1Out, to);
         }
 
     }
@@ -796,36 +990,22 @@ public class NulswapRouter extends Ownable implements Contract{
     /** **** SWAP (supporting fee-on-transfer tokens) ****
     / requires the initial amount to have already been sent to the first pair
      */
-    private void _swapSupportingFeeOnTransferTokens(String[]  path, Address _to){
-
-        for (int i = 0; i < path.length - 1; i++) {
-            Address input  = new Address(path[i]);
-            Address output = new Address(path[i + 1]);
+    private void _swapSupportingFeeOnTransferTokens(Route route, Address _to){
 
-            String[] arrOfStr2      = sortTokens(input, output).split(",", 2);
-            Address token0          = new Address(arrOfStr2[0]);
+        for (int i = 0; i < route.pairs.length; i++) {
 
-            Address pair = safeGetPair(input, output);
-            BigInteger amountInput = BigInteger.ZERO;
-            BigInteger amountOutput = BigInteger.ZERO;
+            Address pair = route.pairs[i];
 
-            String[] arrOfStr3   = getReserves(input, output).split(",", 3);
-            BigInteger reserve0  = new BigInteger(arrOfStr3[0]);
-            BigInteger reserve1 = new BigInteger(arrOfStr3[1]);
+            // read again, an earlier hop may have gone through the same pair
+            BigInteger[] reserves = safeGetReserves(pair);
+            route.reserveIn[i]    = reserves[route.indexIn[i]];
+            route.reserveOut[i]   = reserves[route.indexOut[i]];
 
-            BigInteger reserveInput, reserveOutput;
-            if(input.equals(token0)){
-                reserveInput = reserve0;
-                reserveOutput = reserve1;
-            }else{
-                reserveInput = reserve1;
-                reserveOutput = reserve0;
-            }
-            amountInput = safeBalanceOf(input, pair).subtract(reserveInput);
-            amountOutput = getAmountOut(amountInput, reserveInput, reserveOutput);
+            BigInteger amountInput  = safeBalanceOf(route.tokens[i], pair).subtract(route.reserveIn[i]);
+            BigInteger amountOutput = _hopOut(route, i, amountInput);
 
             BigInteger amount0Out, amount1Out;
-            if(input.equals(token0)){
+            if(route.inputIsToken0[i]){
                 amount0Out = BigInteger.ZERO;
                 amount1Out = amountOutput;
             }else{
@@ -833,148 +1013,304 @@ public class NulswapRouter extends Ownable implements Contract{
                 amount1Out = BigInteger.ZERO;
             }
 
-            Address to = i < path.length - 2 ? safeGetPair(output, new Address(path[i + 2])) : _to;
-            safeSwap(pair, amount0Out, amount1Out, to);
+            Address to = i < route.pairs.length - 1 ? route.pairs[i + 1] : _to;
+            if (route.kinds[i] == PAIR_MULTI)
+                safePoolSwap(pair, route.tokens[i], route.tokens[i + 1], amountOutput, to);
+            else
+                safeSwap(pair, amount0Out, amount1Out, to);
         }
     }
 
+    // **** SWAP ENGINE ****
+    // every public swap is a wrapper choosing how the input is paid and how the output is received
+
+    /**
+     * Swap side for plain tokens, pulled with transferFrom and sent directly
+     * */
+    private SwapAsset tokenAsset(){
+        return new SwapAsset(ASSET_TOKEN, null, 0, 0);
+    }
+
+    /**
+     * Swap side for tokens a multicall left in the router, sent with transfer
+     * */
+    private SwapAsset heldAsset(){
+        return new SwapAsset(ASSET_HELD, null, 0, 0);
+    }
+
+    /**
+     * Swap side for NULS, wrapped to WNULS on input and unwrapped on output
+     * */
+    private SwapAsset nulsAsset(){
+        return new SwapAsset(ASSET_NULS, WNULS, 0, 0);
+    }
+
     /**
+     * Swap side for a MultiAsset, wrapped to its wAsset on input and unwrapped on output
      *
+     * @param chainId Asset Chain Id
+     * @param assetId Asset Id
+     * */
+    private SwapAsset wAssetOf(int chainId, int assetId){
+        Map<Integer, Address> map = _wAssets.get(chainId);
+        Address wAsset = map != null ? map.get(assetId) : null;
+        require(wAsset != null, "NulswapV3: INVALID_PATH");
+        return new SwapAsset(ASSET_WASSET, wAsset, chainId, assetId);
+    }
+
+    /**
+     * Value of the single MultiAsset sent with the call
      *
+     * @param chainId Expected Asset Chain Id
+     * @param assetId Expected Asset Id
+     * */
+    private BigInteger receivedWAsset(int chainId, int assetId){
+
+        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
+
+        MultyAssetValue mToken1 = Msg.multyAssetValues()[0];
+        require(chainId == mToken1.getAssetChainId() && assetId == mToken1.getAssetId(), "NulswapV3: Amount deposited does not match");
+
+        return mToken1.getValue();
+    }
+
+    /**
+     * Exact input swap
      *
+     * @param input How the input is paid
+     * @param output How the output is received
+     * @param amountIn Input amount before fees
+     * @param amountOutMin Minimum output amount
+     * @param path Array of tokens
+     * @param to Receiver Address
+     * @param ref Referral Address
      * */
-    public void swapExactTokensForTokensSupportingFeeOnTransferTokens(
+    private BigInteger[] _swapExactIn(
+            SwapAsset input,
+            SwapAsset output,
             BigInteger amountIn,
             BigInteger amountOutMin,
             String[] path,
             Address to,
-            BigInteger deadline,
             Address ref
-    )  {
-        ensure(deadline);
-        blacklist();
-        whenNotPaused();
+    ){
+        Route route = _resolveRoute(path);
+        _checkRoute(route, input, output);
 
-        amountIn = takeFee(amountIn, new Address(path[0]), ref);
+        amountIn = _collectExactIn(input, amountIn, route, ref, false);
 
-        safeTransferFrom(
-                new Address(path[0]), Msg.sender(), safeGetPair(new Address(path[0]), new Address(path[1])), amountIn
-        );
-        BigInteger balanceBefore = safeBalanceOf(new Address(path[path.length - 1]), to);
-        _swapSupportingFeeOnTransferTokens(path, to);
-        require(
-                (safeBalanceOf(new Address(path[path.length - 1]), to).subtract(balanceBefore)).compareTo(amountOutMin) >= 0,
-                "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT"
-        );
+        BigInteger[] amounts = _getAmountsOut(amountIn, route);
+        require(amounts[amounts.length - 1].compareTo(amountOutMin) >= 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+
+        _swap(amounts, route, output.kind == ASSET_TOKEN ? to : Msg.address());
+        _deliverOutput(output, amounts[amounts.length - 1], to);
+
+        return amounts;
     }
 
-    @Payable
-    public void  swapExactNulsForTokensSupportingFeeOnTransferTokens(
-            BigInteger amountOutMin,
+    /**
+     * Exact output swap
+     *
+     * @param input How the input is paid
+     * @param output How the output is received
+     * @param amountOut Output amount
+     * @param amountInMax Maximum input amount, fees included
+     * @param path Array of tokens
+     * @param to Receiver Address
+     * @param ref Referral Address
+     * */
+    private BigInteger[] _swapExactOut(
+            SwapAsset input,
+            SwapAsset output,
+            BigInteger amountOut,
+            BigInteger amountInMax,
             String[] path,
             Address to,
-            BigInteger deadline,
             Address ref
-    )
-    {
-        ensure(deadline);
-        blacklist();
-        whenNotPaused();
-
-        require(new Address(path[0]).equals(WNULS), "NulswapV3: INVALID_PATH");
+    ){
+        Route route = _resolveRoute(path);
+        _checkRoute(route, input, output);
 
-        BigInteger amountIn = Msg.value();
+        BigInteger[] amounts = _getAmountsIn(amountOut, route);
 
-        depositNuls(amountIn);
+        _collectExactOut(input, amounts[0], amountInMax, route, ref);
 
-        amountIn = takeFeeInternal(amountIn, WNULS, ref);
+        _swap(amounts, route, output.kind == ASSET_TOKEN ? to : Msg.address());
+        _deliverOutput(output, amounts[amounts.length - 1], to);
 
-        safeTransfer(WNULS, safeGetPair(new Address(path[0]), new Address(path[1])), amountIn);
-        BigInteger balanceBefore = safeBalanceOf(new Address(path[path.length - 1]), to);//IERC20(path[path.length - 1]).balanceOf(to);
-        _swapSupportingFeeOnTransferTokens(path, to);
-        require(
-                safeBalanceOf(new Address(path[path.length - 1]), to).subtract(balanceBefore).compareTo(amountOutMin) >= 0,
-                "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT"
-        );
+        return amounts;
     }
 
-    public void swapExactTokensForNulsSupportingFeeOnTransferTokens(
-           BigInteger amountIn,
+    /**
+     * Exact input swap supporting fee-on-transfer tokens
+     *
+     * @param input How the input is paid
+     * @param output How the output is received
+     * @param amountIn Input amount before fees
+     * @param amountOutMin Minimum output amount
+     * @param path Array of tokens
+     * @param to Receiver Address
+     * @param ref Referral Address
+     *
+     * @dev The output is measured as a balance difference of the receiver
+     *
+     * @return Output amount received
+     * */
+    private BigInteger _swapExactInSupportingFeeOnTransferTokens(
+            SwapAsset input,
+            SwapAsset output,
+            BigInteger amountIn,
             BigInteger amountOutMin,
-            String[]  path,
+            String[] path,
             Address to,
-            BigInteger deadline,
             Address ref
-    )
-    {
-        ensure(deadline);
-        blacklist();
-        whenNotPaused();
+    ){
+        Route route = _resolveRoute(path);
+        _checkRoute(route, input, output);
 
-        require(new Address(path[path.length - 1]).equals(WNULS), "UniswapV2Router: INVALID_PATH");
+        _collectExactIn(input, amountIn, route, ref, true);
 
-        amountIn = takeFee(amountIn, new Address(path[0]), ref);
-        safeTransferFrom(
-                new Address(path[0]), Msg.sender(), safeGetPair( new Address(path[0]), new Address(path[1])), amountIn
-        );
+        Address recipient        = output.kind == ASSET_TOKEN ? to : Msg.address();
+        BigInteger balanceBefore = safeBalanceOf(route.tokenOut(), recipient);
 
+        _swapSupportingFeeOnTransferTokens(route, recipient);
 
+        BigInteger amountOut = safeBalanceOf(route.tokenOut(), recipient).subtract(balanceBefore);
+        require(amountOut.compareTo(amountOutMin) >= 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
 
-        _swapSupportingFeeOnTransferTokens(path, Msg.address());
-        BigInteger amountOut = safeBalanceOf(WNULS, Msg.address());// IERC20(WETH).balanceOf(address(this));
+        _deliverOutput(output, amountOut, to);
 
-        require(amountOut.compareTo(amountOutMin) >= 0, "UniswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT");
-        withdrawNuls(amountOut);
-        safeTransferETH(to, amountOut);
+        return amountOut;
     }
 
-    @PayableMultyAsset
-    public void  swapExactWAssetForTokensSupportingFeeOnTransferTokens(
-            Integer chainId,
-            Integer assetId,
-            BigInteger amountOutMin,
-            String[] path,
-            Address to,
-            BigInteger deadline,
-            Address ref
-    ){
-        ensure(deadline);
-        blacklist();
-        whenNotPaused();
+    /**
+     * Ensure the route starts and ends on the wrapped tokens of NULS and MultiAsset sides
+     *
+     * */
+    private void _checkRoute(Route route, SwapAsset input, SwapAsset output){
+        require(input.kind == ASSET_TOKEN || input.kind == ASSET_HELD || route.tokenIn().equals(input.token), "NulswapV3: INVALID_PATH");
+        require(output.kind == ASSET_TOKEN || route.tokenOut().equals(output.token), "NulswapV3: INVALID_PATH");
+    }
 
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "UniswapV2Router: INVALID_PATH");
+    /**
+     * Take the fee of an exact input and send the rest to the first pair
+     *
+     * @return Amount sent to the first pair
+     * */
+    private BigInteger _collectExactIn(SwapAsset input, BigInteger amountIn, Route route, Address ref, boolean feeOnTransfer){
 
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
+        if (input.kind == ASSET_TOKEN) {
+            amountIn = feeOnTransfer ? takeFeeSupportingFeeOnTransferTokens(amountIn, route.tokenIn(), ref) : takeFee(amountIn, route.tokenIn(), ref);
+            safeTransferFrom(route.tokenIn(), Msg.sender(), route.pairs[0], amountIn);
+            return amountIn;
+        }
 
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
+        if (input.kind == ASSET_HELD) {
+            amountIn = takeFeeInternal(amountIn, route.tokenIn(), ref);
+            safeTransfer(route.tokenIn(), route.pairs[0], amountIn);
+            return amountIn;
+        }
 
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
+        _deposit(input, amountIn);
+        amountIn = takeFeeInternal(amountIn, input.token, ref);
+        safeTransfer(input.token, route.pairs[0], amountIn);
 
-        require(chainId == chain && assetId == asset, "NulswapV3: Amount deposited does not match");
+        return amountIn;
+    }
 
-        BigInteger amountIn = val;
-        depositMultiAsset(amountIn, chainId, assetId, 0);
+    /**
+     * Take the exact input plus its fee and send the input to the first pair
+     *
+     * @dev Unused NULS or MultiAsset is refunded to the sender
+     * */
+    private void _collectExactOut(SwapAsset input, BigInteger amountIn, BigInteger amountInMax, Route route, Address ref){
 
-        amountIn = takeFeeInternal(amountIn,_wAssets.get(chainId).get(assetId), ref);
+        if (input.kind == ASSET_TOKEN) {
+            BigInteger fee = takeFeeOutput(amountIn, route.tokenIn(), ref);
+            require(amountIn.add(fee).compareTo(amountInMax) <= 0, "NulswapV3: EXCESSIVE_INPUT_AMOUNT");
+            safeTransferFrom(route.tokenIn(), Msg.sender(), route.pairs[0], amountIn);
+            return;
+        }
 
-        safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair(new Address(path[0]), new Address(path[1])), amountIn);
-        BigInteger balanceBefore = safeBalanceOf(new Address(path[path.length - 1]), to);//IERC20(path[path.length - 1]).balanceOf(to);
-        _swapSupportingFeeOnTransferTokens(path, to);
-        require(
-                safeBalanceOf(new Address(path[path.length - 1]), to).subtract(balanceBefore).compareTo(amountOutMin) >= 0,
-                "UniswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT"
-        );
+        if (input.kind == ASSET_HELD) {
+            BigInteger fee = NulswapMath.mulDiv(amountIn, platformFee, BASIS_POINTS);
+            require(amountIn.add(fee).compareTo(amountInMax) <= 0, "NulswapV3: EXCESSIVE_INPUT_AMOUNT");
+            if (fee.compareTo(BigInteger.ZERO) > 0)
+                accrueFee(fee, amountIn, route.tokenIn(), ref);
+            safeTransfer(route.tokenIn(), route.pairs[0], amountIn);
+            return;
+        }
+
+        BigInteger provided = input.kind == ASSET_NULS ? Msg.value() : receivedWAsset(input.chainId, input.assetId);
+        BigInteger fee      = NulswapMath.mulDiv(amountIn, platformFee, BASIS_POINTS);
+        BigInteger total    = amountIn.add(fee);
+
+        require(total.compareTo(amountInMax) <= 0 && total.compareTo(provided) <= 0, "NulswapV3: EXCESSIVE_INPUT_AMOUNT");
+
+        _deposit(input, total);
+        accrueFee(fee, amountIn, input.token, ref);
+        safeTransfer(input.token, route.pairs[0], amountIn);
+
+        // refund dust, if any
+        if (provided.compareTo(total.add(MIN_TRANSFERABLE)) > 0) {
+            if (input.kind == ASSET_NULS)
+                safeTransferETH(Msg.sender(), provided.subtract(total));
+            else
+                safeTransferWAsset(Msg.sender(), provided.subtract(total), input.chainId, input.assetId);
+        }
     }
 
-    public void swapExactTokensForWAssetSupportingFeeOnTransferTokens(
-            Integer chainId,
-            Integer assetId,
+    /**
+     * Wrap NULS or MultiAsset sent with the call
+     *
+     * */
+    private void _deposit(SwapAsset input, BigInteger amount){
+        if (input.kind == ASSET_NULS)
+            depositNuls(amount);
+        else
+            depositMultiAsset(amount, input.chainId, input.assetId, 0);
+    }
+
+    /**
+     * Unwrap the output held by the router and send it to the receiver
+     *
+     * @dev Token outputs are sent directly by the last pair
+     * */
+    private void _deliverOutput(SwapAsset output, BigInteger amountOut, Address to){
+
+        if (output.kind == ASSET_NULS) {
+            withdrawNuls(amountOut);
+            safeTransferETH(to, amountOut);
+        } else if (output.kind == ASSET_WASSET) {
+            withdrawWAsset(output.token, amountOut);
+            safeTransferWAsset(to, amountOut, output.chainId, output.assetId);
+        }
+    }
+
+    /**
+     *
+     *
+     *
+     * */
+    public void swapExactTokensForTokensSupportingFeeOnTransferTokens(
             BigInteger amountIn,
             BigInteger amountOutMin,
-            String[]  path,
+            String[] path,
+            Address to,
+            BigInteger deadline,
+            Address ref
+    )  {
+        ensure(deadline);
+        blacklist();
+        whenNotPaused();
+
+        _swapExactInSupportingFeeOnTransferTokens(tokenAsset(), tokenAsset(), amountIn, amountOutMin, path, to, ref);
+    }
+
+    @Payable
+    public void  swapExactNulsForTokensSupportingFeeOnTransferTokens(
+            BigInteger amountOutMin,
+            String[] path,
             Address to,
             BigInteger deadline,
             Address ref
@@ -984,21 +1320,58 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId).get(assetId)), "UniswapV2Router: INVALID_PATH");
+        _swapExactInSupportingFeeOnTransferTokens(nulsAsset(), tokenAsset(), Msg.value(), amountOutMin, path, to, ref);
+    }
 
-        amountIn = takeFee(amountIn, new Address(path[0]), ref);
-        safeTransferFrom(
-                new Address(path[0]), Msg.sender(), safeGetPair( new Address(path[0]), new Address(path[1])), amountIn
-        );
+    public void swapExactTokensForNulsSupportingFeeOnTransferTokens(
+           BigInteger amountIn,
+            BigInteger amountOutMin,
+            String[]  path,
+            Address to,
+            BigInteger deadline,
+            Address ref
+    )
+    {
+        ensure(deadline);
+        blacklist();
+        whenNotPaused();
 
+        _swapExactInSupportingFeeOnTransferTokens(tokenAsset(), nulsAsset(), amountIn, amountOutMin, path, to, ref);
+    }
+
+    @PayableMultyAsset
+    public void  swapExactWAssetForTokensSupportingFeeOnTransferTokens(
+            Integer chainId,
+            Integer assetId,
+            BigInteger amountOutMin,
+            String[] path,
+            Address to,
+            BigInteger deadline,
+            Address ref
+    ){
+        ensure(deadline);
+        blacklist();
+        whenNotPaused();
 
+        _swapExactInSupportingFeeOnTransferTokens(wAssetOf(chainId, assetId), tokenAsset(), receivedWAsset(chainId, assetId), amountOutMin, path, to, ref);
+    }
 
-        _swapSupportingFeeOnTransferTokens(path, Msg.address());
-        BigInteger amountOut = safeBalanceOf(_wAssets.get(chainId).get(assetId), Msg.address());// IERC20(WETH).balanceOf(address(this));
+    public void swapExactTokensForWAssetSupportingFeeOnTransferTokens(
+            Integer chainId,
+            Integer assetId,
+            BigInteger amountIn,
+            BigInteger amountOutMin,
+            String[]  path,
+            Address to,
+            BigInteger deadline,
+            Address ref
+    )
+    {
+        ensure(deadline);
+        blacklist();
+        whenNotPaused();
 
-        require(amountOut.compareTo(amountOutMin) >= 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
-        withdrawWAsset(_wAssets.get(chainId).get(assetId), amountOut);
-        safeTransferWAsset(to, amountOut, chainId, assetId);
+        _swapExactInSupportingFeeOnTransferTokens(tokenAsset(), wAssetOf(chainId, assetId), amountIn, amountOutMin, path, to, ref);
     }
 
     /**
@@ -1023,16 +1396,107 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        amountIn = takeFee(amountIn, new Address(path[0]), ref);
+        return toStringArray(_swapExactIn(tokenAsset(), tokenAsset(), amountIn, amountOutMin, path, to, ref));
+    }
+
+    /**
+     * Swap from a Token to a Token splitting the input across several paths
+     *
+     * @param amountIn Amount from initial token that user wants to swap
+     * @param amountOutMin Minimum total amount of tokens a user wants to receive
+     * @param paths Paths to use, each one written as "tokenA,tokenB,..."
+     * @param shares Share of the input sent through each path (in basis points, summing to 10000)
+     * @param to The address that will receive the result of the trade
+     * @param deadline  Until when this trade is valid
+     *
+     * @dev The fee is taken once on the whole input. Legs are quoted in
+     *      execution order on top of the reserves left by the previous
+     *      legs, so paths may share pairs, except concentrated pairs which
+     *      quote on their live state. Returns the amounts of each leg
+     * */
+    @JSONSerializable
+    public String[] swapExactTokensForTokensSplit(
+            BigInteger amountIn,
+            BigInteger amountOutMin,
+            String[] paths,
+            int[] shares,
+            Address to,
+            BigInteger deadline,
+            Address ref
+    ){
+        ensure(deadline);
+        blacklist();
+        whenNotPaused();
+
+        require(paths.length > 0 && paths.length <= MAX_SPLIT_LEGS && paths.length == shares.length, "NulswapV3: INVALID_SPLIT");
+
+        long totalShares = 0;
+        for (int i = 0; i < shares.length; i++) {
+            require(shares[i] > 0 && shares[i] <= BASIS_POINTS.intValue(), "NulswapV3: INVALID_SPLIT");
+            totalShares += shares[i];
+        }
+        require(totalShares == BASIS_POINTS.longValue(), "NulswapV3: INVALID_SPLIT");
+
+        String[][] splitPaths = new String[paths.length][];
+        for (int i = 0; i < paths.length; i++) {
+            splitPaths[i] = paths[i].split(",");
+            require(splitPaths[i].length >= 2, "NulswapV3: INVALID_PATH");
+        }
+        Address tokenIn  = new Address(splitPaths[0][0]);
+        Address tokenOut = new Address(splitPaths[0][splitPaths[0].length - 1]);
 
-        String[] amounts = getAmountsOut(amountIn, path);
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        amountIn = takeFee(amountIn, tokenIn, ref);
 
-        safeTransferFrom(new Address(path[0]), Msg.sender(), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0]));
+        Map<Address, BigInteger[]> reserveCache = new HashMap<Address, BigInteger[]>();
+        Route[] routes         = new Route[paths.length];
+        BigInteger[][] amounts = new BigInteger[paths.length][];
 
-        _swap(amounts, path, to);
+        // Resolve and quote every leg on the reserves left by the previous ones, the last one takes the rounding remainder
+        BigInteger remaining = amountIn;
+        BigInteger totalOut  = BigInteger.ZERO;
+        for (int i = 0; i < paths.length; i++) {
 
-        return amounts;
+            routes[i] = _resolveRoute(splitPaths[i], reserveCache, null);
+            require(routes[i] != null, "NulswapV3: PAIR_NOT_FOUND");
+            require(routes[i].tokenIn().equals(tokenIn) && routes[i].tokenOut().equals(tokenOut), "NulswapV3: INVALID_SPLIT");
+            require(!_reusesConcentratedPair(routes[i], routes, i), "NulswapV3: CONCENTRATED_PAIR_REUSED");
+
+            BigInteger legIn = i < paths.length - 1 ? amountIn.multiply(BigInteger.valueOf(shares[i])).divide(BASIS_POINTS) : remaining;
+            remaining = remaining.subtract(legIn);
+
+            amounts[i] = _getAmountsOut(legIn, routes[i]);
+            totalOut   = totalOut.add(amounts[i][amounts[i].length - 1]);
+
+            _applyAmounts(routes[i], amounts[i], reserveCache);
+        }
+        require(totalOut.compareTo(amountOutMin) >= 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+
+        String[] results = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            safeTransferFrom(routes[i].tokenIn(), Msg.sender(), routes[i].pairs[0], amounts[i][0]);
+            _swap(amounts[i], routes[i], to);
+            results[i] = joinAmounts(toStringArray(amounts[i]));
+        }
+        return results;
+    }
+
+    /**
+     * Update cached reserves with the effect of swapping a route
+     *
+     * @param route Route that will be swapped
+     * @param amounts Amounts of the route
+     * @param reserveCache Reserves read in this call (pair => reserves)
+     * */
+    private void _applyAmounts(Route route, BigInteger[] amounts, Map<Address, BigInteger[]> reserveCache){
+
+        for (int i = 0; i < route.pairs.length; i++) {
+
+            BigInteger[] reserves = reserveCache.get(route.pairs[i]).clone();
+
+            reserves[route.indexIn[i]]  = reserves[route.indexIn[i]].add(amounts[i]);
+            reserves[route.indexOut[i]] = reserves[route.indexOut[i]].subtract(amounts[i + 1]);
+            reserveCache.put(route.pairs[i], reserves);
+        }
     }
 
     /**
@@ -1056,17 +1520,9 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        String[] amounts = getAmountsIn(amountOut, path);
-        BigInteger fee = takeFeeOutput(new BigInteger(amounts[0]), new Address(path[0]), ref);
-
-        require((new BigInteger(amounts[0]).add(fee)).compareTo(amountInMax) <= 0, "NulswapV2Router: EXCESSIVE_INPUT_AMOUNT");
-        safeTransferFrom(new Address(path[0]), Msg.sender(), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0]));
-
-        _swap(amounts, path, to);
-        return amounts;
+        return toStringArray(_swapExactOut(tokenAsset(), tokenAsset(), amountOut, amountInMax, path, to, ref));
     }
 
-
     /**
      *
      *
@@ -1077,30 +1533,18 @@ public class NulswapRouter extends Ownable implements Contract{
      * */
     @Payable
     @JSONSerializable
-   public String[] swapExactNulsForTokens(
-           BigInteger amountOutMin,
-           String[] path,
-           Address to,
-           BigInteger deadline,
-           Address ref
+    public String[] swapExactNulsForTokens(
+            BigInteger amountOutMin,
+            String[] path,
+            Address to,
+            BigInteger deadline,
+            Address ref
     ){
         ensure(deadline);
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(WNULS), "NulswapV2Router: INVALID_PATH");
-
-        depositNuls(Msg.value()); //IWETH(WETH).deposit{value: amounts[0]}();
-        BigInteger realVal = takeFeeInternal(Msg.value(), new Address(path[0]), ref);
-
-        String[] amounts = getAmountsOut(realVal, path);
-
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT");
-
-        require(safeTransfer(WNULS, safeGetPair( new Address(path[0]), new Address(path[1])), realVal), "Transfer failed");
-        _swap(amounts, path, to);
-
-        return amounts;
+        return toStringArray(_swapExactIn(nulsAsset(), tokenAsset(), Msg.value(), amountOutMin, path, to, ref));
     }
 
     /**
@@ -1126,16 +1570,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[path.length - 1]).equals(WNULS), "NulswapV3: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-        BigInteger fee = takeFeeOutput(new BigInteger(amounts[0]), new Address(path[0]), ref);
-
-        require((new BigInteger(amounts[0]).add(fee)).compareTo(amountInMax) <= 0, "NulswapV3: EXCESSIVE_INPUT_AMOUNT");
-        safeTransferFrom(new Address(path[0]), Msg.sender(), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0]));
-        _swap(amounts, path, Msg.address());
-        withdrawNuls(new BigInteger(amounts[amounts.length - 1]));
-        safeTransferETH(to, new BigInteger(amounts[amounts.length - 1]));
-        return amounts;
+        return toStringArray(_swapExactOut(tokenAsset(), nulsAsset(), amountOut, amountInMax, path, to, ref));
     }
 
     /**
@@ -1159,19 +1594,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        amountIn = takeFee(amountIn, new Address(path[0]), ref);
-
-        require(new Address(path[path.length - 1]).equals(WNULS),"NulswapRouterV3: INVALID_PATH");
-        String[] amounts = getAmountsOut(amountIn, path);
-
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapRouterV3: INSUFFICIENT_OUTPUT_AMOUNT");
-        safeTransferFrom(new Address(path[0]), Msg.sender(), safeGetPair(new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0]));
-        _swap(amounts, path, Msg.address());
-
-        withdrawNuls(new BigInteger(amounts[amounts.length - 1])); //IWETH(WETH).withdraw(amounts[amounts.length - 1]);
-        safeTransferETH(to, new BigInteger(amounts[amounts.length - 1]));
-
-        return amounts;
+        return toStringArray(_swapExactIn(tokenAsset(), nulsAsset(), amountIn, amountOutMin, path, to, ref));
     }
 
     /**
@@ -1194,21 +1617,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(WNULS), "NulswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-
-        depositNuls(new BigInteger(amounts[0]));
-        //TODO Insufficient redemption amountOut, safeTransferFrom cannot be used, wNuls has been transferred to the router
-        BigInteger fee = takeFeeOutput(new BigInteger(amounts[0]), new Address(path[0]), ref);
-        depositNuls(fee);
-        require((new BigInteger(amounts[0]).add(fee)).compareTo(Msg.value()) <= 0, "NulswapV2Router: EXCESSIVE_INPUT_AMOUNT");
-
-
-        require(safeTransfer(WNULS, safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Failed Transfer");
-        _swap(amounts, path, to);
-
-        if (Msg.value().compareTo(new BigInteger(amounts[0]).add(MIN_TRANSFERABLE)) > 0) safeTransferETH(Msg.sender(), Msg.value().subtract(new BigInteger(amounts[0]))); // refund dust eth, if any
-        return amounts;
+        return toStringArray(_swapExactOut(nulsAsset(), tokenAsset(), amountOut, Msg.value(), path, to, ref));
     }
 
     /**
@@ -1234,29 +1643,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
-
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
-
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
-
-        require(chainId == chain && assetId == asset, "NulswapV1: Amount deposited does not match");
-
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsOut(val, path);
-        depositMultiAsset(new BigInteger(amounts[0]), chainId , assetId, 0);
-        //TODO calc fee?
-        BigInteger realVal = takeFee(val, new Address(path[0]), ref);
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT");
-
-
-        require(safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Transfer failed");
-        _swap(amounts, path, to);
-
-        return amounts;
+        return toStringArray(_swapExactIn(wAssetOf(chainId, assetId), tokenAsset(), receivedWAsset(chainId, assetId), amountOutMin, path, to, ref));
     }
 
     /**
@@ -1282,16 +1669,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId).get(assetId)), "UniswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-        BigInteger fee = takeFeeOutput(new BigInteger(amounts[0]), new Address(path[0]), ref);
-
-        require((new BigInteger(amounts[0]).add(fee)).compareTo(amountInMax) <= 0, "UniswapV2Router: EXCESSIVE_INPUT_AMOUNT");
-        safeTransferFrom(new Address(path[0]), Msg.sender(), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0]));
-        _swap(amounts, path, Msg.address());
-        withdrawWAsset(getMUltiwAsset(chainId, assetId),new BigInteger(amounts[amounts.length - 1]) );
-        safeTransferWAsset(to, new BigInteger(amounts[amounts.length - 1]), chainId, assetId);
-        return amounts;
+        return toStringArray(_swapExactOut(tokenAsset(), wAssetOf(chainId, assetId), amountOut, amountInMax, path, to, ref));
     }
 
     /**
@@ -1317,19 +1695,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        amountIn = takeFee(amountIn, new Address(path[0]), ref);
-
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId).get(assetId)),"NulswapRouterV3: INVALID_PATH");
-        String[] amounts = getAmountsOut(amountIn, path);
-
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapRouterV3: INSUFFICIENT_OUTPUT_AMOUNT");
-        safeTransferFrom(new Address(path[0]), Msg.sender(), safeGetPair(new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0]));
-        _swap(amounts, path, Msg.address());
-
-        withdrawWAsset(getMUltiwAsset(chainId, assetId), new BigInteger(amounts[amounts.length - 1])); //IWETH(WETH).withdraw(amounts[amounts.length - 1]);
-        safeTransferWAsset(to, new BigInteger(amounts[amounts.length - 1]), chainId, assetId);
-
-        return amounts;
+        return toStringArray(_swapExactIn(tokenAsset(), wAssetOf(chainId, assetId), amountIn, amountOutMin, path, to, ref));
     }
 
     /**
@@ -1354,32 +1720,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV3Router: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
-
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
-
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
-
-        require(chainId == chain && assetId == asset, "NulswapV1: Amount deposited does not match");
-
-        require(new BigInteger(amounts[0]).compareTo(val) <= 0, "NulswapV2Router: EXCESSIVE_INPUT_AMOUNT");
-
-        depositMultiAsset(new BigInteger(amounts[0]), chainId, assetId, 0);
-
-        //TODO Insufficient swap amountOut
-        amounts[0] = takeFeeInternal(new BigInteger(amounts[0]), _wAssets.get(chainId).get(assetId), ref).toString();
-
-        require(safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Failed Transfer");
-        _swap(amounts, path, to);
-
-        if (val.compareTo(new BigInteger(amounts[0]).add(MIN_TRANSFERABLE)) > 0) safeTransferWAsset(Msg.sender(), val.subtract(new BigInteger(amounts[0])), chainId, assetId); // refund dust eth, if any
-        return amounts;
+        return toStringArray(_swapExactOut(wAssetOf(chainId, assetId), tokenAsset(), amountOut, receivedWAsset(chainId, assetId), path, to, ref));
     }
 
     /**
@@ -1405,24 +1746,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(WNULS), "NulswapV2Router: INVALID_PATH");
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsOut(Msg.value(), path);
-
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT");
-        depositNuls(new BigInteger(amounts[0])); //IWETH(WETH).deposit{value: amounts[0]}();
-
-        amounts[0] = takeFeeInternal(new BigInteger(amounts[0]) ,WNULS, ref).toString();
-
-        require(safeTransfer(WNULS, safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Transfer failed");
-
-        _swap(amounts, path, Msg.address());
-
-        withdrawWAsset(getMUltiwAsset(chainId, assetId), new BigInteger(amounts[amounts.length - 1])); //IWETH(WETH).withdraw(amounts[amounts.length - 1]);
-        safeTransferWAsset(to, new BigInteger(amounts[amounts.length - 1]), chainId, assetId);
-
-
-        return amounts;
+        return toStringArray(_swapExactIn(nulsAsset(), wAssetOf(chainId, assetId), Msg.value(), amountOutMin, path, to, ref));
     }
 
     /**
@@ -1450,32 +1774,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV3Router: INVALID_PATH");
-        require(new Address(path[path.length - 1]).equals(WNULS), "UniswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
-
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
-
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
-
-        require(chainId == chain && assetId == asset, "NulswapV1: Amount deposited does not match");
-
-        require(new BigInteger(amounts[0]).compareTo(val) <= 0, "NulswapV2Router: EXCESSIVE_INPUT_AMOUNT");
-
-        depositMultiAsset(new BigInteger(amounts[0]), chainId, assetId, 0);
-
-        //TODO Insufficient swap amountOut
-        amounts[0] = takeFeeInternal(new BigInteger(amounts[0]), _wAssets.get(chainId).get(assetId), ref).toString();
-        require(safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Failed Transfer");
-        _swap(amounts, path, Msg.address());
-        withdrawNuls(new BigInteger(amounts[amounts.length - 1]));
-        safeTransferETH(to, new BigInteger(amounts[amounts.length - 1]));
-        return amounts;
+        return toStringArray(_swapExactOut(wAssetOf(chainId, assetId), nulsAsset(), amountOut, amountInMax, path, to, ref));
     }
 
     /**
@@ -1502,33 +1801,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
-
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
-
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
-
-        require(chainId == chain && assetId == asset, "NulswapV1: Amount deposited does not match");
-
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV2Router: INVALID_PATH");
-        require(new Address(path[path.length - 1]).equals(WNULS), "UniswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsOut(val, path);
-
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT");
-        depositMultiAsset(new BigInteger(amounts[0]), chainId , assetId, 0);
-
-        amounts[0] = takeFeeInternal(new BigInteger( amounts[0]), _wAssets.get(chainId).get(assetId), ref).toString();
-
-        require(safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Transfer failed");
-        _swap(amounts, path, Msg.address());
-
-        withdrawNuls(new BigInteger(amounts[amounts.length - 1])); //IWETH(WETH).withdraw(amounts[amounts.length - 1]);
-        safeTransferETH(to, new BigInteger(amounts[amounts.length - 1]));
-
-        return amounts;
+        return toStringArray(_swapExactIn(wAssetOf(chainId, assetId), nulsAsset(), receivedWAsset(chainId, assetId), amountOutMin, path, to, ref));
     }
 
     /**
@@ -1553,22 +1826,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(WNULS), "NulswapV2Router: INVALID_PATH");
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId).get(assetId)), "UniswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-        require(new BigInteger(amounts[0]).compareTo(Msg.value()) <= 0, "NulswapV2Router: EXCESSIVE_INPUT_AMOUNT");
-
-        depositNuls(new BigInteger(amounts[0]));
-
-        //TODO Insufficient swap amountOut
-        amounts[0] = takeFeeInternal(new BigInteger(amounts[0]), WNULS, ref).toString();
-
-        require(safeTransfer(WNULS, safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Failed Transfer");
-        _swap(amounts, path, Msg.address());
-
-        withdrawWAsset(getMUltiwAsset(chainId, assetId),new BigInteger(amounts[amounts.length - 1]) );
-        safeTransferWAsset(to, new BigInteger(amounts[amounts.length - 1]), chainId, assetId);
-        return amounts;
+        return toStringArray(_swapExactOut(nulsAsset(), wAssetOf(chainId, assetId), amountOut, Msg.value(), path, to, ref));
     }
 
     /**
@@ -1596,34 +1854,7 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
-
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
-
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
-
-        require(chainId == chain && assetId == asset, "NulswapV1: Amount deposited does not match");
-
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV2Router: INVALID_PATH");
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId2).get(assetId2)), "NulswapV2Router: INVALID_PATH");
-
-        depositMultiAsset(val, chainId , assetId, 0);
-        val = takeFeeInternal(val, _wAssets.get(chainId).get(assetId), ref);
-        String[] amounts = getAmountsOut(val, path);
-
-        require(new BigInteger(amounts[amounts.length - 1]).compareTo(amountOutMin) >= 0, "NulswapV2Router: INSUFFICIENT_OUTPUT_AMOUNT");
-
-
-        require(safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair( new Address(path[0]), new Address(path[1])), val), "Transfer failed");
-        _swap(amounts, path, Msg.address());
-
-        withdrawWAsset(getMUltiwAsset(chainId2, assetId2), new BigInteger(amounts[amounts.length - 1])); //IWETH(WETH).withdraw(amounts[amounts.length - 1]);
-        safeTransferWAsset(to, new BigInteger(amounts[amounts.length - 1]), chainId2, assetId2);
-
-        return amounts;
+        return toStringArray(_swapExactIn(wAssetOf(chainId, assetId), wAssetOf(chainId2, assetId2), receivedWAsset(chainId, assetId), amountOutMin, path, to, ref));
     }
 
     /**
@@ -1652,34 +1883,222 @@ public class NulswapRouter extends Ownable implements Contract{
         blacklist();
         whenNotPaused();
 
-        require(new Address(path[0]).equals(_wAssets.get(chainId).get(assetId)), "NulswapV3Router: INVALID_PATH");
-        require(new Address(path[path.length - 1]).equals(_wAssets.get(chainId2).get(assetId2)), "UniswapV2Router: INVALID_PATH");
-        String[] amounts = getAmountsIn(amountOut, path);
-
-        require(Msg.multyAssetValues().length == 1, "NulswapV3: Send the MultiAsset required or don't send more than one");
+        return toStringArray(_swapExactOut(wAssetOf(chainId, assetId), wAssetOf(chainId2, assetId2), amountOut, receivedWAsset(chainId, assetId), path, to, ref));
+    }
 
-        MultyAssetValue[] arAssets = Msg.multyAssetValues();
-        MultyAssetValue mToken1 = arAssets[0];
+    /**
+     * Execute several router operations atomically in one transaction
+     *
+     * @param calls Encoded operations, "method;arg1;arg2;..." with paths written as "tokenA,tokenB,..."
+     * @param deadline Until when the whole batch is valid
+     *
+     * @dev Deadline, blacklist and pause are checked once for the batch.
+     *      Supported: addLiquidity, removeLiquidity, swapExactTokensForTokens,
+     *      swapTokensForExactTokens and swapExactTokensForTokensSupportingFeeOnTransferTokens,
+     *      with the same arguments as the public methods minus the deadline.
+     *      Operations can be chained:
+     *      - an amount written "$i" is the last value returned by operation i,
+     *        "$i.k" its k-th value, e.g. "$0.1" is amountB of a removeLiquidity
+     *      - a receiver written "router" keeps the output in the router for
+     *        the next operations, which pay a token from it while any is held
+     *      Whatever is still held at the end is sent back to the sender.
+     *      If any operation fails the whole transaction is reverted
+     * */
+    @JSONSerializable
+    public String[] multicall(String[] calls, BigInteger deadline){
+        ensure(deadline);
+        blacklist();
+        whenNotPaused();
 
-        int asset = mToken1.getAssetId();
-        int chain = mToken1.getAssetChainId();
-        BigInteger val = mToken1.getValue();
+        require(calls.length > 0, "NulswapV3: EMPTY_MULTICALL");
 
-        require(chainId == chain && assetId == asset, "NulswapV3: Amount deposited does not match");
+        Map<Address, BigInteger> held = new HashMap<Address, BigInteger>();
+        String[] results = new String[calls.length];
+        for (int i = 0; i < calls.length; i++) {
+            results[i] = _execute(calls[i], results, held);
+        }
 
-        require(new BigInteger(amounts[0]).compareTo(val) <= 0, "NulswapV3: EXCESSIVE_INPUT_AMOUNT");
+        // return what the operations left in the router
+        for (Map.Entry<Address, BigInteger> entry : held.entrySet()) {
+            if (entry.getValue().compareTo(BigInteger.ZERO) > 0)
+                safeTransfer(entry.getKey(), Msg.sender(), entry.getValue());
+        }
+        return results;
+    }
 
-        depositMultiAsset(new BigInteger(amounts[0]), chainId, assetId, 0);
+    /**
+     * Decode and run one multicall operation
+     *
+     * @param call Encoded operation
+     * @param results Results of the operations already run, later entries are null
+     * @param held Tokens earlier operations left in the router (token => amount)
+     * */
+    private String _execute(String call, String[] results, Map<Address, BigInteger> held){
+
+        String[] args = call.split(";");
+        String method = args[0];
+
+        if (method.equals("addLiquidity")) {
+            require(args.length == 8, "NulswapV3: INVALID_CALL");
+            Address tokenA = new Address(args[1]);
+            Address tokenB = new Address(args[2]);
+            Address to     = _receiverArg(args[7]);
+            String result  = _addTokenLiquidity(
+                    tokenA, tokenB,
+                    _amountArg(args[3], results), _amountArg(args[4], results),
+                    _amountArg(args[5], results), _amountArg(args[6], results),
+                    to, held
+            );
+            if (to.equals(Msg.address()))
+                _hold(held, safeGetState(safeGetPair(tokenA, tokenB)).lp, new BigInteger(result.substring(result.lastIndexOf(",") + 1)));
+            return result;
+        }
 
-        //TODO Insufficient swap amountOut
-        amounts[0] = takeFeeInternal(new BigInteger(amounts[0]), _wAssets.get(chainId).get(assetId), ref).toString();
+        if (method.equals("removeLiquidity")) {
+            require(args.length == 7, "NulswapV3: INVALID_CALL");
+            Address tokenA = new Address(args[1]);
+            Address tokenB = new Address(args[2]);
+            Address to     = _receiverArg(args[6]);
+            BigInteger[] amounts = _removeLiquidity(
+                    tokenA, tokenB,
+                    _amountArg(args[3], results),
+                    _amountArg(args[4], results), _amountArg(args[5], results),
+                    to, held
+            );
+            if (to.equals(Msg.address())) {
+                _hold(held, tokenA, amounts[0]);
+                _hold(held, tokenB, amounts[1]);
+            }
+            return amounts[0] + "," + amounts[1];
+        }
 
-        require(safeTransfer(_wAssets.get(chainId).get(assetId), safeGetPair( new Address(path[0]), new Address(path[1])), new BigInteger(amounts[0])), "Failed Transfer");
-        _swap(amounts, path, Msg.address());
+        if (method.equals("swapExactTokensForTokens")) {
+            require(args.length == 6, "NulswapV3: INVALID_CALL");
+            String[] path       = args[3].split(",");
+            BigInteger amountIn = _amountArg(args[1], results);
+            Address to          = _receiverArg(args[4]);
+            SwapAsset input     = _takeHeld(held, new Address(path[0]), amountIn) ? heldAsset() : tokenAsset();
+            BigInteger[] amounts = _swapExactIn(
+                    input, tokenAsset(), amountIn, _amountArg(args[2], results), path, to, new Address(args[5])
+            );
+            if (to.equals(Msg.address()))
+                _hold(held, new Address(path[path.length - 1]), amounts[amounts.length - 1]);
+            return joinAmounts(toStringArray(amounts));
+        }
 
-        withdrawWAsset(getMUltiwAsset(chainId2, assetId2),new BigInteger(amounts[amounts.length - 1]) );
-        safeTransferWAsset(to, new BigInteger(amounts[amounts.length - 1]), chainId2, assetId2);
-        return amounts;
+        if (method.equals("swapTokensForExactTokens")) {
+            require(args.length == 6, "NulswapV3: INVALID_CALL");
+            String[] path          = args[3].split(",");
+            BigInteger amountInMax = _amountArg(args[2], results);
+            Address to             = _receiverArg(args[4]);
+            Address tokenIn        = new Address(path[0]);
+            boolean fromHeld       = held.get(tokenIn) != null;
+            BigInteger[] amounts = _swapExactOut(
+                    fromHeld ? heldAsset() : tokenAsset(), tokenAsset(), _amountArg(args[1], results), amountInMax, path, to, new Address(args[5])
+            );
+            if (fromHeld)
+                _takeHeld(held, tokenIn, amounts[0].add(NulswapMath.mulDiv(amounts[0], platformFee, BASIS_POINTS)));
+            if (to.equals(Msg.address()))
+                _hold(held, new Address(path[path.length - 1]), amounts[amounts.length - 1]);
+            return joinAmounts(toStringArray(amounts));
+        }
+
+        if (method.equals("swapExactTokensForTokensSupportingFeeOnTransferTokens")) {
+            require(args.length == 6, "NulswapV3: INVALID_CALL");
+            String[] path       = args[3].split(",");
+            BigInteger amountIn = _amountArg(args[1], results);
+            Address to          = _receiverArg(args[4]);
+            SwapAsset input     = _takeHeld(held, new Address(path[0]), amountIn) ? heldAsset() : tokenAsset();
+            BigInteger amountOut = _swapExactInSupportingFeeOnTransferTokens(
+                    input, tokenAsset(), amountIn, _amountArg(args[2], results), path, to, new Address(args[5])
+            );
+            if (to.equals(Msg.address()))
+                _hold(held, new Address(path[path.length - 1]), amountOut);
+            return amountOut.toString();
+        }
+
+        require(false, "NulswapV3: UNKNOWN_CALL");
+        return "";
+    }
+
+    /**
+     * Decode a multicall amount, a literal or "$i" / "$i.k" for a value returned by operation i
+     *
+     * @param arg Encoded amount
+     * @param results Results of the operations already run
+     * */
+    private BigInteger _amountArg(String arg, String[] results){
+
+        if (!arg.startsWith("$"))
+            return new BigInteger(arg);
+
+        String[] ref = arg.substring(1).split("\\.");
+        int i        = Integer.parseInt(ref[0]);
+        require(i >= 0 && i < results.length && results[i] != null && results[i].length() > 0, "NulswapV3: INVALID_CALL");
+
+        String[] values = results[i].split(",");
+        int k           = ref.length > 1 ? Integer.parseInt(ref[1]) : values.length - 1;
+        require(k >= 0 && k < values.length, "NulswapV3: INVALID_CALL");
+
+        return new BigInteger(values[k]);
+    }
+
+    /**
+     * Decode a multicall receiver, "router" keeps the output for the next operations
+     *
+     * @param arg Encoded receiver
+     * */
+    private Address _receiverArg(String arg){
+        return arg.equals("router") ? Msg.address() : new Address(arg);
+    }
+
+    /**
+     * Record an output a multicall operation left in the router
+     *
+     * */
+    private void _hold(Map<Address, BigInteger> held, Address token, BigInteger amount){
+        held.put(token, getOrZero(held, token).add(amount));
+    }
+
+    /**
+     * Spend held tokens of a multicall, false if none of that token is held
+     *
+     * @dev Once a token is held, the operations paying it must be covered by what is held
+     * */
+    private boolean _takeHeld(Map<Address, BigInteger> held, Address token, BigInteger amount){
+
+        BigInteger available = held != null ? held.get(token) : null;
+        if (available == null)
+            return false;
+
+        require(available.compareTo(amount) >= 0, "NulswapV3: INSUFFICIENT_HELD_AMOUNT");
+        held.put(token, available.subtract(amount));
+        return true;
+    }
+
+    /**
+     * Pay a token to a pair, from the multicall held tokens if any is held, else from the sender
+     *
+     * @param held Tokens earlier multicall operations left in the router, null outside a multicall
+     * */
+    private void _payFrom(Map<Address, BigInteger> held, Address token, Address recipient, BigInteger amount){
+        if (_takeHeld(held, token, amount))
+            safeTransfer(token, recipient, amount);
+        else
+            safeTransferFrom(token, Msg.sender(), recipient, amount);
+    }
+
+    /**
+     * Join amounts as "a0,a1,..."
+     *
+     * @param amounts
+     * */
+    private String joinAmounts(String[] amounts){
+        StringBuilder sb = new StringBuilder(amounts[0]);
+        for (int i = 1; i < amounts.length; i++) {
+            sb.append(",").append(amounts[i]);
+        }
+        return sb.toString();
     }
 
     /**
@@ -1689,7 +2108,7 @@ public class NulswapRouter extends Ownable implements Contract{
      * @param tokenB TokenB Contract Address
      * */
     // returns sorted token addresses, used to handle return values from pairs sorted in this order
-    private String sortTokens(Address tokenA, Address tokenB){
+    private Address[] sortTokens(Address tokenA, Address tokenB){
 
         require(!tokenA.equals(tokenB), "NulswapV3: IDENTICAL_ADDRESSES");
 
@@ -1703,40 +2122,20 @@ public class NulswapRouter extends Ownable implements Contract{
         }
 
         require(token0 != null, "NulswapV3: ZERO_ADDRESS");
-        return token0 + "," + token1;
+        return new Address[]{token0, token1};
     }
 
     /**
-     * Return pair reserves
+     *  Return true if tokenA is the token0 of the pair formed with tokenB
      *
-     * @param tokenA
-     * @param tokenB
+     * @param tokenA TokenA Contract Address
+     * @param tokenB TokenB Contract Address
      * */
-    // fetches and sorts the reserves for a pair
-    private String getReserves(
-            Address tokenA,
-            Address tokenB
-    ){
-        String[] arrOfStr2  = sortTokens(tokenA, tokenB).split(",", 2);
-        Address token0      = new Address(arrOfStr2[0]);
-
-        String[] arrOfStr3  = safeGetReserves(safeGetPair(tokenA, tokenB)).split(",", 3);
-        BigInteger reserve0 = new BigInteger(arrOfStr3[0]);
-        BigInteger reserve1 = new BigInteger(arrOfStr3[1]);
-
-        BigInteger reserveA, reserveB;
-        if (tokenA.equals(token0)){
-            reserveA = reserve0;
-            reserveB = reserve1;
-        } else {
-            reserveA = reserve1;
-            reserveB = reserve0;
-        }
-
-        return reserveA + "," + reserveB;
+    private boolean isToken0(Address tokenA, Address tokenB){
+        require(!tokenA.equals(tokenB), "NulswapV3: IDENTICAL_ADDRESSES");
+        return tokenA.hashCode() < tokenB.hashCode();
     }
 
-
     /**
      * Quote the return output amount given amountA and reserves
      *
@@ -1752,8 +2151,7 @@ public class NulswapRouter extends Ownable implements Contract{
     ){
         require(amountA.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_AMOUNT");
         require(reserveA.compareTo(BigInteger.ZERO) > 0 && reserveB.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
-        BigInteger amountB = amountA.multiply(reserveB).divide(reserveA);
-        return amountB;
+        return NulswapMath.mulDiv(amountA, reserveB, reserveA);
     }
 
     /**
@@ -1773,12 +2171,7 @@ public class NulswapRouter extends Ownable implements Contract{
         require(amountIn.compareTo(BigInteger.ZERO) > 0,"NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
         require(reserveIn.compareTo(BigInteger.ZERO) > 0 && reserveOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
 
-        BigInteger amountInWithFee = amountIn.multiply(BigInteger.valueOf(997));
-        BigInteger numerator = amountInWithFee.multiply(reserveOut);
-        BigInteger denominator = reserveIn.multiply(BigInteger.valueOf(1000)).add(amountInWithFee);
-        BigInteger amountOut = numerator.divide(denominator);
-
-        return amountOut;
+        return NulswapMath.getAmountOut(amountIn, reserveIn, reserveOut);
     }
 
     /**
@@ -1798,65 +2191,508 @@ public class NulswapRouter extends Ownable implements Contract{
         require(amountOut.compareTo(BigInteger.ZERO) > 0, "NulswapRouterV3: INSUFFICIENT_OUTPUT_AMOUNT");
         require(reserveIn.compareTo(BigInteger.ZERO) > 0 && reserveOut.compareTo(BigInteger.ZERO) > 0, "NulswapRouterV3: INSUFFICIENT_LIQUIDITY");
 
-        BigInteger numerator = reserveIn.multiply(amountOut).multiply(BigInteger.valueOf(1000));
-        BigInteger denominator = (reserveOut.subtract(amountOut)).multiply(BigInteger.valueOf(997));
-        BigInteger amountIn = (numerator.divide(denominator)).add(BigInteger.ONE);
+        return NulswapMath.getAmountIn(amountOut, reserveIn, reserveOut);
+    }
 
-        return amountIn;
+    /**
+     *
+     * @param amountIn
+     * @param path
+     * */
+    @View
+    @JSONSerializable
+    public String[] getAmountsOut(BigInteger amountIn, String[] path){
+        return toStringArray(_getAmountsOut(amountIn, _resolveRoute(path, new ViewCache())));
+    }
+
+    /**
+     *
+     * @param amountOut
+     * @param path
+     * */
+    @View
+    @JSONSerializable
+    public String[] getAmountsIn(BigInteger amountOut, String[] path) {
+        return toStringArray(_getAmountsIn(amountOut, _resolveRoute(path, new ViewCache())));
+    }
+
+    /**
+     * Output amounts for every hop of an already resolved route
+     *
+     * @param amountIn
+     * @param route
+     * */
+    private BigInteger[] _getAmountsOut(BigInteger amountIn, Route route){
+
+        BigInteger[] amounts = new BigInteger[route.tokens.length];
+        amounts[0]           = amountIn;
+
+        for (int i = 0; i < route.pairs.length; i++) {
+            amounts[i + 1] = _hopOut(route, i, amounts[i]);
+        }
+        return amounts;
+    }
+
+    /**
+     * Input amounts for every hop of an already resolved route
+     *
+     * @param amountOut
+     * @param route
+     * */
+    private BigInteger[] _getAmountsIn(BigInteger amountOut, Route route) {
+
+        BigInteger[] amounts        = new BigInteger[route.tokens.length];
+        amounts[amounts.length - 1] = amountOut;
+
+        for (int i = route.pairs.length; i > 0; i--) {
+            amounts[i - 1] = _hopIn(route, i - 1, amounts[i]);
+        }
+        return amounts;
+    }
+
+    /**
+     * Output of one hop, with the math of the pair type
+     *
+     * @param route
+     * @param i Hop index
+     * @param amountIn
+     * */
+    private BigInteger _hopOut(Route route, int i, BigInteger amountIn){
+        if (isQuotedLocally(route.kinds[i]))
+            return getAmountOut(amountIn, route.reserveIn[i], route.reserveOut[i]);
+        return safeGetPoolAmount("getAmountOut", route.pairs[i], amountIn, route.reserveIn[i], route.reserveOut[i], route.inputIsToken0[i]);
+    }
+
+    /**
+     * Input of one hop, with the math of the pair type
+     *
+     * @param route
+     * @param i Hop index
+     * @param amountOut
+     * */
+    private BigInteger _hopIn(Route route, int i, BigInteger amountOut){
+        if (isQuotedLocally(route.kinds[i]))
+            return getAmountIn(amountOut, route.reserveIn[i], route.reserveOut[i]);
+        return safeGetPoolAmount("getAmountIn", route.pairs[i], amountOut, route.reserveIn[i], route.reserveOut[i], route.inputIsToken0[i]);
+    }
+
+    /**
+     * Pair types priced with the 0.3% constant product math of the router
+     *
+     * @param kind Factory pair kind
+     *
+     * @dev A multi pool has equal weights, so a swap between two of its
+     *      tokens is a constant product swap on their two reserves
+     * */
+    private boolean isQuotedLocally(int kind){
+        return kind == PAIR_CONSTANT_PRODUCT || kind == PAIR_MULTI;
+    }
+
+    /**
+     * Pair types whose liquidity is added and removed through the router
+     *
+     * @param kind Factory pair kind
+     *
+     * @dev Multi pools take all their tokens at once and concentrated pairs
+     *      hold ranged positions, both are managed on the pool itself
+     * */
+    private boolean hasRouterLiquidity(int kind){
+        return kind != PAIR_MULTI && kind != PAIR_CONCENTRATED;
+    }
+
+    /**
+     * Convert amounts to their decimal form, only used when returning them
+     *
+     * @param amounts
+     * */
+    private String[] toStringArray(BigInteger[] amounts){
+        String[] result = new String[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            result[i] = amounts[i].toString();
+        }
+        return result;
+    }
+
+    /**
+     * Resolve a path into its pairs, orientation and reserves
+     *
+     * @param path Array of tokens
+     *
+     * @dev Each pair address and its reserves are fetched once here
+     *      and then shared by the quote and by the swap loop
+     * */
+    private Route _resolveRoute(String[] path){
+        return _resolveRoute(path, null);
+    }
+
+    /**
+     * Resolve a path, keeping what the factory answers in a view cache if one is given
+     *
+     * @param path Array of tokens
+     * @param viewCache Factory answers of the current view call, null to use and fill the router registry
+     * */
+    private Route _resolveRoute(String[] path, ViewCache viewCache){
+
+        require(path.length >= 2, "NulswapV3: INVALID_PATH");
+
+        Route route = _resolveRoute(path, new HashMap<Address, BigInteger[]>(), viewCache);
+        require(route != null, "NulswapV3: PAIR_NOT_FOUND");
+        require(!_reusesConcentratedPair(route, null, 0), "NulswapV3: CONCENTRATED_PAIR_REUSED");
+
+        return route;
+    }
+
+    /**
+     * Whether a route goes through a concentrated pair already used in the call
+     *
+     * @param route Route to check
+     * @param others Routes swapped before it in the same call
+     * @param count Number of routes of others to look at
+     *
+     * @dev A concentrated pair quotes on its own live state and ignores the
+     *      reserves it is given, so the cached reserves cannot carry the
+     *      effect of a first visit over to a second one
+     * */
+    private boolean _reusesConcentratedPair(Route route, Route[] others, int count){
+
+        for (int i = 0; i < route.pairs.length; i++) {
+
+            if (route.kinds[i] != PAIR_CONCENTRATED)
+                continue;
+
+            for (int j = 0; j < i; j++) {
+                if (route.pairs[j].equals(route.pairs[i]))
+                    return true;
+            }
+            for (int k = 0; k < count; k++) {
+                for (int j = 0; j < others[k].pairs.length; j++) {
+                    if (others[k].pairs[j].equals(route.pairs[i]))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolve a path reading reserves through a per-call cache
+     *
+     * @param path Array of tokens
+     * @param reserveCache Reserves already read in this call (pair => reserves)
+     * @param viewCache Factory answers of the current view call, null to use and fill the router registry
+     *
+     * @dev Returns null if one of the pairs does not exist
+     * */
+    private Route _resolveRoute(String[] path, Map<Address, BigInteger[]> reserveCache, ViewCache viewCache){
+
+        Route route     = new Route(path.length);
+        route.tokens[0] = new Address(path[0]);
+
+        for (int i = 0; i < path.length - 1; i++) {
+
+            Address input       = route.tokens[i];
+            Address output      = new Address(path[i + 1]);
+            route.tokens[i + 1] = output;
+
+            Address pair = _hopVenue(input, output, reserveCache, viewCache);
+            if (pair.equals(BURNER_ADDR))
+                return null;
+
+            BigInteger[] reserves = cachedReserves(pair, reserveCache);
+            boolean inputIsToken0 = isToken0(input, output);
+            int kind              = pairKindOf(pair, viewCache);
+
+            route.pairs[i]         = pair;
+            route.kinds[i]         = kind;
+            route.inputIsToken0[i] = inputIsToken0;
+            route.indexIn[i]       = reserveIndex(pair, kind, input, inputIsToken0, viewCache);
+            route.indexOut[i]      = reserveIndex(pair, kind, output, !inputIsToken0, viewCache);
+            route.reserveIn[i]     = reserves[route.indexIn[i]];
+            route.reserveOut[i]    = reserves[route.indexOut[i]];
+        }
+        return route;
+    }
+
+    /**
+     * Quote one input amount against many paths
+     *
+     * @param amountIn Input amount
+     * @param paths Candidate paths, each one written as "tokenA,tokenB,..."
+     *
+     * @dev Every distinct pair, pair kind, pool listing and reserve is read
+     *      once for the whole call, paths sharing a hop reuse it. Each result
+     *      is "a0,a1,...,an" or an empty string if the path cannot be quoted
+     * */
+    @View
+    @JSONSerializable
+    public String[] getAmountsOutMulti(BigInteger amountIn, String[] paths){
+
+        Map<Address, BigInteger[]> reserveCache = new HashMap<Address, BigInteger[]>();
+        ViewCache viewCache = new ViewCache();
+        String[] results    = new String[paths.length];
+
+        for (int i = 0; i < paths.length; i++) {
+            String[] path = paths[i].split(",");
+            Route route   = path.length >= 2 ? _resolveRoute(path, reserveCache, viewCache) : null;
+            BigInteger[] amounts = route != null && !_reusesConcentratedPair(route, null, 0) ? _tryGetAmountsOut(amountIn, route) : null;
+            results[i] = amounts != null ? joinAmounts(toStringArray(amounts)) : "";
+        }
+        return results;
+    }
+
+    /**
+     * Quote many input amounts against one path
+     *
+     * @param amountsIn Input amounts
+     * @param path Array of tokens
+     *
+     * @dev The path is resolved once, with one view cache, and every amount
+     *      is quoted on it. Each result is "a0,a1,...,an" or an empty string
+     *      if the amount cannot be quoted
+     * */
+    @View
+    @JSONSerializable
+    public String[] getAmountsOutCurve(BigInteger[] amountsIn, String[] path){
+
+        Route route      = _resolveRoute(path, new ViewCache());
+        String[] results = new String[amountsIn.length];
+
+        for (int i = 0; i < amountsIn.length; i++) {
+            BigInteger[] amounts = _tryGetAmountsOut(amountsIn[i], route);
+            results[i] = amounts != null ? joinAmounts(toStringArray(amounts)) : "";
+        }
+        return results;
+    }
+
+    /**
+     * Search the best route between two tokens
+     *
+     * @param tokenIn Input Token
+     * @param tokenOut Output Token
+     * @param amountIn Input amount
+     * @param maxHops Maximum number of pairs in the route (1 to 3)
+     *
+     * @dev Intermediate tokens are WNULS and the owner's list, at most
+     *      MAX_INTERMEDIATES, so a 3 hop search quotes at most 163 hops.
+     *      Reserves, pairs, pair kinds and pool tokens are read once for
+     *      the whole search and kept in memory only, nothing is stored.
+     *      Returns [path, amounts] both comma-joined, or two empty strings
+     *      if no route exists
+     * */
+    @View
+    @JSONSerializable
+    public String[] getBestRoute(Address tokenIn, Address tokenOut, BigInteger amountIn, int maxHops){
+
+        require(maxHops >= 1 && maxHops <= MAX_SEARCH_HOPS, "NulswapV3: INVALID_MAX_HOPS");
+        require(!tokenIn.equals(tokenOut), "NulswapV3: IDENTICAL_ADDRESSES");
+        require(amountIn.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+
+        RouteSearch search = new RouteSearch(tokenOut, maxHops, getIntermediateTokens(tokenIn, tokenOut));
+
+        Address[] path       = new Address[maxHops + 1];
+        BigInteger[] amounts = new BigInteger[maxHops + 1];
+        path[0]              = tokenIn;
+        amounts[0]           = amountIn;
+
+        _searchRoutes(search, path, amounts, 0);
+
+        if (search.bestPath == null)
+            return new String[]{"", ""};
+
+        StringBuilder sb = new StringBuilder(search.bestPath[0].toString());
+        for (int i = 1; i < search.bestPath.length; i++) {
+            sb.append(",").append(search.bestPath[i].toString());
+        }
+        return new String[]{sb.toString(), joinAmounts(toStringArray(search.bestAmounts))};
+    }
+
+    /**
+     * Depth-first exploration of the routes starting with path[0..hops]
+     *
+     * @param search Search state
+     * @param path Tokens of the current route
+     * @param amounts Amounts of the current route
+     * @param hops Pairs already used by the current route
+     * */
+    private void _searchRoutes(RouteSearch search, Address[] path, BigInteger[] amounts, int hops){
+
+        Address current = path[hops];
+
+        // Close the route on the output token
+        BigInteger amountOut = _hopAmountOut(current, search.tokenOut, amounts[hops], search.reserveCache, search.viewCache);
+        if (amountOut != null && (search.bestAmounts == null || amountOut.compareTo(search.bestAmounts[search.bestAmounts.length - 1]) > 0)) {
+            search.bestPath    = new Address[hops + 2];
+            search.bestAmounts = new BigInteger[hops + 2];
+            for (int i = 0; i <= hops; i++) {
+                search.bestPath[i]    = path[i];
+                search.bestAmounts[i] = amounts[i];
+            }
+            search.bestPath[hops + 1]    = search.tokenOut;
+            search.bestAmounts[hops + 1] = amountOut;
+        }
+
+        if (hops + 1 >= search.maxHops)
+            return;
+
+        // Extend the route through every unused intermediate
+        for (int j = 0; j < search.intermediates.size(); j++) {
+
+            Address mid = search.intermediates.get(j);
+
+            boolean used = false;
+            for (int i = 0; i <= hops; i++) {
+                if (path[i].equals(mid)) {
+                    used = true;
+                    break;
+                }
+            }
+            if (used)
+                continue;
+
+            BigInteger next = _hopAmountOut(current, mid, amounts[hops], search.reserveCache, search.viewCache);
+            if (next == null)
+                continue;
+
+            path[hops + 1]    = mid;
+            amounts[hops + 1] = next;
+            _searchRoutes(search, path, amounts, hops + 1);
+        }
+    }
+
+    /**
+     * Output of a single hop, null if the pair is missing or cannot be quoted
+     *
+     * @param input Input Token
+     * @param output Output Token
+     * @param amountIn Input amount
+     * @param reserveCache Reserves already read in this call (pair => reserves)
+     * @param viewCache Factory answers already read in this call
+     *
+     * @dev Only used by the route search, a view, so nothing read here is stored
+     * */
+    private BigInteger _hopAmountOut(Address input, Address output, BigInteger amountIn, Map<Address, BigInteger[]> reserveCache, ViewCache viewCache){
+
+        Address pair = _hopVenue(input, output, reserveCache, viewCache);
+        if (pair.equals(BURNER_ADDR))
+            return null;
+
+        BigInteger[] reserves = cachedReserves(pair, reserveCache);
+        boolean inputIsToken0 = isToken0(input, output);
+        int kind              = pairKindOf(pair, viewCache);
+        BigInteger reserveIn  = reserves[reserveIndex(pair, kind, input, inputIsToken0, viewCache)];
+        BigInteger reserveOut = reserves[reserveIndex(pair, kind, output, !inputIsToken0, viewCache)];
+
+        if (amountIn.compareTo(BigInteger.ZERO) <= 0 || reserveIn.compareTo(BigInteger.ZERO) <= 0 || reserveOut.compareTo(BigInteger.ZERO) <= 0)
+            return null;
+
+        BigInteger amountOut = isQuotedLocally(kind)
+                ? getAmountOut(amountIn, reserveIn, reserveOut)
+                : safeGetPoolAmount("getAmountOut", pair, amountIn, reserveIn, reserveOut, inputIsToken0);
+        return amountOut.compareTo(BigInteger.ZERO) > 0 ? amountOut : null;
+    }
+
+    /**
+     * Pair or multi pool a hop goes through, BURNER_ADDR if there is none
+     *
+     * @param input Input Token
+     * @param output Output Token
+     * @param reserveCache Reserves already read in this call (pair => reserves)
+     * @param viewCache Factory answers of the current view call, null to use and fill the router registry
+     *
+     * @dev The token pair's own pair is weighed against the known multi
+     *      pools of both tokens and the deepest one, by reserveIn·reserveOut,
+     *      wins. The pair wins ties. Pools come from the router registry only
+     * */
+    private Address _hopVenue(Address input, Address output, Map<Address, BigInteger[]> reserveCache, ViewCache viewCache){
+
+        Address best     = safeGetPair(input, output, viewCache);
+        BigInteger depth = best.equals(BURNER_ADDR) ? BigInteger.ONE.negate() : _hopDepth(best, input, output, reserveCache, viewCache);
+
+        List<Address> pools = getKnownMultiPools(input, output);
+        if (pools == null)
+            return best;
+
+        for (int i = 0; i < pools.size(); i++) {
+            Address pool          = pools.get(i);
+            BigInteger poolDepth  = _hopDepth(pool, input, output, reserveCache, viewCache);
+            if (poolDepth.compareTo(depth) > 0) {
+                best  = pool;
+                depth = poolDepth;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * reserveIn·reserveOut of a hop
+     *
+     * */
+    private BigInteger _hopDepth(Address pair, Address input, Address output, Map<Address, BigInteger[]> reserveCache, ViewCache viewCache){
+        BigInteger[] reserves = cachedReserves(pair, reserveCache);
+        boolean inputIsToken0 = isToken0(input, output);
+        int kind              = pairKindOf(pair, viewCache);
+        return reserves[reserveIndex(pair, kind, input, inputIsToken0, viewCache)].multiply(reserves[reserveIndex(pair, kind, output, !inputIsToken0, viewCache)]);
+    }
+
+    /**
+     * Reserves of a pair, read once per call
+     *
+     * @param pair
+     * @param reserveCache Reserves already read in this call (pair => reserves)
+     * */
+    private BigInteger[] cachedReserves(Address pair, Map<Address, BigInteger[]> reserveCache){
+        BigInteger[] reserves = reserveCache.get(pair);
+        if (reserves == null) {
+            reserves = safeGetReserves(pair);
+            reserveCache.put(pair, reserves);
+        }
+        return reserves;
     }
 
     /**
+     * Tokens that can be used as intermediate hops, WNULS and the owner's list
      *
-     * @param amountIn
-     * @param path
+     * @param tokenIn Input Token, excluded
+     * @param tokenOut Output Token, excluded
      * */
-    @View
-    @JSONSerializable
-    public String[] getAmountsOut(BigInteger amountIn, String[] path){
-
-        require(path.length >= 2, "NulswapV3: INVALID_PATH");
-        String[] amounts = new String[path.length];
-        amounts[0]       = amountIn.toString();
-
-        for (int i = 0; i < path.length - 1; i++) {
+    private List<Address> getIntermediateTokens(Address tokenIn, Address tokenOut){
 
-            String[] arrOfStr3    = getReserves(new Address(path[i]), new Address(path[i + 1])).split(",", 3);
-            BigInteger reserveIn  = new BigInteger(arrOfStr3[0]);
-            BigInteger reserveOut = new BigInteger(arrOfStr3[1]);
-            Utils.emit(new DebugEvent("test2", "2.1"));
+        List<Address> tokens = new ArrayList<Address>();
+        if (!WNULS.equals(tokenIn) && !WNULS.equals(tokenOut))
+            tokens.add(WNULS);
 
-            amounts[i + 1] = getAmountOut( new BigInteger(amounts[i]), reserveIn, reserveOut).toString();
+        for (int i = 0; i < _intermediates.size(); i++) {
+            Address token = _intermediates.get(i);
+            if (!token.equals(tokenIn) && !token.equals(tokenOut) && !tokens.contains(token))
+                tokens.add(token);
         }
-        Utils.emit(new DebugEvent("test2", "2.3"));
-        return amounts;
+        return tokens;
     }
 
     /**
+     * Output amounts for a resolved route, null instead of reverting
      *
-     * @param amountOut
-     * @param path
+     * @param amountIn
+     * @param route
+     *
+     * @dev Input and reserves are checked before each hop, these are the only
+     *      conditions under which getAmountOut reverts on any pair type. Stable
+     *      pairs that do not converge and concentrated pairs that cannot fill
+     *      the input return 0 instead, which also ends the quote with null
      * */
-    @View
-    @JSONSerializable
-    public String[] getAmountsIn(BigInteger amountOut, String[] path) {
-
-        require(path.length >= 2, "NulswapV3: INVALID_PATH");
-        String[] amounts            = new String[path.length];
-        amounts[amounts.length - 1] = amountOut.toString();
-
-        Utils.emit(new DebugEvent("test2", "1.1"));
+    private BigInteger[] _tryGetAmountsOut(BigInteger amountIn, Route route){
 
-        for (int i = path.length - 1; i > 0; i--) {
+        BigInteger[] amounts = new BigInteger[route.tokens.length];
+        amounts[0]           = amountIn;
 
-            String[] arrOfStr3    = getReserves( new Address(path[i - 1]), new Address(path[i])).split(",", 3);
-            BigInteger reserveIn  = new BigInteger(arrOfStr3[0]);
-            BigInteger reserveOut = new BigInteger(arrOfStr3[1]);
-
-            Utils.emit(new DebugEvent("test2", "1.2"));
-            amounts[i - 1] = getAmountIn(new BigInteger(amounts[i]), reserveIn, reserveOut).toString();
+        for (int i = 0; i < route.pairs.length; i++) {
+            if (amounts[i].compareTo(BigInteger.ZERO) <= 0
+                    || route.reserveIn[i].compareTo(BigInteger.ZERO) <= 0
+                    || route.reserveOut[i].compareTo(BigInteger.ZERO) <= 0)
+                return null;
+            amounts[i + 1] = _hopOut(route, i, amounts[i]);
         }
-        Utils.emit(new DebugEvent("test2", "1.3"));
-        return amounts;
+        return amounts[amounts.length - 1].compareTo(BigInteger.ZERO) > 0 ? amounts : null;
     }
 
     @View
@@ -1869,6 +2705,20 @@ public class NulswapRouter extends Ownable implements Contract{
         return WNULS;
     }
 
+    /**
+     * Intermediate tokens of getBestRoute besides WNULS, comma-joined
+     * */
+    @View
+    public String getIntermediates() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _intermediates.size(); i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(_intermediates.get(i).toString());
+        }
+        return sb.toString();
+    }
+
     @View
     public Address getTreasury() {
         return treasury;
@@ -1884,6 +2734,20 @@ public class NulswapRouter extends Ownable implements Contract{
         return refFee;
     }
 
+    @View
+    public BigInteger getTreasuryFees(Address token) {
+        return getOrZero(_treasuryFees, token);
+    }
+
+    @View
+    public BigInteger getReferralFees(Address ref, Address token) {
+        Map<Address, BigInteger> owed = _refFees.get(ref);
+        if (owed == null) {
+            return BigInteger.ZERO;
+        }
+        return getOrZero(owed, token);
+    }
+
     @View
     public Boolean getPaused() {
         return paused;
@@ -1898,6 +2762,15 @@ public class NulswapRouter extends Ownable implements Contract{
         return b;
     }
 
+    @View
+    public String getRegisteredPair(Address tokenA, Address tokenB) {
+        Address pair = getKnownPair(tokenA, tokenB);
+        if (pair == null) {
+            return "";
+        }
+        return pair.toString();
+    }
+
     @View
     public String getWAsset(int chainId, int assetId) {
         Map<Integer, Address> map = _wAssets.get(chainId);
@@ -1939,40 +2812,126 @@ public class NulswapRouter extends Ownable implements Contract{
         pair.callWithReturnValue("swap", "", argsM, BigInteger.ZERO);
     }
 
+    /**
+     *
+     * @param pair
+     * @param amount0In Amount of token0 already sent to the pair
+     * @param amount1In Amount of token1 already sent to the pair
+     * @param amount0Out
+     * @param amount1Out
+     * @param to
+     *
+     * @dev Pairs of standard tokens use the notified input instead of querying balances
+     * */
+    private void safeSwapNotified(
+            @Required Address pair,
+            BigInteger amount0In,
+            BigInteger amount1In,
+            BigInteger amount0Out,
+            BigInteger amount1Out,
+            @Required Address to
+    ){
+        String[][] argsM = new String[][]{new String[]{amount0In.toString()}, new String[]{amount1In.toString()}, new String[]{amount0Out.toString()}, new String[]{amount1Out.toString()}, new String[]{to.toString()}};
+        pair.callWithReturnValue("swapNotified", "", argsM, BigInteger.ZERO);
+    }
+
+    /**
+     *
+     * @param pool Multi pool
+     * @param tokenIn Token already sent to the pool
+     * @param tokenOut
+     * @param amountOut
+     * @param to
+     * */
+    private void safePoolSwap(
+            @Required Address pool,
+            @Required Address tokenIn,
+            @Required Address tokenOut,
+            BigInteger amountOut,
+            @Required Address to
+    ){
+        String[][] argsM = new String[][]{new String[]{tokenIn.toString()}, new String[]{tokenOut.toString()}, new String[]{amountOut.toString()}, new String[]{to.toString()}};
+        pool.callWithReturnValue("swap", "", argsM, BigInteger.ZERO);
+    }
+
     @View
     public String safePairInfo(@Required Address tokenA, @Required Address tokenB){
-        String[] arrOfStr2      = sortTokens(tokenA, tokenB).split(",", 2);
-        Address token0          = new Address(arrOfStr2[0]);
-        return safeGetPair(tokenA, tokenB)+","+safeGetReserves(safeGetPair(tokenA, tokenB))+","+token0;
+        Address pair            = safeGetPair(tokenA, tokenB, new ViewCache());
+        PairState state         = safeGetState(pair);
+        return pair+","+state.reserve0+","+state.reserve1+","+state.token0;
+    }
+
+    /**
+     * Read the whole pair snapshot with a single call
+     *
+     * @param pair
+     */
+    private PairState safeGetState(@Required Address pair){
+        String[][] argsM = new String[][]{};
+        return new PairState(pair.callWithReturnValue("getState", "", argsM, BigInteger.ZERO).split(","));
     }
 
     /**
      *
      * @param pair
+     *
+     * @dev The pair answers "reserve0,reserve1" and a multi pool one reserve
+     *      per token, this is the only place parsing it
      */
-    private String safeGetReserves(@Required Address pair){
+    private BigInteger[] safeGetReserves(@Required Address pair){
         String[][] argsM = new String[][]{};
-        return pair.callWithReturnValue("getReserves", "", argsM, BigInteger.ZERO);
+        return parseAmounts(pair.callWithReturnValue("getReserves", "", argsM, BigInteger.ZERO));
     }
 
     /**
      *
      * @param pair
+     * @param tokenA
+     * @param tokenB
+     * @param amountA Amount of tokenA already sent to the pair
+     * @param amountB Amount of tokenB already sent to the pair
      * @param to
+     *
+     * @dev Notifies the amounts so pairs of standard tokens skip their balance queries
      */
-    private BigInteger safeMint(@Required Address pair, @Required Address to){
-        String[][] argsM = new String[][]{new String[]{to.toString()}};
-        return new BigInteger(pair.callWithReturnValue("mint", "", argsM, BigInteger.ZERO));
+    private BigInteger safeMint(@Required Address pair, @Required Address tokenA, @Required Address tokenB, @Required BigInteger amountA, @Required BigInteger amountB, @Required Address to){
+        boolean aIsToken0 = isToken0(tokenA, tokenB);
+        BigInteger amount0 = aIsToken0 ? amountA : amountB;
+        BigInteger amount1 = aIsToken0 ? amountB : amountA;
+        String[][] argsM = new String[][]{new String[]{amount0.toString()}, new String[]{amount1.toString()}, new String[]{to.toString()}};
+        return new BigInteger(pair.callWithReturnValue("mintNotified", "", argsM, BigInteger.ZERO));
     }
 
     /**
      *
      * @param pair
      * @param to
+     *
+     * @dev The pair answers "amount0,amount1"
      */
-    private String safeBurn(@Required Address pair, @Required Address to){
+    private BigInteger[] safeBurn(@Required Address pair, @Required Address to){
         String[][] argsM = new String[][]{new String[]{to.toString()}};
-        return pair.callWithReturnValue("burn", "", argsM, BigInteger.ZERO);
+        return parseAmounts(pair.callWithReturnValue("burn", "", argsM, BigInteger.ZERO));
+    }
+
+    /**
+     * Parse the "amount0,amount1" answer of a pair, or the one amount per
+     * token answer of a multi pool
+     *
+     * @param value Value returned by the pair
+     */
+    private BigInteger[] parseAmounts(String value){
+        int idx = value.indexOf(',');
+        if (value.indexOf(',', idx + 1) < 0)
+            return new BigInteger[]{new BigInteger(value.substring(0, idx)), new BigInteger(value.substring(idx + 1))};
+
+        // multi pools answer one amount per token
+        String[] parts       = value.split(",");
+        BigInteger[] amounts = new BigInteger[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            amounts[i] = new BigInteger(parts[i]);
+        }
+        return amounts;
     }
 
 
@@ -1986,23 +2945,231 @@ public class NulswapRouter extends Ownable implements Contract{
     }
 
     /**
+     * Get the pair of two tokens
      *
      * @param tokenA
      * @param tokenB
+     *
+     * @dev Served from the router registry when the pair is known,
+     *      otherwise asked to the factory and stored if it exists
      * */
     private Address safeGetPair(@Required Address tokenA, @Required Address tokenB){
+        return safeGetPair(tokenA, tokenB, null);
+    }
+
+    /**
+     * Get the pair of two tokens, kept in a view cache if one is given
+     *
+     * @param tokenA
+     * @param tokenB
+     * @param viewCache Factory answers of the current view call, null to use and fill the router registry
+     *
+     * @dev A view cache also keeps missing pairs, a route search asks for many of them
+     * */
+    private Address safeGetPair(@Required Address tokenA, @Required Address tokenB, ViewCache viewCache){
+
+        Address pair = getKnownPair(tokenA, tokenB);
+        if (pair == null && viewCache != null)
+            pair = viewCache.getPair(tokenA, tokenB);
+        if (pair != null)
+            return pair;
+
         String[][] argsM = new String[][]{new String[]{tokenA.toString()}, new String[]{tokenB.toString()}};
-        return new Address(factory.callWithReturnValue("getPair", "", argsM, BigInteger.ZERO));
+        pair = new Address(factory.callWithReturnValue("getPair", "", argsM, BigInteger.ZERO));
+
+        if (viewCache != null)
+            viewCache.putPair(tokenA, tokenB, pair);
+        else if (!pair.equals(BURNER_ADDR))
+            registerPair(tokenA, tokenB, pair);
+
+        return pair;
     }
 
     /**
+     * Multi pools the factory lists for two tokens, comma-joined
      *
      * @param tokenA
      * @param tokenB
      * */
-    private Address safeGetLP(@Required Address pair){
-        String[][] argsM = new String[][]{};
-        return new Address(pair.callWithReturnValue("getLP", "", argsM, BigInteger.ZERO));
+    private String safeGetMultiPools(@Required Address tokenA, @Required Address tokenB){
+        String[][] argsM = new String[][]{new String[]{tokenA.toString()}, new String[]{tokenB.toString()}};
+        return factory.callWithReturnValue("getMultiPools", "", argsM, BigInteger.ZERO);
+    }
+
+    /**
+     * Pair type as registered in the factory, cached by the router
+     *
+     * @param pair
+     * */
+    private int pairKindOf(@Required Address pair){
+        return pairKindOf(pair, null);
+    }
+
+    /**
+     * Pair type as registered in the factory, kept in a view cache if one is given
+     *
+     * @param pair
+     * @param viewCache Factory answers of the current view call, null to use and fill the router registry
+     * */
+    private int pairKindOf(@Required Address pair, ViewCache viewCache){
+
+        Integer kind = _pairKinds.get(pair);
+        if (kind == null && viewCache != null)
+            kind = viewCache.kinds.get(pair);
+        if (kind != null)
+            return kind;
+
+        String[][] argsM = new String[][]{new String[]{pair.toString()}};
+        kind = Integer.parseInt(factory.callWithReturnValue("getPairKind", "", argsM, BigInteger.ZERO));
+        if (viewCache != null)
+            viewCache.kinds.put(pair, kind);
+        else
+            _pairKinds.put(pair, kind);
+
+        return kind;
+    }
+
+    /**
+     * Position of a token in the reserves read from a pair
+     *
+     * @param pair
+     * @param kind Pair kind
+     * @param token
+     * @param isToken0 Whether the token sorts first in its token pair
+     * @param viewCache Factory answers of the current view call, null to use and fill the router registry
+     *
+     * @dev Pairs answer reserve0,reserve1 while multi pools answer one
+     *      reserve per token, in the order of their getTokens
+     * */
+    private int reserveIndex(@Required Address pair, int kind, @Required Address token, boolean isToken0, ViewCache viewCache){
+
+        if (kind != PAIR_MULTI)
+            return isToken0 ? 0 : 1;
+
+        Map<Address, Integer> indexes = _poolIndexes.get(pair);
+        if (indexes == null && viewCache != null)
+            indexes = viewCache.poolIndexes.get(pair);
+        if (indexes == null) {
+            indexes = new HashMap<Address, Integer>();
+            String[] tokens = pair.callWithReturnValue("getTokens", "", new String[][]{}, BigInteger.ZERO).split(",");
+            for (int i = 0; i < tokens.length; i++) {
+                indexes.put(new Address(tokens[i]), i);
+            }
+            if (viewCache != null)
+                viewCache.poolIndexes.put(pair, indexes);
+            else
+                _poolIndexes.put(pair, indexes);
+        }
+        return indexes.get(token);
+    }
+
+    /**
+     * Quote a hop on a pair that prices itself
+     *
+     * @param method getAmountOut or getAmountIn
+     * @param pair
+     * @param amount
+     * @param reserveIn
+     * @param reserveOut
+     * @param inputIsToken0
+     *
+     * @dev Reserves are passed in so the quote follows the router's own reserve cache
+     */
+    private BigInteger safeGetPoolAmount(String method, @Required Address pair, BigInteger amount, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+        String[][] argsM = new String[][]{new String[]{amount.toString()}, new String[]{reserveIn.toString()}, new String[]{reserveOut.toString()}, new String[]{String.valueOf(inputIsToken0)}};
+        return new BigInteger(pair.callWithReturnValue(method, "", argsM, BigInteger.ZERO));
+    }
+
+    /**
+     * Get a pair from the router registry, null if unknown
+     *
+     * @param tokenA
+     * @param tokenB
+     * */
+    private Address getKnownPair(Address tokenA, Address tokenB){
+        Map<Address, Address> map = _pairs.get(tokenA);
+        if (map == null) {
+            return null;
+        }
+        return map.get(tokenB);
+    }
+
+    /**
+     * Get the multi pools of two tokens from the router registry, null if none
+     *
+     * @param tokenA
+     * @param tokenB
+     * */
+    private List<Address> getKnownMultiPools(Address tokenA, Address tokenB){
+        Map<Address, List<Address>> map = _multiPools.get(tokenA);
+        if (map == null) {
+            return null;
+        }
+        return map.get(tokenB);
+    }
+
+    /**
+     * Store a multi pool in the router registry under each of its token pairs
+     *
+     * @param pool
+     * @param tokens Pool tokens, in the order of its getTokens
+     *
+     * @dev Kind and token positions are stored too, so routing through
+     *      the pool needs no call other than its reserves
+     * */
+    private void registerMultiPool(Address pool, Address[] tokens){
+
+        if (_poolIndexes.get(pool) != null)
+            return;
+
+        Map<Address, Integer> indexes = new HashMap<Address, Integer>();
+        for (int i = 0; i < tokens.length; i++) {
+            indexes.put(tokens[i], i);
+        }
+        _poolIndexes.put(pool, indexes);
+        _pairKinds.put(pool, PAIR_MULTI);
+
+        for (int i = 0; i < tokens.length; i++) {
+            for (int j = 0; j < tokens.length; j++) {
+                if (i == j)
+                    continue;
+                Map<Address, List<Address>> map = _multiPools.get(tokens[i]);
+                if (map == null) {
+                    map = new HashMap<>();
+                    _multiPools.put(tokens[i], map);
+                }
+                List<Address> pools = map.get(tokens[j]);
+                if (pools == null) {
+                    pools = new ArrayList<>();
+                    map.put(tokens[j], pools);
+                }
+                pools.add(pool);
+            }
+        }
+    }
+
+    /**
+     * Store a pair in the router registry in both directions
+     *
+     * @param tokenA
+     * @param tokenB
+     * @param pair
+     * */
+    private void registerPair(Address tokenA, Address tokenB, Address pair){
+
+        Map<Address, Address> mapA = _pairs.get(tokenA);
+        if (mapA == null) {
+            mapA = new HashMap<>();
+            _pairs.put(tokenA, mapA);
+        }
+        mapA.put(tokenB, pair);
+
+        Map<Address, Address> mapB = _pairs.get(tokenB);
+        if (mapB == null) {
+            mapB = new HashMap<>();
+            _pairs.put(tokenB, mapB);
+        }
+        mapB.put(tokenA, pair);
     }
 
     /**
@@ -2084,6 +3251,7 @@ public class NulswapRouter extends Ownable implements Contract{
 
         String[][] args = new String[][]{ new String[]{token0.toString()}, new String[]{token1.toString()}};
         Address b = new Address(factory.callWithReturnValue("createPair", "", args, BigInteger.ZERO));
+        registerPair(token0, token1, b);
         return b;
 
     }
@@ -2147,7 +3315,7 @@ public class NulswapRouter extends Ownable implements Contract{
 
         //Utils.emit(new DebugEvent("clinitTest log3", assetId + ", "+ chain + ", "+ v + ", "+ value));
 
-        require(value.compareTo(v) == 0 && chainA == chain && assetA == assetId, "NulswapV1: Amount deposited does not match");
+        require(value.compareTo(v) <= 0 && chainA == chain && assetA == assetId, "NulswapV1: Amount deposited does not match");
 
         Address routerAsset = getMUltiwAsset(chain, assetId);
         //Utils.emit(new DebugEvent("clinitTest log4", assetId + ", "+ chain + ", "+ v + ", "+ value));
@@ -2159,7 +3327,7 @@ public class NulswapRouter extends Ownable implements Contract{
         vii[0] = vi;
         //Utils.emit(new DebugEvent("clinitTest log5", assetId + ", "+ chain + ", "+ v + ", "+ value));
 
-        String[][] args = new String[][]{new String[]{v.toString()}};
+        String[][] args = new String[][]{new String[]{value.toString()}};
         String rDeposit = routerAsset.callWithReturnValue("deposit", "", args, BigInteger.ZERO, vii);
 
         require(new Boolean(rDeposit), "Deposit did not succeed");
@@ -2225,6 +3393,86 @@ public class NulswapRouter extends Ownable implements Contract{
         }
     }
 
+    /**
+     * Set the intermediate tokens explored by getBestRoute, besides WNULS
+     *
+     * @param tokens Intermediate tokens, at most MAX_INTERMEDIATES
+     * */
+    public void setIntermediates(String[] tokens){
+        onlyOwner();
+        require(tokens.length <= MAX_INTERMEDIATES, "NulswapV3: TOO_MANY_INTERMEDIATES");
+        List<Address> list = new ArrayList<Address>();
+        for (int i = 0; i < tokens.length; i++) {
+            Address token = new Address(tokens[i]);
+            require(!token.equals(WNULS) && !list.contains(token), "NulswapV3: INVALID_INTERMEDIATE");
+            list.add(token);
+        }
+        _intermediates = list;
+    }
+
+    /**
+     * Import existing factory pairs into the router registry
+     *
+     * @param tokensA First token of each pair
+     * @param tokensB Second token of each pair
+     *
+     * @dev Pair addresses are always read from the factory, pairs
+     *      that do not exist yet are ignored
+     * */
+    public void importPairs(String[] tokensA, String[] tokensB){
+        onlyOwner();
+        require(tokensA.length == tokensB.length, "array length error");
+        for (int i = 0, length = tokensA.length; i < length; i++) {
+            safeGetPair(new Address(tokensA[i]), new Address(tokensB[i]));
+        }
+    }
+
+    /**
+     * Register a new multi pool, pushed by the factory when it creates one
+     *
+     * @param pool Multi pool
+     * @param tokens Pool tokens, in the order of its getTokens
+     * */
+    public void addMultiPool(Address pool, String[] tokens){
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN");
+        Address[] poolTokens = new Address[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            poolTokens[i] = new Address(tokens[i]);
+        }
+        registerMultiPool(pool, poolTokens);
+    }
+
+    /**
+     * Import existing factory multi pools into the router registry
+     *
+     * @param tokensA First token of each token pair
+     * @param tokensB Second token of each token pair
+     *
+     * @dev Pools are always read from the factory, for pools created
+     *      before the factory pointed at this router
+     * */
+    public void importMultiPools(String[] tokensA, String[] tokensB){
+        onlyOwner();
+        require(tokensA.length == tokensB.length, "array length error");
+        for (int i = 0, length = tokensA.length; i < length; i++) {
+            String pools = safeGetMultiPools(new Address(tokensA[i]), new Address(tokensB[i]));
+            if (pools.length() == 0)
+                continue;
+            String[] listed = pools.split(",");
+            for (int j = 0; j < listed.length; j++) {
+                Address pool = new Address(listed[j]);
+                if (_poolIndexes.get(pool) != null)
+                    continue;
+                String[] tokens      = pool.callWithReturnValue("getTokens", "", new String[][]{}, BigInteger.ZERO).split(",");
+                Address[] poolTokens = new Address[tokens.length];
+                for (int k = 0; k < tokens.length; k++) {
+                    poolTokens[k] = new Address(tokens[k]);
+                }
+                registerMultiPool(pool, poolTokens);
+            }
+        }
+    }
+
     /**
      * Blacklist Address
      *
@@ -2318,10 +3566,172 @@ public class NulswapRouter extends Ownable implements Contract{
      */
     public void recoverLostTokens(Address token_){
         onlyOwner();
-        safeTransfer(token_, Msg.sender(), safeBalanceOf(token_, Msg.address()));
+        safeTransfer(token_, Msg.sender(), safeBalanceOf(token_, Msg.address()).subtract(getOrZero(_accruedFees, token_)));
+    }
+
+    /**
+     * Swap path resolved into pairs and oriented reserves
+     *
+     * @dev Hop i goes from tokens[i] to tokens[i + 1] through pairs[i]
+     * */
+    class Route {
+
+        private Address[] tokens;
+        private Address[] pairs;
+        private int[] kinds;
+        private boolean[] inputIsToken0;
+        private int[] indexIn;
+        private int[] indexOut;
+        private BigInteger[] reserveIn;
+        private BigInteger[] reserveOut;
+
+        public Route(int length) {
+            this.tokens        = new Address[length];
+            this.pairs         = new Address[length - 1];
+            this.kinds         = new int[length - 1];
+            this.inputIsToken0 = new boolean[length - 1];
+            this.indexIn       = new int[length - 1];
+            this.indexOut      = new int[length - 1];
+            this.reserveIn     = new BigInteger[length - 1];
+            this.reserveOut    = new BigInteger[length - 1];
+        }
+
+        public Address tokenIn() {
+            return tokens[0];
+        }
+
+        public Address tokenOut() {
+            return tokens[tokens.length - 1];
+        }
+
+    }
+
+    /**
+     * Pair snapshot as returned by NulswapPair.getState
+     * */
+    class PairState {
+
+        private BigInteger reserve0;
+        private BigInteger reserve1;
+        private Address token0;
+        private Address token1;
+        private Address lp;
+        private BigInteger blockTimestampLast;
+        private BigInteger price0CumulativeLast;
+        private BigInteger price1CumulativeLast;
+        private BigInteger kLast;
+
+        public PairState(String[] values) {
+            this.reserve0             = new BigInteger(values[0]);
+            this.reserve1             = new BigInteger(values[1]);
+            this.token0               = new Address(values[2]);
+            this.token1               = new Address(values[3]);
+            this.lp                   = new Address(values[4]);
+            this.blockTimestampLast   = new BigInteger(values[5]);
+            this.price0CumulativeLast = new BigInteger(values[6]);
+            this.price1CumulativeLast = new BigInteger(values[7]);
+            this.kLast                = new BigInteger(values[8]);
+        }
+
+        public BigInteger reserveOf(Address token) {
+            return token.equals(token0) ? reserve0 : reserve1;
+        }
+
+    }
+
+    class FeesClaimedEvent implements Event {
+
+        private Address recipient;
+        private Address token;
+        private BigInteger amount;
+
+        public FeesClaimedEvent(@Required Address recipient, @Required Address token, @Required BigInteger amount) {
+            this.recipient = recipient;
+            this.token     = token;
+            this.amount    = amount;
+        }
+
     }
 
+    /**
+     * State of a getBestRoute search
+     * */
+    class RouteSearch {
+
+        private Address tokenOut;
+        private int maxHops;
+        private List<Address> intermediates;
+        private Map<Address, BigInteger[]> reserveCache;
+        private ViewCache viewCache;
+
+        private Address[] bestPath;
+        private BigInteger[] bestAmounts;
+
+        public RouteSearch(Address tokenOut, int maxHops, List<Address> intermediates) {
+            this.tokenOut      = tokenOut;
+            this.maxHops       = maxHops;
+            this.intermediates = intermediates;
+            this.reserveCache  = new HashMap<Address, BigInteger[]>();
+            this.viewCache     = new ViewCache();
+        }
+
+    }
+
+    /**
+     * Factory answers read during one view call, views never write them to the registry
+     * */
+    class ViewCache {
+
+        private Map<Address, Map<Address, Address>> pairs;
+        private Map<Address, Integer> kinds;
+        private Map<Address, Map<Address, Integer>> poolIndexes;
+
+        public ViewCache() {
+            this.pairs       = new HashMap<Address, Map<Address, Address>>();
+            this.kinds       = new HashMap<Address, Integer>();
+            this.poolIndexes = new HashMap<Address, Map<Address, Integer>>();
+        }
+
+        public Address getPair(Address tokenA, Address tokenB) {
+            Map<Address, Address> map = pairs.get(tokenA);
+            return map != null ? map.get(tokenB) : null;
+        }
+
+        public void putPair(Address tokenA, Address tokenB, Address pair) {
+            Map<Address, Address> mapA = pairs.get(tokenA);
+            if (mapA == null) {
+                mapA = new HashMap<Address, Address>();
+                pairs.put(tokenA, mapA);
+            }
+            mapA.put(tokenB, pair);
+
+            Map<Address, Address> mapB = pairs.get(tokenB);
+            if (mapB == null) {
+                mapB = new HashMap<Address, Address>();
+                pairs.put(tokenB, mapB);
+            }
+            mapB.put(tokenA, pair);
+        }
+
+    }
 
+    /**
+     * One side of a swap, how the input is paid or the output received
+     * */
+    class SwapAsset {
+
+        private int kind;
+        private Address token;
+        private int chainId;
+        private int assetId;
+
+        public SwapAsset(int kind, Address token, int chainId, int assetId) {
+            this.kind    = kind;
+            this.token   = token;
+            this.chainId = chainId;
+            this.assetId = assetId;
+        }
 
+    }
 
 }
\ No newline at end of file
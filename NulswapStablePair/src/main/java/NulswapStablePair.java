@@ -0,0 +1,691 @@
+import io.nuls.contract.sdk.*;
+import io.nuls.contract.sdk.annotation.Required;
+import io.nuls.contract.sdk.annotation.View;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.nuls.contract.sdk.Utils.emit;
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Stable Pair
+ *
+ * @dev     Two token pool priced with the StableSwap invariant
+ *          A·n^n·Σx + D = A·D·n^n + D^(n+1) / (n^n·Πx), n = 2.
+ *          Meant for assets that trade close to 1:1, like WNULS against
+ *          the MultiAsset wrappers, where the constant product
+ *          invariant causes needless slippage.
+ *          Exposes the same swap/mint/burn interface as NulswapPair and
+ *          is its own lp token.
+ *
+ * @author  Pedro G. S. Ferreira
+ *
+ */
+public class NulswapStablePair implements Contract, Token {
+
+    /** Constants **/
+    private static final BigInteger MINIMUM_LIQUIDITY = BigInteger.valueOf(1_000);                      // Minimum Liquidity
+    private static final BigInteger MAX_AMP           = BigInteger.valueOf(1_000_000);                  // Maximum amplification
+    private static final BigInteger N_COINS           = NulswapMath.TWO;                                // Tokens in the pool
+    private static final BigInteger FOUR              = BigInteger.valueOf(4);                          // n^n
+    private static final int MAX_ITERATIONS           = 64;                                             // Newton iteration cap
+    private static final int PRECISION_DECIMALS       = 18;                                             // Decimals balances are scaled to
+
+    private static final String LP_NAME               = "Nulswap_stable_lp";                            // LP Token Name
+    private static final String LP_SYMBOL             = "NSWAP_SLP";                                    // LP Token Symbol
+    private static final int LP_DECIMALS              = PRECISION_DECIMALS;                             // LP Token Decimals
+
+    private final Address BURNER_ADDR; // Burner Address
+
+    /** Variables **/
+    private Address factory;                    // Factory Address
+    private Address token0;                     // Pair Token0
+    private Address token1;                     // Pair Token1
+    private BigInteger amp;                     // Amplification coefficient A
+    private BigInteger rate0;                   // Multiplier scaling token0 to PRECISION_DECIMALS
+    private BigInteger rate1;                   // Multiplier scaling token1 to PRECISION_DECIMALS
+
+    private BigInteger reserve0;                // Reserve Token0
+    private BigInteger reserve1;                // Reserve Token1
+
+    private int unlocked = 1;                   // Lock Status | 1 - unlocked 0 - locked
+
+    private BigInteger totalSupply = BigInteger.ZERO;                                                   // LP Total Supply
+    private Map<Address, BigInteger> balances = new HashMap<Address, BigInteger>();                     // LP Balances
+    private Map<Address, Map<Address, BigInteger>> allowed = new HashMap<Address, Map<Address, BigInteger>>(); // LP Allowances
+
+    /**
+     * Lock Contract
+     * @dev Essential to protect against reentrancy attacks
+     * */
+    protected void lock(){
+        require(unlocked == 1, "NulswapV3: LOCKED");
+        unlocked = 0;
+    }
+
+    /**
+     * Unlock Contract
+     *
+     * */
+    protected void unlock(){
+        require(unlocked == 0, "NulswapV3: LOCKED");
+        unlocked = 1;
+    }
+
+    /**
+     * Constructor
+     *
+     * */
+    public NulswapStablePair() {
+
+        factory  = Msg.sender();
+        reserve0 = BigInteger.ZERO;
+        reserve1 = BigInteger.ZERO;
+        if (Msg.sender().toString().startsWith("NULS")) {
+            BURNER_ADDR = new Address("NULSd6HgsVSzCAJwLYBjvfP3NwbKCvV525GWn");
+        } else {
+            BURNER_ADDR = new Address("tNULSeBaN5nddf9WkQgRr3RNwARgryndv2Bzs6");
+        }
+    }
+
+    /**
+     * Initialize pair
+     *
+     * @param _token0 Token0 Address
+     * @param _token1 Token1 Address
+     * @param _amp Amplification coefficient, higher keeps the price closer to 1:1
+     * */
+    public void initialize(Address _token0, Address _token1, BigInteger _amp){
+
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN"); // sufficient check
+        require(_amp.compareTo(BigInteger.ONE) >= 0 && _amp.compareTo(MAX_AMP) <= 0, "NulswapV3: INVALID_AMP");
+
+        token0 = _token0;
+        token1 = _token1;
+        amp    = _amp;
+        rate0  = BigInteger.TEN.pow(PRECISION_DECIMALS - safeDecimals(_token0));
+        rate1  = BigInteger.TEN.pow(PRECISION_DECIMALS - safeDecimals(_token1));
+    }
+
+    // **** STABLESWAP MATH ****
+    // balances are scaled to PRECISION_DECIMALS before entering the invariant
+
+    /**
+     * Invariant D for two scaled balances
+     *
+     * @dev Newton iterations starting from the sum of balances, capped at MAX_ITERATIONS
+     * */
+    private BigInteger getD(BigInteger x0, BigInteger x1){
+        BigInteger d = tryGetD(x0, x1);
+        require(d != null, "NulswapV3: D_NOT_CONVERGED");
+        return d;
+    }
+
+    /**
+     * Invariant D, null if the iterations do not converge
+     * */
+    private BigInteger tryGetD(BigInteger x0, BigInteger x1){
+
+        BigInteger s = x0.add(x1);
+        if (s.signum() == 0)
+            return BigInteger.ZERO;
+        require(x0.signum() > 0 && x1.signum() > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        BigInteger ann = amp.multiply(FOUR);
+        BigInteger d   = s;
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            BigInteger dP   = d.multiply(d).multiply(d).divide(x0.multiply(x1).multiply(FOUR)); // D^3 / (n^n·Πx), one division keeps it from oscillating
+            BigInteger prev = d;
+            d = ann.multiply(s).add(dP.multiply(N_COINS)).multiply(d)
+                    .divide(ann.subtract(BigInteger.ONE).multiply(d).add(dP.multiply(NulswapMath.THREE)));
+            if (d.subtract(prev).abs().compareTo(BigInteger.ONE) <= 0)
+                return d;
+        }
+        return null;
+    }
+
+    /**
+     * Scaled balance of one token that keeps D given the scaled balance of the other
+     *
+     * @dev Newton iterations starting from D, capped at MAX_ITERATIONS
+     * */
+    private BigInteger getY(BigInteger x, BigInteger d){
+        BigInteger y = tryGetY(x, d);
+        require(y != null, "NulswapV3: Y_NOT_CONVERGED");
+        return y;
+    }
+
+    /**
+     * Scaled balance keeping D, null if the iterations do not converge
+     * */
+    private BigInteger tryGetY(BigInteger x, BigInteger d){
+
+        BigInteger ann = amp.multiply(FOUR);
+        BigInteger c   = d.multiply(d).multiply(d).divide(x.multiply(ann).multiply(FOUR));
+        BigInteger b   = x.add(d.divide(ann));
+        BigInteger y   = d;
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            BigInteger prev = y;
+            y = y.multiply(y).add(c).divide(y.multiply(N_COINS).add(b).subtract(d));
+            if (y.subtract(prev).abs().compareTo(BigInteger.ONE) <= 0)
+                return y;
+        }
+        return null;
+    }
+
+    /**
+     * Swap fee on an input amount, rounded up
+     *
+     * */
+    private BigInteger fee(BigInteger amountIn){
+        return amountIn.multiply(NulswapMath.FEE_AMOUNT).add(NulswapMath.FEE_DENOMINATOR).subtract(BigInteger.ONE).divide(NulswapMath.FEE_DENOMINATOR);
+    }
+
+    /**
+     * Output amount for an input against the given reserves
+     *
+     * @param amountIn Input amount, fee included
+     * @param reserveIn Reserve of the input token
+     * @param reserveOut Reserve of the output token
+     * @param inputIsToken0 Whether the input token is token0
+     *
+     * @dev Reserves are parameters so the router can quote against its own cached values.
+     *      Returns 0 if the invariant does not converge, quoters skip the pair then
+     * */
+    @View
+    public BigInteger getAmountOut(BigInteger amountIn, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+
+        require(amountIn.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+        require(reserveIn.compareTo(BigInteger.ZERO) > 0 && reserveOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        BigInteger rateIn  = inputIsToken0 ? rate0 : rate1;
+        BigInteger rateOut = inputIsToken0 ? rate1 : rate0;
+
+        BigInteger xIn  = reserveIn.multiply(rateIn);
+        BigInteger xOut = reserveOut.multiply(rateOut);
+        BigInteger d    = tryGetD(xIn, xOut);
+        if (d == null)
+            return BigInteger.ZERO;
+
+        BigInteger x = xIn.add(amountIn.subtract(fee(amountIn)).multiply(rateIn));
+        BigInteger y = tryGetY(x, d);
+        if (y == null)
+            return BigInteger.ZERO;
+
+        BigInteger dy = xOut.subtract(y).subtract(BigInteger.ONE);
+        return dy.signum() > 0 ? dy.divide(rateOut) : BigInteger.ZERO;
+    }
+
+    /**
+     * Input amount, fee included, needed for an output against the given reserves
+     *
+     * @param amountOut Output amount
+     * @param reserveIn Reserve of the input token
+     * @param reserveOut Reserve of the output token
+     * @param inputIsToken0 Whether the input token is token0
+     * */
+    @View
+    public BigInteger getAmountIn(BigInteger amountOut, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+
+        require(amountOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(reserveIn.compareTo(BigInteger.ZERO) > 0 && amountOut.compareTo(reserveOut) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        BigInteger rateIn  = inputIsToken0 ? rate0 : rate1;
+        BigInteger rateOut = inputIsToken0 ? rate1 : rate0;
+
+        BigInteger xIn  = reserveIn.multiply(rateIn);
+        BigInteger xOut = reserveOut.multiply(rateOut);
+        BigInteger d    = getD(xIn, xOut);
+
+        BigInteger dx          = getY(xOut.subtract(amountOut.multiply(rateOut)), d).subtract(xIn).add(BigInteger.ONE);
+        BigInteger amountInNet = dx.add(rateIn).subtract(BigInteger.ONE).divide(rateIn);
+
+        // smallest input whose fee leaves amountInNet
+        return NulswapMath.mulDiv(amountInNet, NulswapMath.FEE_DENOMINATOR, NulswapMath.FEE_NUMERATOR).add(BigInteger.ONE);
+    }
+
+    /**
+     * Update reserves
+     *
+     * @param balance0 New reserve0
+     * @param balance1 New reserve1
+     * */
+    private void _update(BigInteger balance0, BigInteger balance1){
+
+        require(balance0.compareTo(NulswapMath.MAX_UINT112) <= 0 && balance1.compareTo(NulswapMath.MAX_UINT112) <= 0, "NulswapV3: OVERFLOW");
+
+        reserve0 = balance0;
+        reserve1 = balance1;
+        emit(new SyncEvent(reserve0, reserve1));
+    }
+
+    /**
+     * Mint Liquidity
+     *
+     * @param to Address that receive the ownerhsip of the liquidity
+     *
+     * @dev Liquidity follows the growth of D. Deposits away from the pool
+     *      ratio pay the swap fee on the imbalanced part, otherwise adding
+     *      one-sided and removing proportionally would be a free swap
+     * */
+    public BigInteger mint(Address to) {
+
+        lock();
+
+        BigInteger balance0 = safeBalanceOf(token0, Msg.address());
+        BigInteger balance1 = safeBalanceOf(token1, Msg.address());
+
+        BigInteger amount0  = balance0.subtract(reserve0);
+        BigInteger amount1  = balance1.subtract(reserve1);
+
+        BigInteger d0       = getD(reserve0.multiply(rate0), reserve1.multiply(rate1));
+        BigInteger d1       = getD(balance0.multiply(rate0), balance1.multiply(rate1));
+
+        BigInteger liquidity;
+        if (totalSupply.compareTo(BigInteger.ZERO) == 0) {
+            liquidity = d1.subtract(MINIMUM_LIQUIDITY);
+            _mint(BURNER_ADDR, MINIMUM_LIQUIDITY); // permanently lock the first MINIMUM_LIQUIDITY tokens
+        } else {
+            // fee on the distance from a deposit proportional to the reserves, n / (4(n - 1)) = 1/2 of the swap fee for n = 2
+            BigInteger ideal0    = NulswapMath.mulDiv(d1, reserve0, d0);
+            BigInteger ideal1    = NulswapMath.mulDiv(d1, reserve1, d0);
+            BigInteger adjusted0 = balance0.subtract(fee(balance0.subtract(ideal0).abs()).divide(NulswapMath.TWO));
+            BigInteger adjusted1 = balance1.subtract(fee(balance1.subtract(ideal1).abs()).divide(NulswapMath.TWO));
+            BigInteger d2        = getD(adjusted0.multiply(rate0), adjusted1.multiply(rate1));
+
+            liquidity = NulswapMath.mulDiv(totalSupply, d2.subtract(d0), d0);
+        }
+
+        require(liquidity.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+        _mint(to, liquidity);
+
+        _update(balance0, balance1);
+
+        emit(new MintEvent(Msg.sender(), amount0, amount1));
+
+        unlock();
+
+        return liquidity;
+    }
+
+    /**
+     * Mint Liquidity, interface shared with NulswapPair
+     *
+     * @dev The notified amounts are ignored, balances are always read
+     * */
+    public BigInteger mintNotified(BigInteger amount0, BigInteger amount1, Address to) {
+        return mint(to);
+    }
+
+    /**
+     * Burn Liquidity sent to the pair, paying out both tokens pro-rata
+     *
+     * @param to Address that receives the tokens
+     * */
+    public String burn(Address to) {
+
+        lock();
+
+        BigInteger balance0  = safeBalanceOf(token0, Msg.address());
+        BigInteger balance1  = safeBalanceOf(token1, Msg.address());
+        BigInteger liquidity = balanceOf(Msg.address());
+
+        BigInteger amount0   = liquidity.multiply(balance0).divide(totalSupply); // using balances ensures pro-rata distribution
+        BigInteger amount1   = liquidity.multiply(balance1).divide(totalSupply); // using balances ensures pro-rata distribution
+
+        require(amount0.compareTo(BigInteger.ZERO) > 0 && amount1.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_BURNED");
+        _burn(Msg.address(), liquidity);
+
+        safeTransfer(token0, to, amount0);
+        safeTransfer(token1, to, amount1);
+
+        _update(balance0.subtract(amount0), balance1.subtract(amount1));
+        emit(new BurnEvent(Msg.sender(), amount0, amount1, to));
+
+        unlock();
+
+        return amount0 + "," + amount1;
+    }
+
+    // this low-level function should be called from a contract which performs important safety checks
+    public void swap(BigInteger amount0Out, BigInteger amount1Out, Address to) {
+
+        // Lock Contract
+        lock();
+
+        // One of the values must be higher than 0
+        require(amount0Out.compareTo(BigInteger.ZERO) > 0 || amount1Out.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(amount0Out.compareTo(reserve0) < 0 && amount1Out.compareTo(reserve1) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        require(!to.equals(token0) && !to.equals(token1), "NulswapV3: INVALID_TO");
+
+        if (amount0Out.compareTo(BigInteger.ZERO) > 0) safeTransfer(token0, to, amount0Out); // optimistically transfer tokens
+        if (amount1Out.compareTo(BigInteger.ZERO) > 0) safeTransfer(token1, to, amount1Out); // optimistically transfer tokens
+
+        BigInteger balance0 = safeBalanceOf(token0, Msg.address());
+        BigInteger balance1 = safeBalanceOf(token1, Msg.address());
+
+        BigInteger amount0In = balance0.compareTo(reserve0.subtract(amount0Out)) > 0 ? balance0.subtract((reserve0.subtract(amount0Out))) : BigInteger.ZERO;
+        BigInteger amount1In = balance1.compareTo(reserve1.subtract(amount1Out)) > 0 ? balance1.subtract((reserve1.subtract(amount1Out))) : BigInteger.ZERO;
+
+        require(amount0In.compareTo(BigInteger.ZERO) > 0 || amount1In.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+
+        BigInteger balance0Adjusted = balance0.subtract(fee(amount0In));
+        BigInteger balance1Adjusted = balance1.subtract(fee(amount1In));
+
+        require(getD(balance0Adjusted.multiply(rate0), balance1Adjusted.multiply(rate1)).compareTo(getD(reserve0.multiply(rate0), reserve1.multiply(rate1))) >= 0, "NulswapV3: D");
+
+        _update(balance0, balance1);
+
+        emit(new SwapEvent(Msg.sender(), amount0In, amount1In, amount0Out, amount1Out, to));
+
+        unlock();
+    }
+
+    /**
+     * Swap, interface shared with NulswapPair
+     *
+     * @dev The notified amounts are ignored, balances are always read
+     * */
+    public void swapNotified(BigInteger amount0In, BigInteger amount1In, BigInteger amount0Out, BigInteger amount1Out, Address to) {
+        swap(amount0Out, amount1Out, to);
+    }
+
+    /**
+     *  Force balances to match reserves
+     *
+     * @param to Address that will receive the excess
+     * */
+    public void skim(Address to){
+
+        lock();
+
+        safeTransfer(token0, to, safeBalanceOf(token0, Msg.address()).subtract(reserve0));
+        safeTransfer(token1, to, safeBalanceOf(token1, Msg.address()).subtract(reserve1));
+
+        unlock();
+    }
+
+    /**
+     * Force reserves to match balances
+     *
+     * */
+    public void sync(){
+
+        lock();
+
+        _update(safeBalanceOf(token0, Msg.address()), safeBalanceOf(token1, Msg.address()));
+
+        unlock();
+    }
+
+    private void _mint(@Required Address recipient, @Required BigInteger amount){
+        totalSupply = totalSupply.add(amount);
+        addBalance(recipient, amount);
+        emit(new TransferEvent(null, recipient, amount));
+    }
+
+    private void _burn(@Required Address recipient, @Required BigInteger amount){
+        subtractBalance(recipient, amount);
+        totalSupply = totalSupply.subtract(amount);
+        emit(new TransferEvent(recipient, null, amount));
+    }
+
+    private int safeDecimals(@Required Address token){
+        String[][] argsM = new String[][]{};
+        int decimals = Integer.parseInt(token.callWithReturnValue("decimals", "", argsM, BigInteger.ZERO));
+        require(decimals >= 0 && decimals <= PRECISION_DECIMALS, "NulswapV3: INVALID_DECIMALS");
+        return decimals;
+    }
+
+    private BigInteger safeBalanceOf(@Required Address token, @Required Address account){
+        String[][] argsM = new String[][]{new String[]{account.toString()}};
+        return new BigInteger(token.callWithReturnValue("balanceOf", "", argsM, BigInteger.ZERO));
+    }
+
+    private void safeTransfer(@Required Address token, @Required Address recipient, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transfer", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: Failed to transfer");
+    }
+
+    // **** LP TOKEN ****
+
+    @Override
+    @View
+    public String name() {
+        return LP_NAME;
+    }
+
+    @Override
+    @View
+    public String symbol() {
+        return LP_SYMBOL;
+    }
+
+    @Override
+    @View
+    public int decimals() {
+        return LP_DECIMALS;
+    }
+
+    @Override
+    @View
+    public BigInteger totalSupply() {
+        return totalSupply;
+    }
+
+    @Override
+    @View
+    public BigInteger balanceOf(@Required Address owner) {
+        require(owner != null);
+        BigInteger balance = balances.get(owner);
+        if (balance == null) {
+            balance = BigInteger.ZERO;
+        }
+        return balance;
+    }
+
+    @Override
+    @View
+    public BigInteger allowance(@Required Address owner, @Required Address spender) {
+        Map<Address, BigInteger> ownerAllowed = allowed.get(owner);
+        if (ownerAllowed == null) {
+            return BigInteger.ZERO;
+        }
+        BigInteger value = ownerAllowed.get(spender);
+        if (value == null) {
+            value = BigInteger.ZERO;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean transfer(@Required Address to, @Required BigInteger value) {
+        subtractBalance(Msg.sender(), value);
+        addBalance(to, value);
+        emit(new TransferEvent(Msg.sender(), to, value));
+        return true;
+    }
+
+    @Override
+    public boolean transferFrom(@Required Address from, @Required Address to, @Required BigInteger value) {
+        subtractAllowed(from, Msg.sender(), value);
+        subtractBalance(from, value);
+        addBalance(to, value);
+        emit(new TransferEvent(from, to, value));
+        return true;
+    }
+
+    @Override
+    public boolean approve(@Required Address spender, @Required BigInteger value) {
+        setAllowed(Msg.sender(), spender, value);
+        emit(new ApprovalEvent(Msg.sender(), spender, value));
+        return true;
+    }
+
+    private void subtractAllowed(Address address1, Address address2, BigInteger value) {
+        BigInteger allowance = allowance(address1, address2);
+        check(allowance, value, "Insufficient approved token");
+        setAllowed(address1, address2, allowance.subtract(value));
+    }
+
+    private void setAllowed(Address address1, Address address2, BigInteger value) {
+        check(value);
+        Map<Address, BigInteger> address1Allowed = allowed.get(address1);
+        if (address1Allowed == null) {
+            address1Allowed = new HashMap<Address, BigInteger>();
+            allowed.put(address1, address1Allowed);
+        }
+        address1Allowed.put(address2, value);
+    }
+
+    private void addBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(value);
+        balances.put(address, balance.add(value));
+    }
+
+    private void subtractBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(balance, value, "Insufficient balance of token.");
+        balances.put(address, balance.subtract(value));
+    }
+
+    private void check(BigInteger value) {
+        require(value != null && value.compareTo(BigInteger.ZERO) >= 0);
+    }
+
+    private void check(BigInteger value1, BigInteger value2, String msg) {
+        check(value1);
+        check(value2);
+        require(value1.compareTo(value2) >= 0, msg);
+    }
+
+    @View
+    public Address getFactory(){
+        return factory;
+    }
+
+    @View
+    public Address getLP(){
+        return Msg.address();
+    }
+
+    @View
+    public Address getToken0(){
+        return token0;
+    }
+
+    @View
+    public Address getToken1(){
+        return token1;
+    }
+
+    @View
+    public BigInteger getAmp(){
+        return amp;
+    }
+
+    @View
+    public String getReserves(){
+        return reserve0 + "," + reserve1;
+    }
+
+    /**
+     * Full pair snapshot in a single call, same layout as NulswapPair.getState
+     *
+     * @dev reserve0,reserve1,token0,token1,lp,blockTimestampLast,
+     *      price0CumulativeLast,price1CumulativeLast,kLast
+     *      The pair keeps no price accumulators nor protocol fee, those are 0
+     * */
+    @View
+    public String getState(){
+        return reserve0 + "," + reserve1 + "," + token0 + "," + token1 + "," + Msg.address() + ",0,0,0,0";
+    }
+
+    /**
+     * Virtual price of one lp token, D per lp with 18 decimals
+     *
+     * */
+    @View
+    public BigInteger getVirtualPrice(){
+        if (totalSupply.signum() == 0)
+            return BigInteger.ZERO;
+        return NulswapMath.mulDiv(getD(reserve0.multiply(rate0), reserve1.multiply(rate1)), BigInteger.TEN.pow(PRECISION_DECIMALS), totalSupply);
+    }
+
+    @View
+    public Integer getUnlocked(){
+        return unlocked;
+    }
+
+    class SwapEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0In;
+        private BigInteger amount1In;
+        private BigInteger amount0Out;
+        private BigInteger amount1Out;
+
+        private Address to;
+
+        public SwapEvent(@Required Address sender, @Required BigInteger amount0In, @Required BigInteger amount1In, @Required BigInteger amount0Out, @Required BigInteger amount1Out, @Required Address to) {
+            this.sender     = sender;
+            this.amount0In  = amount0In;
+            this.amount1In  = amount1In;
+            this.amount0Out = amount0Out;
+            this.amount1Out = amount1Out;
+            this.to         = to;
+        }
+
+    }
+
+    class MintEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        public MintEvent(@Required Address sender, @Required BigInteger amount0, @Required BigInteger amount1) {
+            this.sender  = sender;
+            this.amount0 = amount0;
+            this.amount1 = amount1;
+        }
+
+    }
+
+    class BurnEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        private Address to;
+
+        public BurnEvent(@Required Address sender, @Required BigInteger amount0, @Required BigInteger amount1, @Required Address to) {
+            this.sender  = sender;
+            this.amount0 = amount0;
+            this.amount1 = amount1;
+            this.to      = to;
+        }
+    }
+
+    class SyncEvent implements Event {
+
+        private BigInteger reserve0;
+        private BigInteger reserve1;
+
+        public SyncEvent(@Required BigInteger reserve0, @Required BigInteger reserve1) {
+            this.reserve0 = reserve0;
+            this.reserve1 = reserve1;
+        }
+
+    }
+}
@@ -0,0 +1,945 @@
+import io.nuls.contract.sdk.*;
+import io.nuls.contract.sdk.annotation.JSONSerializable;
+import io.nuls.contract.sdk.annotation.Required;
+import io.nuls.contract.sdk.annotation.View;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.nuls.contract.sdk.Utils.emit;
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Vault
+ *
+ * @dev     Holds the tokens of every pool in a single contract and keeps
+ *          each pool's reserves and lp shares as internal accounting.
+ *          A multi-hop swap is one transfer in, a reserve update per hop
+ *          and one transfer out, no token moves between pools and no
+ *          balanceOf calls are needed.
+ *          Pools use the same 0.3% constant product math as NulswapPair.
+ *          Only tokens marked standard by the owner (no transfer fees,
+ *          no rebasing) are accepted, the accounting assumes every
+ *          transfer moves exactly the requested amount.
+ *          Users can also keep tokens deposited in the vault as internal
+ *          balances, the FromBalance/ToBalance/WithBalance variants of the
+ *          swap and liquidity calls debit and credit them without any
+ *          token transfer.
+ *
+ * @author  Pedro G. S. Ferreira
+ *
+ */
+public class NulswapVault extends Ownable implements Contract {
+
+    /** Constants **/
+    private static final BigInteger MINIMUM_LIQUIDITY = BigInteger.valueOf(1_000);                      // Minimum Liquidity
+    private final Address BURNER_ADDR; // Burner Address
+
+    /** Variables **/
+    private Boolean paused;                                                                             // Pause Status
+    private int unlocked = 1;                                                                           // Lock Status | 1 - unlocked 0 - locked
+
+    private Map<Address, Boolean> standardTokens;                                                       // Tokens accepted by the vault
+    private Map<Address, Map<Address, Pool>> pools;                                                     // Pools (token0 => token1 => pool)
+    private int poolsLength;                                                                            // Number of pools
+    private Map<Address, Map<Address, BigInteger>> balances;                                            // Internal balances (user => token => amount)
+
+    /**
+     * Constructor
+     *
+     * */
+    public NulswapVault() {
+
+        paused         = false;
+        standardTokens = new HashMap<Address, Boolean>();
+        pools          = new HashMap<Address, Map<Address, Pool>>();
+        balances       = new HashMap<Address, Map<Address, BigInteger>>();
+        if (Msg.sender().toString().startsWith("NULS")) {
+            BURNER_ADDR = new Address("NULSd6HgsVSzCAJwLYBjvfP3NwbKCvV525GWn");
+        } else {
+            BURNER_ADDR = new Address("tNULSeBaN5nddf9WkQgRr3RNwARgryndv2Bzs6");
+        }
+    }
+
+    /**
+     * Lock Contract
+     * @dev Essential to protect against reentrancy attacks
+     * */
+    protected void lock(){
+        require(unlocked == 1, "NulswapV3: LOCKED");
+        unlocked = 0;
+    }
+
+    /**
+     * Unlock Contract
+     *
+     * */
+    protected void unlock(){
+        require(unlocked == 0, "NulswapV3: LOCKED");
+        unlocked = 1;
+    }
+
+    /**
+     * Ensure that the deadline has not passed
+     *
+     * @param deadline
+     */
+    protected void ensure(BigInteger deadline) {
+        require(deadline.compareTo(BigInteger.valueOf(Block.timestamp())) >= 0, "NulswapV3: Expired order");
+    }
+
+    /**
+     * Ensure that vault is not paused
+     */
+    protected void whenNotPaused() {
+        require(!paused, "NulswapV3: Paused");
+    }
+
+    // **** POOLS ****
+
+    /**
+     * Create a pool for two standard tokens
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * */
+    public void createPool(Address tokenA, Address tokenB){
+
+        require(!tokenA.equals(tokenB), "NulswapV3: IDENTICAL_ADDRESSES");
+        require(isStandardToken(tokenA) && isStandardToken(tokenB), "NulswapV3: TOKEN_NOT_ACCEPTED");
+        require(getPoolOrNull(tokenA, tokenB) == null, "NulswapV3: PAIR_EXISTS");
+
+        Address[] tokens = sortTokens(tokenA, tokenB);
+
+        Map<Address, Pool> map = pools.get(tokens[0]);
+        if (map == null) {
+            map = new HashMap<Address, Pool>();
+            pools.put(tokens[0], map);
+        }
+        map.put(tokens[1], new Pool());
+        poolsLength++;
+
+        emit(new PoolCreatedEvent(tokens[0], tokens[1], poolsLength));
+    }
+
+    /**
+     * Add liquidity to a pool, creating it if needed
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param amountADesired
+     * @param amountBDesired
+     * @param amountAMin
+     * @param amountBMin
+     * @param to Receiver of the lp shares
+     * @param deadline
+     *
+     * @return amountA,amountB,liquidity
+     * */
+    public String addLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger amountADesired,
+            BigInteger amountBDesired,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            BigInteger deadline
+    ){
+        return _addLiquidity(tokenA, tokenB, amountADesired, amountBDesired, amountAMin, amountBMin, to, deadline, false);
+    }
+
+    /**
+     * Add liquidity paid from the sender's internal balances
+     *
+     * @return amountA,amountB,liquidity
+     * */
+    public String addLiquidityFromBalance(
+            Address tokenA,
+            Address tokenB,
+            BigInteger amountADesired,
+            BigInteger amountBDesired,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            BigInteger deadline
+    ){
+        return _addLiquidity(tokenA, tokenB, amountADesired, amountBDesired, amountAMin, amountBMin, to, deadline, true);
+    }
+
+    private String _addLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger amountADesired,
+            BigInteger amountBDesired,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            BigInteger deadline,
+            boolean fromBalance
+    ){
+        ensure(deadline);
+        whenNotPaused();
+        lock();
+
+        if (getPoolOrNull(tokenA, tokenB) == null)
+            createPool(tokenA, tokenB);
+
+        Pool pool             = getPoolOrNull(tokenA, tokenB);
+        boolean aIsToken0     = isToken0(tokenA, tokenB);
+        BigInteger reserveA   = aIsToken0 ? pool.reserve0 : pool.reserve1;
+        BigInteger reserveB   = aIsToken0 ? pool.reserve1 : pool.reserve0;
+
+        BigInteger amountA, amountB;
+        if (reserveA.signum() == 0 && reserveB.signum() == 0) {
+            amountA = amountADesired;
+            amountB = amountBDesired;
+        } else {
+            BigInteger amountBOptimal = NulswapMath.mulDiv(amountADesired, reserveB, reserveA);
+            if (amountBOptimal.compareTo(amountBDesired) <= 0) {
+                require(amountBOptimal.compareTo(amountBMin) >= 0, "NulswapV3: INSUFFICIENT_B_AMOUNT");
+                amountA = amountADesired;
+                amountB = amountBOptimal;
+            } else {
+                BigInteger amountAOptimal = NulswapMath.mulDiv(amountBDesired, reserveA, reserveB);
+                require(amountAOptimal.compareTo(amountADesired) <= 0 && amountAOptimal.compareTo(amountAMin) >= 0, "NulswapV3: INSUFFICIENT_A_AMOUNT");
+                amountA = amountAOptimal;
+                amountB = amountBDesired;
+            }
+        }
+
+        _collect(tokenA, amountA, fromBalance);
+        _collect(tokenB, amountB, fromBalance);
+
+        BigInteger amount0 = aIsToken0 ? amountA : amountB;
+        BigInteger amount1 = aIsToken0 ? amountB : amountA;
+
+        BigInteger liquidity;
+        if (pool.totalSupply.signum() == 0) {
+            liquidity = NulswapMath.sqrt(amount0.multiply(amount1)).subtract(MINIMUM_LIQUIDITY);
+            pool.mintShares(BURNER_ADDR, MINIMUM_LIQUIDITY); // permanently lock the first MINIMUM_LIQUIDITY shares
+        } else {
+            liquidity = NulswapMath.min(NulswapMath.mulDiv(amount0, pool.totalSupply, pool.reserve0), NulswapMath.mulDiv(amount1, pool.totalSupply, pool.reserve1));
+        }
+        require(liquidity.signum() > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+        pool.mintShares(to, liquidity);
+
+        Address[] tokens = sortTokens(tokenA, tokenB);
+        _setReserves(tokens[0], tokens[1], pool, pool.reserve0.add(amount0), pool.reserve1.add(amount1));
+        emit(new MintEvent(Msg.sender(), tokens[0], tokens[1], amount0, amount1, to));
+
+        unlock();
+
+        return amountA + "," + amountB + "," + liquidity;
+    }
+
+    /**
+     * Remove liquidity from a pool
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param liquidity Shares to burn
+     * @param amountAMin
+     * @param amountBMin
+     * @param to Receiver of the tokens
+     * @param deadline
+     *
+     * @return amountA,amountB
+     * */
+    public String removeLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger liquidity,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            BigInteger deadline
+    ){
+        return _removeLiquidity(tokenA, tokenB, liquidity, amountAMin, amountBMin, to, deadline, false);
+    }
+
+    /**
+     * Remove liquidity, crediting the tokens to the internal balances of to
+     *
+     * @return amountA,amountB
+     * */
+    public String removeLiquidityToBalance(
+            Address tokenA,
+            Address tokenB,
+            BigInteger liquidity,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            BigInteger deadline
+    ){
+        return _removeLiquidity(tokenA, tokenB, liquidity, amountAMin, amountBMin, to, deadline, true);
+    }
+
+    private String _removeLiquidity(
+            Address tokenA,
+            Address tokenB,
+            BigInteger liquidity,
+            BigInteger amountAMin,
+            BigInteger amountBMin,
+            Address to,
+            BigInteger deadline,
+            boolean toBalance
+    ){
+        ensure(deadline);
+        lock();
+
+        Pool pool = poolOf(tokenA, tokenB);
+
+        BigInteger amount0 = NulswapMath.mulDiv(liquidity, pool.reserve0, pool.totalSupply);
+        BigInteger amount1 = NulswapMath.mulDiv(liquidity, pool.reserve1, pool.totalSupply);
+        require(amount0.signum() > 0 && amount1.signum() > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_BURNED");
+
+        pool.burnShares(Msg.sender(), liquidity);
+
+        Address[] tokens = sortTokens(tokenA, tokenB);
+        _setReserves(tokens[0], tokens[1], pool, pool.reserve0.subtract(amount0), pool.reserve1.subtract(amount1));
+
+        boolean aIsToken0  = tokenA.equals(tokens[0]);
+        BigInteger amountA = aIsToken0 ? amount0 : amount1;
+        BigInteger amountB = aIsToken0 ? amount1 : amount0;
+        require(amountA.compareTo(amountAMin) >= 0, "NulswapV3: INSUFFICIENT_A_AMOUNT");
+        require(amountB.compareTo(amountBMin) >= 0, "NulswapV3: INSUFFICIENT_B_AMOUNT");
+
+        _pay(tokenA, to, amountA, toBalance);
+        _pay(tokenB, to, amountB, toBalance);
+        emit(new BurnEvent(Msg.sender(), tokens[0], tokens[1], amount0, amount1, to));
+
+        unlock();
+
+        return amountA + "," + amountB;
+    }
+
+    /**
+     * Move lp shares of a pool to another address
+     *
+     * @param tokenA Token A Contract Address
+     * @param tokenB Token B Contract Address
+     * @param to Receiver of the shares
+     * @param amount Shares to move
+     * */
+    public void transferShares(Address tokenA, Address tokenB, Address to, BigInteger amount){
+        Pool pool = poolOf(tokenA, tokenB);
+        pool.burnShares(Msg.sender(), amount);
+        pool.mintShares(to, amount);
+    }
+
+    // **** SWAP ****
+
+    /**
+     * Swap an exact input along a path of pools
+     *
+     * @param amountIn Input amount
+     * @param amountOutMin Minimum output amount
+     * @param path Array of tokens
+     * @param to Receiver Address
+     * @param deadline
+     *
+     * @dev One transfer in and one transfer out whatever the number of hops
+     * */
+    @JSONSerializable
+    public String[] swapExactTokensForTokens(
+            BigInteger amountIn,
+            BigInteger amountOutMin,
+            String[] path,
+            Address to,
+            BigInteger deadline
+    ){
+        return toStringArray(_swapExactIn(amountIn, amountOutMin, path, to, deadline, false));
+    }
+
+    /**
+     * Swap an exact input debited from the sender's internal balance,
+     * crediting the output to the internal balance of to
+     *
+     * @dev No token transfer at all, meant for frequent traders
+     * */
+    @JSONSerializable
+    public String[] swapExactTokensForTokensWithBalance(
+            BigInteger amountIn,
+            BigInteger amountOutMin,
+            String[] path,
+            Address to,
+            BigInteger deadline
+    ){
+        return toStringArray(_swapExactIn(amountIn, amountOutMin, path, to, deadline, true));
+    }
+
+    private BigInteger[] _swapExactIn(
+            BigInteger amountIn,
+            BigInteger amountOutMin,
+            String[] path,
+            Address to,
+            BigInteger deadline,
+            boolean withBalance
+    ){
+        ensure(deadline);
+        whenNotPaused();
+        lock();
+
+        Address[] tokens     = parsePath(path);
+        BigInteger[] amounts = _amountsOut(amountIn, tokens, true, to);
+        require(amounts[amounts.length - 1].compareTo(amountOutMin) >= 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+
+        _collect(tokens[0], amounts[0], withBalance);
+        _pay(tokens[tokens.length - 1], to, amounts[amounts.length - 1], withBalance);
+
+        unlock();
+
+        return amounts;
+    }
+
+    /**
+     * Swap for an exact output along a path of pools
+     *
+     * @param amountOut Output amount
+     * @param amountInMax Maximum input amount
+     * @param path Array of tokens
+     * @param to Receiver Address
+     * @param deadline
+     * */
+    @JSONSerializable
+    public String[] swapTokensForExactTokens(
+            BigInteger amountOut,
+            BigInteger amountInMax,
+            String[] path,
+            Address to,
+            BigInteger deadline
+    ){
+        return toStringArray(_swapExactOut(amountOut, amountInMax, path, to, deadline, false));
+    }
+
+    /**
+     * Swap for an exact output debited from the sender's internal balance,
+     * crediting the output to the internal balance of to
+     *
+     * */
+    @JSONSerializable
+    public String[] swapTokensForExactTokensWithBalance(
+            BigInteger amountOut,
+            BigInteger amountInMax,
+            String[] path,
+            Address to,
+            BigInteger deadline
+    ){
+        return toStringArray(_swapExactOut(amountOut, amountInMax, path, to, deadline, true));
+    }
+
+    private BigInteger[] _swapExactOut(
+            BigInteger amountOut,
+            BigInteger amountInMax,
+            String[] path,
+            Address to,
+            BigInteger deadline,
+            boolean withBalance
+    ){
+        ensure(deadline);
+        whenNotPaused();
+        lock();
+
+        Address[] tokens     = parsePath(path);
+        BigInteger[] amounts = _getAmountsIn(amountOut, tokens);
+        require(amounts[0].compareTo(amountInMax) <= 0, "NulswapV3: EXCESSIVE_INPUT_AMOUNT");
+
+        _collect(tokens[0], amounts[0], withBalance);
+        _swap(amounts, tokens, to);
+        _pay(tokens[tokens.length - 1], to, amounts[amounts.length - 1], withBalance);
+
+        unlock();
+
+        return amounts;
+    }
+
+    /**
+     * Apply a quoted exact output path to the pool reserves
+     *
+     * @param amounts Amount entering each hop, the last one leaving the path
+     * @param tokens Path tokens, each pool at most once
+     * @param to Receiver, only used in events
+     * */
+    private void _swap(BigInteger[] amounts, Address[] tokens, Address to){
+
+        for (int i = 0; i < tokens.length - 1; i++) {
+
+            Address[] sorted   = sortTokens(tokens[i], tokens[i + 1]);
+            Pool pool          = poolOf(tokens[i], tokens[i + 1]);
+            boolean zeroForOne = tokens[i].equals(sorted[0]);
+
+            BigInteger amountIn  = amounts[i];
+            BigInteger amountOut = amounts[i + 1];
+
+            if (zeroForOne)
+                _setReserves(sorted[0], sorted[1], pool, pool.reserve0.add(amountIn), pool.reserve1.subtract(amountOut));
+            else
+                _setReserves(sorted[0], sorted[1], pool, pool.reserve0.subtract(amountOut), pool.reserve1.add(amountIn));
+
+            emit(new SwapEvent(Msg.sender(), tokens[i], tokens[i + 1], amountIn, amountOut, i == tokens.length - 2 ? to : Msg.address()));
+        }
+    }
+
+    private void _setReserves(Address token0, Address token1, Pool pool, BigInteger reserve0, BigInteger reserve1){
+        require(reserve0.signum() >= 0 && reserve1.signum() >= 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        require(reserve0.compareTo(NulswapMath.MAX_UINT112) <= 0 && reserve1.compareTo(NulswapMath.MAX_UINT112) <= 0, "NulswapV3: OVERFLOW");
+        pool.reserve0 = reserve0;
+        pool.reserve1 = reserve1;
+        emit(new SyncEvent(token0, token1, reserve0, reserve1));
+    }
+
+    // **** QUOTING ****
+
+    /**
+     * Amounts along an exact input path, each hop priced on the reserves the previous ones left
+     *
+     * @param amountIn Input amount
+     * @param tokens Path tokens
+     * @param apply Whether to write the new reserves, a quote leaves the pools untouched
+     * @param to Receiver, only used in events
+     *
+     * @dev A path may go through the same pool twice, the second hop sees
+     *      the reserves after the first one
+     * */
+    private BigInteger[] _amountsOut(BigInteger amountIn, Address[] tokens, boolean apply, Address to){
+
+        BigInteger[] amounts = new BigInteger[tokens.length];
+        amounts[0]           = amountIn;
+
+        Map<Pool, BigInteger[]> quoted = new HashMap<Pool, BigInteger[]>(); // reserves after the hops quoted so far
+
+        for (int i = 0; i < tokens.length - 1; i++) {
+
+            Address[] sorted      = sortTokens(tokens[i], tokens[i + 1]);
+            Pool pool             = poolOf(tokens[i], tokens[i + 1]);
+            boolean zeroForOne    = tokens[i].equals(sorted[0]);
+            BigInteger[] reserves = quoted.containsKey(pool) ? quoted.get(pool) : new BigInteger[]{pool.reserve0, pool.reserve1};
+
+            BigInteger reserveIn  = zeroForOne ? reserves[0] : reserves[1];
+            BigInteger reserveOut = zeroForOne ? reserves[1] : reserves[0];
+            require(amounts[i].signum() > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+            require(reserveIn.signum() > 0 && reserveOut.signum() > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+            amounts[i + 1] = NulswapMath.getAmountOut(amounts[i], reserveIn, reserveOut);
+
+            BigInteger[] next = zeroForOne
+                    ? new BigInteger[]{reserves[0].add(amounts[i]), reserves[1].subtract(amounts[i + 1])}
+                    : new BigInteger[]{reserves[0].subtract(amounts[i + 1]), reserves[1].add(amounts[i])};
+
+            if (apply) {
+                _setReserves(sorted[0], sorted[1], pool, next[0], next[1]);
+                emit(new SwapEvent(Msg.sender(), tokens[i], tokens[i + 1], amounts[i], amounts[i + 1], i == tokens.length - 2 ? to : Msg.address()));
+            } else {
+                quoted.put(pool, next);
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * Amounts along an exact output path, quoted from its last hop backwards
+     *
+     * @dev Hops are quoted in the reverse of the order they execute in, so a
+     *      pool may appear only once in the path
+     * */
+    private BigInteger[] _getAmountsIn(BigInteger amountOut, Address[] tokens){
+
+        BigInteger[] amounts        = new BigInteger[tokens.length];
+        amounts[amounts.length - 1] = amountOut;
+
+        for (int i = 0; i < tokens.length - 1; i++) {
+            for (int j = i + 1; j < tokens.length - 1; j++) {
+                require(poolOf(tokens[i], tokens[i + 1]) != poolOf(tokens[j], tokens[j + 1]), "NulswapV3: DUPLICATE_POOL");
+            }
+        }
+
+        for (int i = tokens.length - 1; i > 0; i--) {
+            BigInteger[] reserves = getReservesOriented(tokens[i - 1], tokens[i]);
+            require(amounts[i].signum() > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+            require(reserves[0].signum() > 0 && amounts[i].compareTo(reserves[1]) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+            amounts[i - 1] = NulswapMath.getAmountIn(amounts[i], reserves[0], reserves[1]);
+        }
+        return amounts;
+    }
+
+    @View
+    @JSONSerializable
+    public String[] getAmountsOut(BigInteger amountIn, String[] path){
+        return toStringArray(_amountsOut(amountIn, parsePath(path), false, null));
+    }
+
+    @View
+    @JSONSerializable
+    public String[] getAmountsIn(BigInteger amountOut, String[] path){
+        return toStringArray(_getAmountsIn(amountOut, parsePath(path)));
+    }
+
+    // **** INTERNAL BALANCES ****
+
+    /**
+     * Deposit tokens as an internal balance of the sender
+     *
+     * @param token Token Address
+     * @param amount Amount to deposit
+     * */
+    public void deposit(Address token, BigInteger amount){
+        whenNotPaused();
+        lock();
+
+        require(isStandardToken(token), "NulswapV3: TOKEN_NOT_ACCEPTED");
+        require(amount.signum() > 0, "NulswapV3: INVALID_AMOUNT");
+
+        _pull(token, amount);
+        _credit(Msg.sender(), token, amount);
+        emit(new DepositEvent(Msg.sender(), token, amount));
+
+        unlock();
+    }
+
+    /**
+     * Withdraw tokens from the sender's internal balance
+     *
+     * @param token Token Address
+     * @param amount Amount to withdraw
+     * @param to Receiver of the tokens
+     * */
+    public void withdraw(Address token, BigInteger amount, Address to){
+        lock();
+
+        require(amount.signum() > 0, "NulswapV3: INVALID_AMOUNT");
+
+        _debit(Msg.sender(), token, amount);
+        _push(token, to, amount);
+        emit(new WithdrawEvent(Msg.sender(), token, amount, to));
+
+        unlock();
+    }
+
+    private void _credit(Address user, Address token, BigInteger amount){
+        Map<Address, BigInteger> userBalances = balances.get(user);
+        if (userBalances == null) {
+            userBalances = new HashMap<Address, BigInteger>();
+            balances.put(user, userBalances);
+        }
+        BigInteger balance = userBalances.get(token);
+        userBalances.put(token, balance != null ? balance.add(amount) : amount);
+    }
+
+    private void _debit(Address user, Address token, BigInteger amount){
+        BigInteger balance = balanceOf(user, token);
+        require(balance.compareTo(amount) >= 0, "NulswapV3: INSUFFICIENT_BALANCE");
+        balances.get(user).put(token, balance.subtract(amount));
+    }
+
+    /**
+     * Take tokens from the sender, by transfer or from its internal balance
+     *
+     * */
+    private void _collect(Address token, BigInteger amount, boolean fromBalance){
+        if (fromBalance)
+            _debit(Msg.sender(), token, amount);
+        else
+            _pull(token, amount);
+    }
+
+    /**
+     * Give tokens to a recipient, by transfer or to its internal balance
+     *
+     * */
+    private void _pay(Address token, Address recipient, BigInteger amount, boolean toBalance){
+        if (toBalance)
+            _credit(recipient, token, amount);
+        else
+            _push(token, recipient, amount);
+    }
+
+    // **** TOKENS ****
+
+    /**
+     * Pull tokens from the sender into the vault
+     *
+     * @dev Standard tokens only, so the vault receives exactly amount
+     * */
+    private void _pull(@Required Address token, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{Msg.sender().toString()}, new String[]{Msg.address().toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transferFrom", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: Failed to transfer");
+    }
+
+    /**
+     * Send tokens held by the vault
+     *
+     * */
+    private void _push(@Required Address token, @Required Address recipient, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transfer", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: Failed to transfer");
+    }
+
+    // **** HELPERS ****
+
+    private Address[] parsePath(String[] path){
+        require(path.length >= 2, "NulswapV3: INVALID_PATH");
+        Address[] tokens = new Address[path.length];
+        for (int i = 0; i < path.length; i++) {
+            tokens[i] = new Address(path[i]);
+        }
+        return tokens;
+    }
+
+    private boolean isToken0(Address tokenA, Address tokenB){
+        return tokenA.hashCode() < tokenB.hashCode();
+    }
+
+    private Address[] sortTokens(Address tokenA, Address tokenB){
+        return isToken0(tokenA, tokenB) ? new Address[]{tokenA, tokenB} : new Address[]{tokenB, tokenA};
+    }
+
+    private Pool getPoolOrNull(Address tokenA, Address tokenB){
+        Address[] tokens = sortTokens(tokenA, tokenB);
+        Map<Address, Pool> map = pools.get(tokens[0]);
+        return map != null ? map.get(tokens[1]) : null;
+    }
+
+    private Pool poolOf(Address tokenA, Address tokenB){
+        Pool pool = getPoolOrNull(tokenA, tokenB);
+        require(pool != null, "NulswapV3: PAIR_NOT_FOUND");
+        return pool;
+    }
+
+    /**
+     * Reserves of a pool ordered as input, output
+     *
+     * */
+    private BigInteger[] getReservesOriented(Address input, Address output){
+        Pool pool = poolOf(input, output);
+        return isToken0(input, output) ? new BigInteger[]{pool.reserve0, pool.reserve1} : new BigInteger[]{pool.reserve1, pool.reserve0};
+    }
+
+    private String[] toStringArray(BigInteger[] amounts){
+        String[] result = new String[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            result[i] = amounts[i].toString();
+        }
+        return result;
+    }
+
+    // **** ADMIN ****
+
+    /**
+     * Accept or refuse a token in new pools
+     *
+     * @param token Token Address
+     * @param standard True if the token has no transfer fees and does not rebase
+     * */
+    public void setStandardToken(Address token, Boolean standard){
+        onlyOwner();
+        standardTokens.put(token, standard);
+    }
+
+    public void pause(){
+        onlyOwner();
+        paused = true;
+    }
+
+    public void unpause(){
+        onlyOwner();
+        paused = false;
+    }
+
+    // **** VIEWS ****
+
+    @View
+    public boolean isStandardToken(Address token){
+        Boolean standard = standardTokens.get(token);
+        return standard != null && standard;
+    }
+
+    /**
+     * Pool state
+     *
+     * @dev token0,token1,reserve0,reserve1,totalSupply
+     * */
+    @View
+    public String getPool(Address tokenA, Address tokenB){
+        Address[] tokens = sortTokens(tokenA, tokenB);
+        Pool pool        = poolOf(tokenA, tokenB);
+        return tokens[0] + "," + tokens[1] + "," + pool.reserve0 + "," + pool.reserve1 + "," + pool.totalSupply;
+    }
+
+    @View
+    public BigInteger getShares(Address tokenA, Address tokenB, Address owner){
+        return poolOf(tokenA, tokenB).sharesOf(owner);
+    }
+
+    /**
+     * Internal balance of a user
+     *
+     * */
+    @View
+    public BigInteger balanceOf(Address user, Address token){
+        Map<Address, BigInteger> userBalances = balances.get(user);
+        BigInteger balance = userBalances != null ? userBalances.get(token) : null;
+        return balance != null ? balance : BigInteger.ZERO;
+    }
+
+    @View
+    public int poolsLength(){
+        return poolsLength;
+    }
+
+    @View
+    public Boolean getPaused() {
+        return paused;
+    }
+
+    /**
+     * Reserves and lp shares of one pool
+     * */
+    class Pool {
+
+        private BigInteger reserve0    = BigInteger.ZERO;
+        private BigInteger reserve1    = BigInteger.ZERO;
+        private BigInteger totalSupply = BigInteger.ZERO;
+        private Map<Address, BigInteger> shares = new HashMap<Address, BigInteger>();
+
+        public BigInteger sharesOf(Address owner) {
+            BigInteger balance = shares.get(owner);
+            return balance != null ? balance : BigInteger.ZERO;
+        }
+
+        public void mintShares(Address owner, BigInteger amount) {
+            require(amount.signum() >= 0, "NulswapV3: INVALID_AMOUNT");
+            shares.put(owner, sharesOf(owner).add(amount));
+            totalSupply = totalSupply.add(amount);
+        }
+
+        public void burnShares(Address owner, BigInteger amount) {
+            require(amount.signum() >= 0 && sharesOf(owner).compareTo(amount) >= 0, "NulswapV3: INSUFFICIENT_SHARES");
+            shares.put(owner, sharesOf(owner).subtract(amount));
+            totalSupply = totalSupply.subtract(amount);
+        }
+
+    }
+
+    class PoolCreatedEvent implements Event {
+
+        private Address token0;
+        private Address token1;
+        private Integer numberOfPools;
+
+        public PoolCreatedEvent(@Required Address token0, @Required Address token1, @Required Integer numberOfPools) {
+            this.token0        = token0;
+            this.token1        = token1;
+            this.numberOfPools = numberOfPools;
+        }
+
+    }
+
+    class SwapEvent implements Event {
+
+        private Address sender;
+        private Address tokenIn;
+        private Address tokenOut;
+        private BigInteger amountIn;
+        private BigInteger amountOut;
+        private Address to;
+
+        public SwapEvent(@Required Address sender, @Required Address tokenIn, @Required Address tokenOut, @Required BigInteger amountIn, @Required BigInteger amountOut, @Required Address to) {
+            this.sender    = sender;
+            this.tokenIn   = tokenIn;
+            this.tokenOut  = tokenOut;
+            this.amountIn  = amountIn;
+            this.amountOut = amountOut;
+            this.to        = to;
+        }
+
+    }
+
+    class MintEvent implements Event {
+
+        private Address sender;
+        private Address token0;
+        private Address token1;
+        private BigInteger amount0;
+        private BigInteger amount1;
+        private Address to;
+
+        public MintEvent(@Required Address sender, @Required Address token0, @Required Address token1, @Required BigInteger amount0, @Required BigInteger amount1, @Required Address to) {
+            this.sender  = sender;
+            this.token0  = token0;
+            this.token1  = token1;
+            this.amount0 = amount0;
+            this.amount1 = amount1;
+            this.to      = to;
+        }
+
+    }
+
+    class BurnEvent implements Event {
+
+        private Address sender;
+        private Address token0;
+        private Address token1;
+        private BigInteger amount0;
+        private BigInteger amount1;
+        private Address to;
+
+        public BurnEvent(@Required Address sender, @Required Address token0, @Required Address token1, @Required BigInteger amount0, @Required BigInteger amount1, @Required Address to) {
+            this.sender  = sender;
+            this.token0  = token0;
+            this.token1  = token1;
+            this.amount0 = amount0;
+            this.amount1 = amount1;
+            this.to      = to;
+        }
+
+    }
+
+    class DepositEvent implements Event {
+
+        private Address user;
+        private Address token;
+        private BigInteger amount;
+
+        public DepositEvent(@Required Address user, @Required Address token, @Required BigInteger amount) {
+            this.user   = user;
+            this.token  = token;
+            this.amount = amount;
+        }
+
+    }
+
+    class WithdrawEvent implements Event {
+
+        private Address user;
+        private Address token;
+        private BigInteger amount;
+        private Address to;
+
+        public WithdrawEvent(@Required Address user, @Required Address token, @Required BigInteger amount, @Required Address to) {
+            this.user   = user;
+            this.token  = token;
+            this.amount = amount;
+            this.to     = to;
+        }
+
+    }
+
+    class SyncEvent implements Event {
+
+        private Address token0;
+        private Address token1;
+        private BigInteger reserve0;
+        private BigInteger reserve1;
+
+        public SyncEvent(@Required Address token0, @Required Address token1, @Required BigInteger reserve0, @Required BigInteger reserve1) {
+            this.token0   = token0;
+            this.token1   = token1;
+            this.reserve0 = reserve0;
+            this.reserve1 = reserve1;
+        }
+
+    }
+}
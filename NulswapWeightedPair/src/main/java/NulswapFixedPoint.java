@@ -0,0 +1,185 @@
+import java.math.BigInteger;
+
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Fixed Point
+ *
+ * @notice  18 decimals fixed-point arithmetic with exp, ln and pow, used by
+ *          the weighted pair
+ *
+ * @dev     exp and ln reduce their argument by powers of two and then run a
+ *          series with a fixed iteration cap, internally at 36 decimals, so
+ *          pow stays within about 1e-16 of the exact value. The Up/Down pow
+ *          variants widen the result by MAX_POW_RELATIVE_ERROR so callers
+ *          can always round in favour of the pool.
+ *
+ */
+public final class NulswapFixedPoint {
+
+    /** Constants **/
+    public static final BigInteger ONE                    = BigInteger.TEN.pow(18);                     // 1.0
+    public static final BigInteger MAX_POW_RELATIVE_ERROR = BigInteger.valueOf(10_000);                 // 1e-14, bound on the pow error
+
+    private static final BigInteger ONE_36                = BigInteger.TEN.pow(36);                     // 1.0 at internal precision
+    private static final BigInteger LN2_36                = new BigInteger("693147180559945309417232121458176568"); // ln(2) at internal precision
+    private static final BigInteger MIN_EXP               = ONE.multiply(BigInteger.valueOf(-41));      // exp below this is under 1e-18
+    private static final BigInteger MAX_EXP               = ONE.multiply(BigInteger.valueOf(130));      // exp above this cannot be a balance
+    private static final int MAX_SERIES_TERMS             = 40;                                         // Series iteration cap
+
+    private NulswapFixedPoint() {
+    }
+
+    public static BigInteger mulDown(BigInteger a, BigInteger b){
+        return a.multiply(b).divide(ONE);
+    }
+
+    public static BigInteger mulUp(BigInteger a, BigInteger b){
+        BigInteger product = a.multiply(b);
+        return product.signum() == 0 ? BigInteger.ZERO : product.subtract(BigInteger.ONE).divide(ONE).add(BigInteger.ONE);
+    }
+
+    public static BigInteger divDown(BigInteger a, BigInteger b){
+        require(b.signum() != 0, "NulswapV3: ZERO_DIVISION");
+        return a.multiply(ONE).divide(b);
+    }
+
+    public static BigInteger divUp(BigInteger a, BigInteger b){
+        require(b.signum() != 0, "NulswapV3: ZERO_DIVISION");
+        return a.signum() == 0 ? BigInteger.ZERO : a.multiply(ONE).subtract(BigInteger.ONE).divide(b).add(BigInteger.ONE);
+    }
+
+    /**
+     * 1 - x, floored at 0
+     *
+     * */
+    public static BigInteger complement(BigInteger x){
+        return x.compareTo(ONE) < 0 ? ONE.subtract(x) : BigInteger.ZERO;
+    }
+
+    /**
+     * Natural logarithm
+     *
+     * @param x Positive 18 decimals value
+     *
+     * @dev x = m·2^k with m in [1, 2), ln(m) = 2·atanh((m - 1)/(m + 1)).
+     *      The atanh argument is below 1/3, so each term gains almost a
+     *      decimal digit and 36 decimals need about 37 terms at worst
+     * */
+    public static BigInteger ln(BigInteger x){
+
+        require(x.signum() > 0, "NulswapV3: LN_OUT_OF_BOUNDS");
+
+        BigInteger m = x.multiply(ONE);                                     // x at 36 decimals
+        int k        = m.bitLength() - ONE_36.bitLength();
+        m            = k >= 0 ? m.shiftRight(k) : m.shiftLeft(-k);
+        while (m.compareTo(ONE_36) < 0) { m = m.shiftLeft(1); k--; }
+        while (m.compareTo(ONE_36.shiftLeft(1)) >= 0) { m = m.shiftRight(1); k++; }
+
+        BigInteger z    = m.subtract(ONE_36).multiply(ONE_36).divide(m.add(ONE_36));
+        BigInteger z2   = z.multiply(z).divide(ONE_36);
+        BigInteger term = z;
+        BigInteger sum  = z;
+        for (int i = 3; i < 2 * MAX_SERIES_TERMS; i += 2) {
+            term = term.multiply(z2).divide(ONE_36);
+            if (term.signum() == 0)
+                break;
+            sum = sum.add(term.divide(BigInteger.valueOf(i)));
+        }
+
+        return sum.shiftLeft(1).add(LN2_36.multiply(BigInteger.valueOf(k))).divide(ONE);
+    }
+
+    /**
+     * Natural exponential
+     *
+     * @param x 18 decimals value between MIN_EXP and MAX_EXP
+     *
+     * @dev x = k·ln(2) + r with |r| <= ln(2)/2, e^x = 2^k·e^r and the
+     *      Taylor series of e^r needs about 30 terms for 36 decimals
+     * */
+    public static BigInteger exp(BigInteger x){
+
+        require(x.compareTo(MAX_EXP) <= 0, "NulswapV3: EXP_OUT_OF_BOUNDS");
+        if (x.compareTo(MIN_EXP) < 0)
+            return BigInteger.ZERO;
+
+        BigInteger x36 = x.multiply(ONE);
+        BigInteger[] qr = x36.add(LN2_36.shiftRight(1)).divideAndRemainder(LN2_36);
+        BigInteger q    = qr[1].signum() < 0 ? qr[0].subtract(BigInteger.ONE) : qr[0];    // floor((x + ln2/2) / ln2)
+        int k           = q.intValue();
+        BigInteger r    = x36.subtract(LN2_36.multiply(q));
+
+        BigInteger term = ONE_36;
+        BigInteger sum  = ONE_36;
+        for (int i = 1; i <= MAX_SERIES_TERMS; i++) {
+            term = term.multiply(r).divide(ONE_36).divide(BigInteger.valueOf(i));
+            if (term.signum() == 0)
+                break;
+            sum = sum.add(term);
+        }
+
+        sum = k >= 0 ? sum.shiftLeft(k) : sum.shiftRight(-k);
+        return sum.divide(ONE);
+    }
+
+    /**
+     * x^y as exp(y·ln(x))
+     *
+     * @param x Positive 18 decimals base
+     * @param y 18 decimals exponent
+     * */
+    public static BigInteger pow(BigInteger x, BigInteger y){
+        return powRatio(x, ONE, y);
+    }
+
+    /**
+     * (a/b)^y as exp(y·(ln(a) - ln(b)))
+     *
+     * @param a Positive numerator
+     * @param b Positive denominator, same unit as a
+     * @param y 18 decimals exponent
+     *
+     * @dev Taking the ratio inside the logarithm keeps full precision when
+     *      a/b is far from 1, where an 18 decimals quotient would not
+     * */
+    public static BigInteger powRatio(BigInteger a, BigInteger b, BigInteger y){
+        if (y.signum() == 0 || a.equals(b))
+            return ONE;
+        return exp(ln(a).subtract(ln(b)).multiply(y).divide(ONE));
+    }
+
+    /**
+     * x^y rounded down by at least its error bound
+     *
+     * */
+    public static BigInteger powDown(BigInteger x, BigInteger y){
+        return widenDown(pow(x, y));
+    }
+
+    /**
+     * x^y rounded up by at least its error bound
+     *
+     * */
+    public static BigInteger powUp(BigInteger x, BigInteger y){
+        return widenUp(pow(x, y));
+    }
+
+    /**
+     * (a/b)^y rounded up by at least its error bound
+     *
+     * */
+    public static BigInteger powRatioUp(BigInteger a, BigInteger b, BigInteger y){
+        return widenUp(powRatio(a, b, y));
+    }
+
+    private static BigInteger widenDown(BigInteger raw){
+        BigInteger maxError = mulUp(raw, MAX_POW_RELATIVE_ERROR).add(BigInteger.ONE);
+        return raw.compareTo(maxError) > 0 ? raw.subtract(maxError) : BigInteger.ZERO;
+    }
+
+    private static BigInteger widenUp(BigInteger raw){
+        return raw.add(mulUp(raw, MAX_POW_RELATIVE_ERROR)).add(BigInteger.ONE);
+    }
+
+}
@@ -0,0 +1,625 @@
+import io.nuls.contract.sdk.*;
+import io.nuls.contract.sdk.annotation.Required;
+import io.nuls.contract.sdk.annotation.View;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.nuls.contract.sdk.Utils.emit;
+import static io.nuls.contract.sdk.Utils.require;
+
+/**
+ * @title   Nulswap Weighted Pair
+ *
+ * @dev     Two token pool priced with the weighted invariant
+ *          V = x0^w0 · x1^w1, w0 + w1 = 1, so the pool holds its tokens
+ *          at a fixed value ratio other than 50/50, like an 80/20 index
+ *          pool. With w0 = w1 it prices like NulswapPair.
+ *          Powers come from NulswapFixedPoint and are always rounded in
+ *          favour of the pool.
+ *          Exposes the same swap/mint/burn interface as NulswapPair and
+ *          is its own lp token.
+ *
+ * @author  Pedro G. S. Ferreira
+ *
+ */
+public class NulswapWeightedPair implements Contract, Token {
+
+    /** Constants **/
+    private static final BigInteger MINIMUM_LIQUIDITY = BigInteger.valueOf(1_000);                      // Minimum Liquidity
+    private static final BigInteger MIN_WEIGHT        = BigInteger.TEN.pow(16);                         // 1%
+    private static final BigInteger OUT_MARGIN        = NulswapFixedPoint.ONE.add(NulswapFixedPoint.MAX_POW_RELATIVE_ERROR.shiftLeft(1)); // Widens exact output quotes past the swap check error
+
+    private static final String LP_NAME               = "Nulswap_weighted_lp";                          // LP Token Name
+    private static final String LP_SYMBOL             = "NSWAP_WLP";                                    // LP Token Symbol
+    private static final int LP_DECIMALS              = 18;                                             // LP Token Decimals
+
+    private final Address BURNER_ADDR; // Burner Address
+
+    /** Variables **/
+    private Address factory;                    // Factory Address
+    private Address token0;                     // Pair Token0
+    private Address token1;                     // Pair Token1
+    private BigInteger weight0;                 // Normalized weight of token0, 18 decimals
+    private BigInteger weight1;                 // Normalized weight of token1, 1 - weight0
+
+    private BigInteger reserve0;                // Reserve Token0
+    private BigInteger reserve1;                // Reserve Token1
+
+    private int unlocked = 1;                   // Lock Status | 1 - unlocked 0 - locked
+
+    private BigInteger totalSupply = BigInteger.ZERO;                                                   // LP Total Supply
+    private Map<Address, BigInteger> balances = new HashMap<Address, BigInteger>();                     // LP Balances
+    private Map<Address, Map<Address, BigInteger>> allowed = new HashMap<Address, Map<Address, BigInteger>>(); // LP Allowances
+
+    /**
+     * Lock Contract
+     * @dev Essential to protect against reentrancy attacks
+     * */
+    protected void lock(){
+        require(unlocked == 1, "NulswapV3: LOCKED");
+        unlocked = 0;
+    }
+
+    /**
+     * Unlock Contract
+     *
+     * */
+    protected void unlock(){
+        require(unlocked == 0, "NulswapV3: LOCKED");
+        unlocked = 1;
+    }
+
+    /**
+     * Constructor
+     *
+     * */
+    public NulswapWeightedPair() {
+
+        factory  = Msg.sender();
+        reserve0 = BigInteger.ZERO;
+        reserve1 = BigInteger.ZERO;
+        if (Msg.sender().toString().startsWith("NULS")) {
+            BURNER_ADDR = new Address("NULSd6HgsVSzCAJwLYBjvfP3NwbKCvV525GWn");
+        } else {
+            BURNER_ADDR = new Address("tNULSeBaN5nddf9WkQgRr3RNwARgryndv2Bzs6");
+        }
+    }
+
+    /**
+     * Initialize pair
+     *
+     * @param _token0 Token0 Address
+     * @param _token1 Token1 Address
+     * @param _weight0 Weight of token0 with 18 decimals, token1 gets the rest
+     * */
+    public void initialize(Address _token0, Address _token1, BigInteger _weight0){
+
+        require(Msg.sender().equals(factory), "NulswapV3: FORBIDDEN"); // sufficient check
+        require(_weight0.compareTo(MIN_WEIGHT) >= 0 && _weight0.compareTo(NulswapFixedPoint.ONE.subtract(MIN_WEIGHT)) <= 0, "NulswapV3: INVALID_WEIGHT");
+
+        token0  = _token0;
+        token1  = _token1;
+        weight0 = _weight0;
+        weight1 = NulswapFixedPoint.ONE.subtract(_weight0);
+    }
+
+    // **** WEIGHTED MATH ****
+
+    /**
+     * Swap fee on an input amount, rounded up
+     *
+     * */
+    private BigInteger fee(BigInteger amountIn){
+        return amountIn.multiply(NulswapMath.FEE_AMOUNT).add(NulswapMath.FEE_DENOMINATOR).subtract(BigInteger.ONE).divide(NulswapMath.FEE_DENOMINATOR);
+    }
+
+    /**
+     * Lowest output balance that keeps the invariant once the input balance grew
+     *
+     * @param reserveIn Input reserve before the swap
+     * @param reserveOut Output reserve before the swap
+     * @param balanceIn Input balance after the swap, fee excluded
+     * @param weightIn Weight of the input token
+     * @param weightOut Weight of the output token
+     *
+     * @dev reserveOut·(reserveIn/balanceIn)^(weightIn/weightOut), rounded up.
+     *      Shared by the swap check and getAmountOut, so an exact input quote
+     *      always passes the check
+     * */
+    private BigInteger minBalanceOut(BigInteger reserveIn, BigInteger reserveOut, BigInteger balanceIn, BigInteger weightIn, BigInteger weightOut){
+        BigInteger power = NulswapFixedPoint.powRatioUp(reserveIn, balanceIn, NulswapFixedPoint.divDown(weightIn, weightOut));
+        return NulswapFixedPoint.mulUp(reserveOut, power);
+    }
+
+    /**
+     * Output amount for an input against the given reserves
+     *
+     * @param amountIn Input amount, fee included
+     * @param reserveIn Reserve of the input token
+     * @param reserveOut Reserve of the output token
+     * @param inputIsToken0 Whether the input token is token0
+     *
+     * @dev Reserves are parameters so the router can quote against its own cached values
+     * */
+    @View
+    public BigInteger getAmountOut(BigInteger amountIn, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+
+        require(amountIn.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+        require(reserveIn.compareTo(BigInteger.ZERO) > 0 && reserveOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        BigInteger weightIn  = inputIsToken0 ? weight0 : weight1;
+        BigInteger weightOut = inputIsToken0 ? weight1 : weight0;
+
+        BigInteger balanceIn  = reserveIn.add(amountIn).subtract(fee(amountIn));
+        BigInteger balanceOut = minBalanceOut(reserveIn, reserveOut, balanceIn, weightIn, weightOut);
+
+        return balanceOut.compareTo(reserveOut) < 0 ? reserveOut.subtract(balanceOut) : BigInteger.ZERO;
+    }
+
+    /**
+     * Input amount, fee included, needed for an output against the given reserves
+     *
+     * @param amountOut Output amount
+     * @param reserveIn Reserve of the input token
+     * @param reserveOut Reserve of the output token
+     * @param inputIsToken0 Whether the input token is token0
+     *
+     * @dev reserveIn·((reserveOut/(reserveOut - amountOut))^(weightOut/weightIn) - 1).
+     *      The ratio is widened by OUT_MARGIN before the power, so the error
+     *      of the swap check, raised to the inverse exponent, stays covered
+     * */
+    @View
+    public BigInteger getAmountIn(BigInteger amountOut, BigInteger reserveIn, BigInteger reserveOut, boolean inputIsToken0){
+
+        require(amountOut.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(reserveIn.compareTo(BigInteger.ZERO) > 0 && amountOut.compareTo(reserveOut) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+
+        BigInteger weightIn  = inputIsToken0 ? weight0 : weight1;
+        BigInteger weightOut = inputIsToken0 ? weight1 : weight0;
+
+        BigInteger power       = NulswapFixedPoint.powRatioUp(reserveOut.multiply(OUT_MARGIN), reserveOut.subtract(amountOut).multiply(NulswapFixedPoint.ONE), NulswapFixedPoint.divUp(weightOut, weightIn));
+        BigInteger amountInNet = NulswapFixedPoint.mulUp(reserveIn, power.subtract(NulswapFixedPoint.ONE)).add(BigInteger.ONE);
+
+        // smallest input whose fee leaves amountInNet
+        return NulswapMath.mulDiv(amountInNet, NulswapMath.FEE_DENOMINATOR, NulswapMath.FEE_NUMERATOR).add(BigInteger.ONE);
+    }
+
+    /**
+     * Invariant V of two balances, rounded down
+     *
+     * @dev Balances are read as 18 decimals values, so V keeps their unit
+     * */
+    private BigInteger invariant(BigInteger balance0, BigInteger balance1){
+        return NulswapFixedPoint.mulDown(NulswapFixedPoint.powDown(balance0, weight0), NulswapFixedPoint.powDown(balance1, weight1));
+    }
+
+    /**
+     * Update reserves
+     *
+     * @param balance0 New reserve0
+     * @param balance1 New reserve1
+     * */
+    private void _update(BigInteger balance0, BigInteger balance1){
+
+        require(balance0.compareTo(NulswapMath.MAX_UINT112) <= 0 && balance1.compareTo(NulswapMath.MAX_UINT112) <= 0, "NulswapV3: OVERFLOW");
+
+        reserve0 = balance0;
+        reserve1 = balance1;
+        emit(new SyncEvent(reserve0, reserve1));
+    }
+
+    /**
+     * Mint Liquidity
+     *
+     * @param to Address that receive the ownerhsip of the liquidity
+     *
+     * @dev The first deposit mints the invariant V, later ones mint pro-rata
+     *      to the scarcer of the two amounts, like NulswapPair
+     * */
+    public BigInteger mint(Address to) {
+
+        lock();
+
+        BigInteger balance0 = safeBalanceOf(token0, Msg.address());
+        BigInteger balance1 = safeBalanceOf(token1, Msg.address());
+
+        BigInteger amount0  = balance0.subtract(reserve0);
+        BigInteger amount1  = balance1.subtract(reserve1);
+
+        BigInteger liquidity;
+        if (totalSupply.compareTo(BigInteger.ZERO) == 0) {
+            require(amount0.signum() > 0 && amount1.signum() > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+            liquidity = invariant(amount0, amount1).subtract(MINIMUM_LIQUIDITY);
+            _mint(BURNER_ADDR, MINIMUM_LIQUIDITY); // permanently lock the first MINIMUM_LIQUIDITY tokens
+        } else {
+            liquidity = NulswapMath.min(NulswapMath.mulDiv(amount0, totalSupply, reserve0), NulswapMath.mulDiv(amount1, totalSupply, reserve1));
+        }
+
+        require(liquidity.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_MINTED");
+        _mint(to, liquidity);
+
+        _update(balance0, balance1);
+
+        emit(new MintEvent(Msg.sender(), amount0, amount1));
+
+        unlock();
+
+        return liquidity;
+    }
+
+    /**
+     * Mint Liquidity, interface shared with NulswapPair
+     *
+     * @dev The notified amounts are ignored, balances are always read
+     * */
+    public BigInteger mintNotified(BigInteger amount0, BigInteger amount1, Address to) {
+        return mint(to);
+    }
+
+    /**
+     * Burn Liquidity sent to the pair, paying out both tokens pro-rata
+     *
+     * @param to Address that receives the tokens
+     * */
+    public String burn(Address to) {
+
+        lock();
+
+        BigInteger balance0  = safeBalanceOf(token0, Msg.address());
+        BigInteger balance1  = safeBalanceOf(token1, Msg.address());
+        BigInteger liquidity = balanceOf(Msg.address());
+
+        BigInteger amount0   = liquidity.multiply(balance0).divide(totalSupply); // using balances ensures pro-rata distribution
+        BigInteger amount1   = liquidity.multiply(balance1).divide(totalSupply); // using balances ensures pro-rata distribution
+
+        require(amount0.compareTo(BigInteger.ZERO) > 0 && amount1.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_LIQUIDITY_BURNED");
+        _burn(Msg.address(), liquidity);
+
+        safeTransfer(token0, to, amount0);
+        safeTransfer(token1, to, amount1);
+
+        _update(balance0.subtract(amount0), balance1.subtract(amount1));
+        emit(new BurnEvent(Msg.sender(), amount0, amount1, to));
+
+        unlock();
+
+        return amount0 + "," + amount1;
+    }
+
+    // this low-level function should be called from a contract which performs important safety checks
+    public void swap(BigInteger amount0Out, BigInteger amount1Out, Address to) {
+
+        // Lock Contract
+        lock();
+
+        // One of the values must be higher than 0
+        require(amount0Out.compareTo(BigInteger.ZERO) > 0 || amount1Out.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_OUTPUT_AMOUNT");
+        require(amount0Out.compareTo(reserve0) < 0 && amount1Out.compareTo(reserve1) < 0, "NulswapV3: INSUFFICIENT_LIQUIDITY");
+        require(!to.equals(token0) && !to.equals(token1), "NulswapV3: INVALID_TO");
+
+        if (amount0Out.compareTo(BigInteger.ZERO) > 0) safeTransfer(token0, to, amount0Out); // optimistically transfer tokens
+        if (amount1Out.compareTo(BigInteger.ZERO) > 0) safeTransfer(token1, to, amount1Out); // optimistically transfer tokens
+
+        BigInteger balance0 = safeBalanceOf(token0, Msg.address());
+        BigInteger balance1 = safeBalanceOf(token1, Msg.address());
+
+        BigInteger amount0In = balance0.compareTo(reserve0.subtract(amount0Out)) > 0 ? balance0.subtract((reserve0.subtract(amount0Out))) : BigInteger.ZERO;
+        BigInteger amount1In = balance1.compareTo(reserve1.subtract(amount1Out)) > 0 ? balance1.subtract((reserve1.subtract(amount1Out))) : BigInteger.ZERO;
+
+        require(amount0In.compareTo(BigInteger.ZERO) > 0 || amount1In.compareTo(BigInteger.ZERO) > 0, "NulswapV3: INSUFFICIENT_INPUT_AMOUNT");
+
+        BigInteger balance0Adjusted = balance0.subtract(fee(amount0In));
+        BigInteger balance1Adjusted = balance1.subtract(fee(amount1In));
+
+        // the invariant may not decrease: whichever balance fell must stay above the minimum the other one allows
+        if (balance1Adjusted.compareTo(reserve1) < 0)
+            require(balance0Adjusted.compareTo(reserve0) > 0 && balance1Adjusted.compareTo(minBalanceOut(reserve0, reserve1, balance0Adjusted, weight0, weight1)) >= 0, "NulswapV3: V");
+        else if (balance0Adjusted.compareTo(reserve0) < 0)
+            require(balance1Adjusted.compareTo(reserve1) > 0 && balance0Adjusted.compareTo(minBalanceOut(reserve1, reserve0, balance1Adjusted, weight1, weight0)) >= 0, "NulswapV3: V");
+
+        _update(balance0, balance1);
+
+        emit(new SwapEvent(Msg.sender(), amount0In, amount1In, amount0Out, amount1Out, to));
+
+        unlock();
+    }
+
+    /**
+     * Swap, interface shared with NulswapPair
+     *
+     * @dev The notified amounts are ignored, balances are always read
+     * */
+    public void swapNotified(BigInteger amount0In, BigInteger amount1In, BigInteger amount0Out, BigInteger amount1Out, Address to) {
+        swap(amount0Out, amount1Out, to);
+    }
+
+    /**
+     *  Force balances to match reserves
+     *
+     * @param to Address that will receive the excess
+     * */
+    public void skim(Address to){
+
+        lock();
+
+        safeTransfer(token0, to, safeBalanceOf(token0, Msg.address()).subtract(reserve0));
+        safeTransfer(token1, to, safeBalanceOf(token1, Msg.address()).subtract(reserve1));
+
+        unlock();
+    }
+
+    /**
+     * Force reserves to match balances
+     *
+     * */
+    public void sync(){
+
+        lock();
+
+        _update(safeBalanceOf(token0, Msg.address()), safeBalanceOf(token1, Msg.address()));
+
+        unlock();
+    }
+
+    private void _mint(@Required Address recipient, @Required BigInteger amount){
+        totalSupply = totalSupply.add(amount);
+        addBalance(recipient, amount);
+        emit(new TransferEvent(null, recipient, amount));
+    }
+
+    private void _burn(@Required Address recipient, @Required BigInteger amount){
+        subtractBalance(recipient, amount);
+        totalSupply = totalSupply.subtract(amount);
+        emit(new TransferEvent(recipient, null, amount));
+    }
+
+    private BigInteger safeBalanceOf(@Required Address token, @Required Address account){
+        String[][] argsM = new String[][]{new String[]{account.toString()}};
+        return new BigInteger(token.callWithReturnValue("balanceOf", "", argsM, BigInteger.ZERO));
+    }
+
+    private void safeTransfer(@Required Address token, @Required Address recipient, @Required BigInteger amount){
+        String[][] argsM = new String[][]{new String[]{recipient.toString()}, new String[]{amount.toString()}};
+        boolean b = new Boolean(token.callWithReturnValue("transfer", "", argsM, BigInteger.ZERO));
+        require(b, "NulswapV3: Failed to transfer");
+    }
+
+    // **** LP TOKEN ****
+
+    @Override
+    @View
+    public String name() {
+        return LP_NAME;
+    }
+
+    @Override
+    @View
+    public String symbol() {
+        return LP_SYMBOL;
+    }
+
+    @Override
+    @View
+    public int decimals() {
+        return LP_DECIMALS;
+    }
+
+    @Override
+    @View
+    public BigInteger totalSupply() {
+        return totalSupply;
+    }
+
+    @Override
+    @View
+    public BigInteger balanceOf(@Required Address owner) {
+        require(owner != null);
+        BigInteger balance = balances.get(owner);
+        if (balance == null) {
+            balance = BigInteger.ZERO;
+        }
+        return balance;
+    }
+
+    @Override
+    @View
+    public BigInteger allowance(@Required Address owner, @Required Address spender) {
+        Map<Address, BigInteger> ownerAllowed = allowed.get(owner);
+        if (ownerAllowed == null) {
+            return BigInteger.ZERO;
+        }
+        BigInteger value = ownerAllowed.get(spender);
+        if (value == null) {
+            value = BigInteger.ZERO;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean transfer(@Required Address to, @Required BigInteger value) {
+        subtractBalance(Msg.sender(), value);
+        addBalance(to, value);
+        emit(new TransferEvent(Msg.sender(), to, value));
+        return true;
+    }
+
+    @Override
+    public boolean transferFrom(@Required Address from, @Required Address to, @Required BigInteger value) {
+        subtractAllowed(from, Msg.sender(), value);
+        subtractBalance(from, value);
+        addBalance(to, value);
+        emit(new TransferEvent(from, to, value));
+        return true;
+    }
+
+    @Override
+    public boolean approve(@Required Address spender, @Required BigInteger value) {
+        setAllowed(Msg.sender(), spender, value);
+        emit(new ApprovalEvent(Msg.sender(), spender, value));
+        return true;
+    }
+
+    private void subtractAllowed(Address address1, Address address2, BigInteger value) {
+        BigInteger allowance = allowance(address1, address2);
+        check(allowance, value, "Insufficient approved token");
+        setAllowed(address1, address2, allowance.subtract(value));
+    }
+
+    private void setAllowed(Address address1, Address address2, BigInteger value) {
+        check(value);
+        Map<Address, BigInteger> address1Allowed = allowed.get(address1);
+        if (address1Allowed == null) {
+            address1Allowed = new HashMap<Address, BigInteger>();
+            allowed.put(address1, address1Allowed);
+        }
+        address1Allowed.put(address2, value);
+    }
+
+    private void addBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(value);
+        balances.put(address, balance.add(value));
+    }
+
+    private void subtractBalance(Address address, BigInteger value) {
+        BigInteger balance = balanceOf(address);
+        check(balance, value, "Insufficient balance of token.");
+        balances.put(address, balance.subtract(value));
+    }
+
+    private void check(BigInteger value) {
+        require(value != null && value.compareTo(BigInteger.ZERO) >= 0);
+    }
+
+    private void check(BigInteger value1, BigInteger value2, String msg) {
+        check(value1);
+        check(value2);
+        require(value1.compareTo(value2) >= 0, msg);
+    }
+
+    @View
+    public Address getFactory(){
+        return factory;
+    }
+
+    @View
+    public Address getLP(){
+        return Msg.address();
+    }
+
+    @View
+    public Address getToken0(){
+        return token0;
+    }
+
+    @View
+    public Address getToken1(){
+        return token1;
+    }
+
+    @View
+    public String getWeights(){
+        return weight0 + "," + weight1;
+    }
+
+    @View
+    public String getReserves(){
+        return reserve0 + "," + reserve1;
+    }
+
+    /**
+     * Full pair snapshot in a single call, same layout as NulswapPair.getState
+     *
+     * @dev reserve0,reserve1,token0,token1,lp,blockTimestampLast,
+     *      price0CumulativeLast,price1CumulativeLast,kLast
+     *      The pair keeps no price accumulators nor protocol fee, those are 0
+     * */
+    @View
+    public String getState(){
+        return reserve0 + "," + reserve1 + "," + token0 + "," + token1 + "," + Msg.address() + ",0,0,0,0";
+    }
+
+    /**
+     * Current invariant V, rounded down
+     *
+     * */
+    @View
+    public BigInteger getInvariant(){
+        if (reserve0.signum() == 0 || reserve1.signum() == 0)
+            return BigInteger.ZERO;
+        return invariant(reserve0, reserve1);
+    }
+
+    @View
+    public Integer getUnlocked(){
+        return unlocked;
+    }
+
+    class SwapEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0In;
+        private BigInteger amount1In;
+        private BigInteger amount0Out;
+        private BigInteger amount1Out;
+
+        private Address to;
+
+        public SwapEvent(@Required Address sender, @Required BigInteger amount0In, @Required BigInteger amount1In, @Required BigInteger amount0Out, @Required BigInteger amount1Out, @Required Address to) {
+            this.sender     = sender;
+            this.amount0In  = amount0In;
+            this.amount1In  = amount1In;
+            this.amount0Out = amount0Out;
+            this.amount1Out = amount1Out;
+            this.to         = to;
+        }
+
+    }
+
+    class MintEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        public MintEvent(@Required Address sender, @Required BigInteger amount0, @Required BigInteger amount1) {
+            this.sender  = sender;
+            this.amount0 = amount0;
+            this.amount1 = amount1;
+        }
+
+    }
+
+    class BurnEvent implements Event {
+
+        private Address sender;
+
+        private BigInteger amount0;
+        private BigInteger amount1;
+
+        private Address to;
+
+        public BurnEvent(@Required Address sender, @Required BigInteger amount0, @Required BigInteger amount1, @Required Address to) {
+            this.sender  = sender;
+            this.amount0 = amount0;
+            this.amount1 = amount1;
+            this.to      = to;
+        }
+    }
+
+    class SyncEvent implements Event {
+
+        private BigInteger reserve0;
+        private BigInteger reserve1;
+
+        public SyncEvent(@Required BigInteger reserve0, @Required BigInteger reserve1) {
+            this.reserve0 = reserve0;
+            this.reserve1 = reserve1;
+        }
+
+    }
+}